@@ -0,0 +1,50 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Shared setup for the benchmarks: finding the test ROMs and bringing a headless
+ * GameBoy to a reproducible state before anything is measured.
+ */
+final class BenchmarkSupport {
+
+	//frames run before measuring, enough to get every test ROM past its start-up
+	final static int WARM_UP_FRAMES = 300;
+
+	private BenchmarkSupport(){
+	}
+
+	/*
+	 * The TestROMs directory: -Demulator.roms=<dir> if given, otherwise TestROMs in the
+	 * working directory or its parent, so the benchmarks run from the repository root
+	 * as well as from the benchmarks module.
+	 */
+	static File romDirectory(){
+		String configured = System.getProperty("emulator.roms");
+		if(configured != null)
+			return new File(configured);
+		File local = new File("TestROMs");
+		return local.isDirectory() ? local : new File("../TestROMs");
+	}
+
+	static RomImage loadRom(String name) throws IOException {
+		return RomImage.load(new File(romDirectory(), name).getPath());
+	}
+
+	//a powered on headless GameBoy running the image
+	static GameBoy powerOn(RomImage rom){
+		GameBoy gameBoy = new GameBoy(rom);
+		gameBoy.powerOn();
+		return gameBoy;
+	}
+
+	//powerOn() followed by WARM_UP_FRAMES frames
+	static GameBoy boot(String romName) throws IOException {
+		GameBoy gameBoy = powerOn(loadRom(romName));
+		for(int i = 0; i < WARM_UP_FRAMES; i++)
+			gameBoy.runFrame();
+		return gameBoy;
+	}
+
+}
@@ -0,0 +1,44 @@
+package emulator;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, but unless -rf or
+ * -rff is given the results are written as JSON to
+ * benchmark-results/<yyyyMMdd-HHmmss>.json, so successive runs can be compared
+ * (for example with jmh.morethan.io) to track regressions.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regexps]
+ */
+public class Benchmarks {
+
+	public final static String RESULTS_DIRECTORY = "benchmark-results";
+
+	public static void main(String[] args) throws Exception {
+
+		CommandLineOptions options = new CommandLineOptions(args);
+		if(options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+				|| options.shouldListProfilers() || options.shouldListResultFormats()){
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+		if(!options.getResultFormat().hasValue() && !options.getResult().hasValue()){
+			File directory = new File(RESULTS_DIRECTORY);
+			directory.mkdirs();
+			String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+			builder.resultFormat(ResultFormatType.JSON).result(new File(directory, name).getPath());
+		}
+		new Runner(builder.build()).run();
+	}
+
+}
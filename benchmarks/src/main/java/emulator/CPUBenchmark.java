@@ -0,0 +1,108 @@
+package emulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Instruction throughput of CPU.step() per opcode class. Each class runs a synthetic
+ * cartridge whose main loop repeats a few instructions of that class, with the LCD
+ * switched off so its line work doesn't land on arbitrary instructions. Everything
+ * else step() does per instruction (input polling, interrupt checks, timers) is
+ * included, as it is when running a game.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CPUBenchmark {
+
+	private final static int STEPS = 1024;
+
+	private final static int LOOP_ADDR = 0x0150;
+	private final static int SUBROUTINE_ADDR = 0x0800;
+	private final static int LOOP_LENGTH = 0x0400;
+
+	@Param({ "nop", "load8", "alu8", "load16", "memory", "stack", "branch", "cb" })
+	public String opcodeClass;
+
+	private CPU cpu;
+
+	@Setup
+	public void setUp(){
+		GameBoy gameBoy = BenchmarkSupport.powerOn(new RomImage(opcodeClass, buildProgram(opcodeClass)));
+		cpu = gameBoy.getCPU();
+		cpu.step();	//LD A,$11
+		cpu.step();	//LDH ($40),A: LCD off
+		for(int i = 0; i < 1000; i++)
+			cpu.step();
+	}
+
+	//the instructions repeated in the main loop of each class
+	private static int[] unit(String opcodeClass){
+		switch(opcodeClass){
+		case "nop":		return new int[]{ 0x00 };
+		case "load8":	return new int[]{ 0x41, 0x53, 0x65, 0x78, 0x06, 0x12, 0x0E, 0x34 };	//LD r,r' / LD r,n
+		case "alu8":	return new int[]{ 0x80, 0xA9, 0x91, 0xB2, 0x3C, 0xFE, 0x12, 0xE6, 0x0F };	//ADD/XOR/SUB/OR/INC A/CP n/AND n
+		case "load16":	return new int[]{ 0x01, 0x34, 0x12, 0x03, 0x11, 0x78, 0x56, 0x1B, 0x09 };	//LD rr,nn / INC/DEC rr / ADD HL,rr
+		case "memory":	return new int[]{ 0x21, 0x00, 0xC0, 0x77, 0x7E, 0x34, 0x2A, 0xEA, 0x00, 0xC1, 0xF0, 0x80 };	//(HL), (HL+), (nn), LDH
+		case "stack":	return new int[]{ 0xC5, 0xD1, 0xF5, 0xF1, 0xE5, 0xE1 };	//PUSH/POP
+		case "branch":	return new int[]{ 0x18, 0x00, 0xCD, SUBROUTINE_ADDR & 0xFF, SUBROUTINE_ADDR >> 8, 0x20, 0x00 };	//JR, CALL/RET, JR NZ
+		case "cb":		return new int[]{ 0xCB, 0x37, 0xCB, 0x7F, 0xCB, 0x11, 0xCB, 0x38, 0xCB, 0xC7, 0xCB, 0x87 };	//SWAP, BIT, RL, SRL, SET, RES
+		default:		throw new IllegalArgumentException("Unknown opcode class: " + opcodeClass);
+		}
+	}
+
+	/*
+	 * A 32 KB ROM-only cartridge: the entry point jumps to a loop that switches the LCD
+	 * off and then repeats the unit, jumping back to its start when it runs out.
+	 */
+	static byte[] buildProgram(String opcodeClass){
+
+		byte[] rom = new byte[2 * RomImage.ROM_BANK_SIZE];
+		int[] entry = { 0xC3, LOOP_ADDR & 0xFF, LOOP_ADDR >> 8 };	//JP loop
+		put(rom, 0x0100, entry);
+		rom[RomImage.CARTRIDGE_TYPE_ADDR] = 0x00;
+
+		int[] prologue = { 0x3E, 0x11, 0xE0, 0x40 };	//LD A,$11; LDH ($40),A
+		put(rom, LOOP_ADDR, prologue);
+		int body = LOOP_ADDR + prologue.length;
+
+		int[] unit = unit(opcodeClass);
+		int address = body;
+		while(address + unit.length <= LOOP_ADDR + LOOP_LENGTH){
+			put(rom, address, unit);
+			address += unit.length;
+		}
+		put(rom, address, new int[]{ 0xC3, body & 0xFF, body >> 8 });	//JP body
+		put(rom, SUBROUTINE_ADDR, new int[]{ 0xC9 });	//RET
+		return rom;
+	}
+
+	private static void put(byte[] rom, int address, int[] bytes){
+		for(int i = 0; i < bytes.length; i++)
+			rom[address + i] = (byte)bytes[i];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STEPS)
+	public int step(){
+		for(int i = 0; i < STEPS; i++)
+			cpu.step();
+		return cpu.getPC();
+	}
+
+}
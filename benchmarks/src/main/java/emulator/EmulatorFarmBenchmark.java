@@ -0,0 +1,63 @@
+package emulator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Many instances of one ROM on an EmulatorFarm. An operation is a round in which
+ * every instance runs a frame, so the farm's frames per second are the score times
+ * the number of instances; across thread counts it shows how the farm scales with
+ * cores. The trial fails if an instance stopped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmulatorFarmBenchmark {
+
+	@Param({ "100" })
+	public int instances;
+
+	@Param({ "1", "2", "4" })
+	public int threads;
+
+	private EmulatorFarm farm;
+
+	@Setup
+	public void setUp() throws IOException {
+		RomImage image = BenchmarkSupport.loadRom("TCFOS.GB");
+		farm = new EmulatorFarm(threads);
+		for(int i = 0; i < instances; i++)
+			farm.addInstance(image);
+	}
+
+	@TearDown
+	public void tearDown(){
+		farm.shutdown();
+		for(int i = 0; i < instances; i++){
+			if(farm.getFailure(i) != null)
+				throw new IllegalStateException((instances - farm.getRunningInstanceCount()) + " instances stopped", farm.getFailure(i));
+		}
+	}
+
+	@Benchmark
+	public long runFrame(){
+		return farm.runFrames(1);
+	}
+
+}
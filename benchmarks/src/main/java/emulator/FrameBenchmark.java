@@ -0,0 +1,62 @@
+package emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Full-frame emulation of the ROMs in TestROMs, in frames per second; real time is
+ * about 59.7. Every iteration starts from the same saved state taken after start-up,
+ * so iterations measure the same stretch of the game.
+ *
+ * The default list holds the ROMs that get through start-up. Boxes, Pac-Man and
+ * Super Mario Land stop at HALT (76), which the CPU doesn't implement yet; they can
+ * be measured with -p rom=<name> once it does. The cpu_instrs parts in
+ * TestROMs/individual run the same code as cpu_instrs.gb.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+
+	@Param({ "Bounce.gb", "GBTICTAC.GB", "GuessTheNumber_1.gb", "TCFOS.GB", "Tetris.gb", "cpu_instrs.gb", "pong.GB" })
+	public String rom;
+
+	private GameBoy gameBoy;
+	private ByteBuffer startState;
+
+	@Setup(Level.Trial)
+	public void boot() throws IOException {
+		gameBoy = BenchmarkSupport.boot(rom);
+		startState = SaveState.allocateBuffer();
+		SaveState.capture(gameBoy, startState);
+	}
+
+	@Setup(Level.Iteration)
+	public void rewind(){
+		startState.rewind();
+		SaveState.restore(gameBoy, startState);
+	}
+
+	@Benchmark
+	public long runFrame(){
+		return gameBoy.runFrame();
+	}
+
+}
@@ -0,0 +1,148 @@
+package emulator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Each FramePacer mode against a simulated sound card whose clock runs skew percent
+ * faster than the simulated wall clock, draining the output a millisecond at a
+ * time. Emulation itself takes no simulated time, as if on an infinitely fast
+ * machine; all simulated time passes in the pacer's waits. The score is frames per
+ * second of real CPU time, with synthesis and pacing; "none" runs with audio
+ * disabled and unpaced, for reference.
+ *
+ * What tells the modes apart is printed at the end of every iteration: the latency
+ * of the newest samples at each frame, the range of speed adjustments, and the
+ * samples the card found missing (underruns) or that didn't fit (dropped). The
+ * machine runs on from power-on across iterations, so the warmup covers the burst
+ * of audio at boot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramePacerBenchmark {
+
+	@Param({ "none", "wall", "audio", "drc" })
+	public String mode;
+
+	@Param({ "0.1" })
+	public double skew;
+
+	@Param({ "40" })
+	public int targetMillis;
+
+	@Param({ "44100" })
+	public int sampleRate;
+
+	private GameBoy gameBoy;
+	private AudioOutput output;
+	private SimulatedCard card;
+	private FramePacer pacer;
+	private long droppedBefore;
+
+	@Setup(Level.Trial)
+	public void powerOn() throws IOException {
+		gameBoy = BenchmarkSupport.powerOn(BenchmarkSupport.loadRom("GBTICTAC.GB"));
+		if(mode.equals("none"))
+			return;
+		output = new AudioOutput(sampleRate, 2 * targetMillis + 20);
+		card = new SimulatedCard(output, sampleRate * (1 + skew / 100));
+		pacer = new FramePacer(output, FramePacer.Mode.forFlag(mode), targetMillis, card);
+		gameBoy.apu.setOutput(output);
+		pacer.attach(gameBoy);
+	}
+
+	@Setup(Level.Iteration)
+	public void resetStatistics(){
+		if(pacer == null)
+			return;
+		pacer.resetStatistics();
+		card.underrunFrames = 0;
+		droppedBefore = output.getDroppedFrames();
+	}
+
+	@TearDown(Level.Iteration)
+	public void report(){
+		if(pacer == null)
+			return;
+		LatencyHistogram latencies = pacer.getLatencies();
+		System.out.println(String.format("latency p50 %5.1f ms, p99 %5.1f ms, max %5.1f ms; underruns %6d, dropped %6d; speed %+.3f%%..%+.3f%%",
+				latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6, latencies.getMaxValue() / 1e6,
+				card.underrunFrames, output.getDroppedFrames() - droppedBefore,
+				100 * (pacer.getMinSpeed() - 1), 100 * (pacer.getMaxSpeed() - 1)));
+	}
+
+	@Benchmark
+	public long runFrame(){
+		return gameBoy.runFrame();
+	}
+
+	/*
+	 * A sound card on a simulated clock: time only passes when the pacer sleeps, and
+	 * as it passes the card takes samples from the output at its own rate, a
+	 * millisecond's worth at a time, counting those it finds missing.
+	 */
+	private static final class SimulatedCard implements FramePacer.Clock {
+
+		private final static long PERIOD_NANOS = 1000000;
+
+		private final AudioOutput output;
+		private final double framesPerNano;
+		private final short[] chunk = new short[4096];
+
+		private long time;
+		private double due;	//stereo samples the card is owed but hasn't taken yet, below 1
+		long underrunFrames;
+
+		SimulatedCard(AudioOutput output, double framesPerSecond){
+			this.output = output;
+			this.framesPerNano = framesPerSecond / 1e9;
+		}
+
+		@Override
+		public long nanoTime() {
+			return time;
+		}
+
+		@Override
+		public void sleepUntil(long deadline) {
+			while(time < deadline){
+				long period = Math.min(deadline - time, PERIOD_NANOS);
+				time += period;
+				due += period * framesPerNano;
+				int wanted = (int)due;
+				due -= wanted;
+				play(wanted);
+			}
+		}
+
+		private void play(int frames){
+			while(frames > 0){
+				int taken = output.poll(chunk, 0, Math.min(2 * frames, chunk.length)) / 2;
+				if(taken == 0){
+					underrunFrames += frames;
+					return;
+				}
+				frames -= taken;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package emulator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * LCD line composition on the video memory of a running game: composing a line from
+ * the cached tiles and sprites and projecting it into the frame buffer, with and
+ * without the per-line OAM and VRAM copies the controller makes in modes 2 and 3.
+ * Each invocation renders the 144 visible lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LCDBenchmark {
+
+	private final static int LINES = GameBoy.SCREEN_HEIGHT;
+
+	@Param({ "TCFOS.GB", "GBTICTAC.GB" })
+	public String rom;
+
+	private LCDController lcd;
+
+	@Setup
+	public void setUp() throws IOException {
+		lcd = BenchmarkSupport.boot(rom).getLCD();
+		lcd.renderLine(0, true);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void composeLine(){
+		for(int line = 0; line < LINES; line++)
+			lcd.renderLine(line, false);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void copyVideoMemoryAndComposeLine(){
+		for(int line = 0; line < LINES; line++)
+			lcd.renderLine(line, true);
+	}
+
+}
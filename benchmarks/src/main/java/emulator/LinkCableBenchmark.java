@@ -0,0 +1,78 @@
+package emulator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A linked pair, each GameBoy on its own thread and unthrottled, running the built-in
+ * test pair (see LinkCable.buildProgram()) for the given emulated seconds: unlinked
+ * for reference, through the in-process cable, and over a loopback socket. Each
+ * iteration is one such run, so the score is the real time that many emulated
+ * seconds take. The trial fails if the master counted a wrong echo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LinkCableBenchmark {
+
+	@Param({ "unlinked", "in-process", "loopback" })
+	public String link;
+
+	@Param({ "10" })
+	public int seconds;
+
+	private RomImage[] pair;
+	private LinkCable.End[] ends;
+	private LinkCable.Session session;
+
+	@Setup(Level.Trial)
+	public void build(){
+		pair = new RomImage[]{
+			new RomImage("link-master", LinkCable.buildProgram(true)),
+			new RomImage("link-slave", LinkCable.buildProgram(false))
+		};
+	}
+
+	@Setup(Level.Iteration)
+	public void connect() throws IOException {
+		if(link.equals("in-process"))
+			ends = LinkCable.inProcess(LinkCable.DEFAULT_MAX_SKEW);
+		else if(link.equals("loopback"))
+			ends = LinkCable.loopback(LinkCable.DEFAULT_MAX_SKEW);
+		else if(link.equals("unlinked"))
+			ends = null;
+		else
+			throw new IllegalArgumentException("Unknown link: " + link);
+	}
+
+	@TearDown(Level.Iteration)
+	public void checkEchoes(){
+		int errors = session.gameBoys[0].memory.readByte(LinkCable.ERRORS_ADDR);
+		if(ends != null && errors != 0)
+			throw new IllegalStateException(errors + " wrong echoes over the " + link + " link");
+	}
+
+	@Benchmark
+	public LinkCable.Session run() throws InterruptedException {
+		session = LinkCable.run(pair, new int[][]{ null, null }, ends, (long)seconds * CPU.PROCESSOR_FREQUENCY_HZ);
+		return session;
+	}
+
+}
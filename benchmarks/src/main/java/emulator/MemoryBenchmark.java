@@ -0,0 +1,86 @@
+package emulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Memory.readByte() and writeByte() per region of the address space, on an MBC1
+ * cartridge. Each invocation walks 256 addresses of the region. Writes to the ROM
+ * regions exercise the MBC1 register decoding; IO writes cycle through registers
+ * without side effects beyond being stored (scroll, palettes, window, TMA).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+
+	private final static int ACCESSES = 256;
+
+	private final static int[] IO_REGISTERS = { 0xFF42, 0xFF43, 0xFF47, 0xFF48, 0xFF49, 0xFF4A, 0xFF4B, 0xFF06 };
+
+	@Param({ "rom0", "romx", "vram", "wram", "oam", "io", "hram" })
+	public String region;
+
+	private Memory memory;
+	private final int[] addresses = new int[ACCESSES];
+
+	@Setup
+	public void setUp(){
+
+		byte[] image = new byte[8 * RomImage.ROM_BANK_SIZE];
+		for(int i = 0; i < image.length; i++)
+			image[i] = (byte)(i * 31);
+		image[RomImage.CARTRIDGE_TYPE_ADDR] = 0x01;	//MBC1
+
+		memory = BenchmarkSupport.powerOn(new RomImage("mbc1", image)).memory;
+		memory.writeByte(0x2000, (char)3, HardwareType.CPU);
+
+		for(int i = 0; i < ACCESSES; i++)
+			addresses[i] = address(region, i);
+	}
+
+	private static int address(String region, int i){
+		switch(region){
+		case "rom0":	return 0x0000 + i * 61;
+		case "romx":	return 0x4000 + i * 61;
+		case "vram":	return 0x8000 + i * 29;
+		case "wram":	return 0xC000 + i * 29;
+		case "oam":		return 0xFE00 + (i % 0xA0);
+		case "io":		return IO_REGISTERS[i % IO_REGISTERS.length];
+		case "hram":	return 0xFF80 + (i % 0x7F);
+		default:		throw new IllegalArgumentException("Unknown region: " + region);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public int readByte(){
+		int sum = 0;
+		for(int i = 0; i < ACCESSES; i++)
+			sum += memory.readByte(addresses[i]);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public void writeByte(){
+		for(int i = 0; i < ACCESSES; i++)
+			memory.writeByte(addresses[i], (char)((i & 0x1F) | 1), HardwareType.CPU);
+	}
+
+}
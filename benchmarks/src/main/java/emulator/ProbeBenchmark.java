@@ -0,0 +1,111 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * What the optional recorders attached to a running machine cost per frame, in
+ * frames per second against none: EmulationMetrics, audio synthesis into a null
+ * sink, TraceRecorder and VideoRecorder (both writing to a temporary file, on their
+ * own threads). Like FrameBenchmark, every iteration starts from the same state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProbeBenchmark {
+
+	@Param({ "none", "metrics", "audio", "trace", "video" })
+	public String probe;
+
+	private GameBoy gameBoy;
+	private ByteBuffer startState;
+
+	private EmulationMetrics metrics;
+	private AudioOutput audio;
+	private TraceRecorder trace;
+	private VideoRecorder video;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void boot() throws IOException {
+		gameBoy = BenchmarkSupport.boot("TCFOS.GB");
+		startState = SaveState.allocateBuffer();
+		SaveState.capture(gameBoy, startState);
+	}
+
+	@Setup(Level.Iteration)
+	public void attach() throws IOException {
+		startState.rewind();
+		SaveState.restore(gameBoy, startState);
+
+		if(probe.equals("metrics")){
+			metrics = new EmulationMetrics();
+			metrics.attach(gameBoy);
+		}else if(probe.equals("audio")){
+			audio = new AudioOutput(AudioSink.NULL, AudioOutput.DEFAULT_SAMPLE_RATE, 250, true);
+			gameBoy.apu.setOutput(audio);
+		}else if(probe.equals("trace")){
+			file = File.createTempFile("benchmark", ".trace");
+			trace = new TraceRecorder(file.getPath(), 1 << 16);
+			trace.attach(gameBoy);
+		}else if(probe.equals("video")){
+			file = File.createTempFile("benchmark", ".video");
+			video = new VideoRecorder(file.getPath(), 8);
+			video.attach(gameBoy);
+		}else if(!probe.equals("none")){
+			throw new IllegalArgumentException("Unknown probe: " + probe);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void detach() throws IOException {
+		if(metrics != null){
+			metrics.detach(gameBoy);
+			metrics = null;
+		}
+		if(audio != null){
+			gameBoy.apu.setOutput(null);
+			audio.close();
+			audio = null;
+		}
+		if(trace != null){
+			trace.detach(gameBoy);
+			trace.close();
+			trace = null;
+		}
+		if(video != null){
+			video.detach(gameBoy);
+			video.close();
+			video = null;
+		}
+		if(file != null){
+			file.delete();
+			file = null;
+		}
+	}
+
+	@Benchmark
+	public long runFrame(){
+		return gameBoy.runFrame();
+	}
+
+}
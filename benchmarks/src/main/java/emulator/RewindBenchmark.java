@@ -0,0 +1,111 @@
+package emulator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * RewindBuffer on a running game: a frame with the buffer recording, which adds the
+ * capture and delta encoding at VBlank to FrameBenchmark's runFrame, and a rewind of
+ * two seconds, timed one at a time after every iteration has recorded some more.
+ *
+ * The trial fails unless a final rewind, taken while a fork shares the machine's
+ * memory, allocates nothing and restores exactly the state recorded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RewindBenchmark {
+
+	private final static int REWIND_FRAMES = 120;
+
+	private final static ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private GameBoy gameBoy;
+	private RewindBuffer rewind;
+
+	@Setup(Level.Trial)
+	public void boot() throws IOException {
+		gameBoy = BenchmarkSupport.boot("TCFOS.GB");
+		rewind = new RewindBuffer(gameBoy, 30, 16 * 1024 * 1024);
+		rewind.attach();
+	}
+
+	//enough history for the next rewind
+	@Setup(Level.Iteration)
+	public void record(){
+		for(int i = 0; i <= REWIND_FRAMES + 30; i++)
+			gameBoy.runFrame();
+	}
+
+	@Benchmark
+	public long recordFrame(){
+		return gameBoy.runFrame();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 20)
+	public int rewind(){
+		return rewind.rewind(REWIND_FRAMES);
+	}
+
+	@TearDown(Level.Trial)
+	public void checkRewind(){
+		for(int i = 0; i < 5; i++){	//recordFrame's trial never rewinds, so warm the path up first
+			record();
+			rewind.rewind(REWIND_FRAMES);
+		}
+
+		ByteBuffer expected = SaveState.allocateBuffer();
+		ByteBuffer actual = SaveState.allocateBuffer();
+		gameBoy.runFrame();
+		SaveState.capture(gameBoy, expected);
+		for(int i = 0; i < REWIND_FRAMES; i++)
+			gameBoy.runFrame();
+
+		//the fork shares the RAM pages, LCD caches and framebuffer, which the rewind must
+		//replace without allocating; record() reserves them, here there is no frame in between
+		gameBoy.fork();
+		gameBoy.reserveRestoreBuffers();
+
+		long allocatedBefore = allocatedBytes();
+		rewind.rewind(REWIND_FRAMES);
+		long allocated = allocatedBytes() - allocatedBefore;
+		expected.flip();
+		SaveState.capture(gameBoy, actual);
+		actual.flip();
+
+		if(!expected.equals(actual))
+			throw new IllegalStateException("The rewind restored a different state");
+		if(allocated != 0)
+			throw new IllegalStateException("The rewind allocated " + allocated + " bytes");
+	}
+
+	//bytes allocated by this thread so far, where the JVM supports counting them
+	private static long allocatedBytes(){
+		if(!(THREADS instanceof com.sun.management.ThreadMXBean))
+			return 0;
+		return ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+}
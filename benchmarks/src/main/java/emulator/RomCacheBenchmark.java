@@ -0,0 +1,54 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Loading a ROM file (plain, .gz or .zip) through the shared RomCache, and reading
+ * it again bypassing the cache. Setup fails the trial unless repeated loads return
+ * the one shared image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RomCacheBenchmark {
+
+	@Param({ "TCFOS.GB" })
+	public String rom;
+
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = new File(BenchmarkSupport.romDirectory(), rom);
+		if(RomImage.load(file.getPath()) != RomImage.load(file.getPath()))
+			throw new IllegalStateException("Loads of " + file + " are not one shared image");
+	}
+
+	@Benchmark
+	public RomImage cached() throws IOException {
+		return RomImage.load(file.getPath());
+	}
+
+	@Benchmark
+	public RomImage uncached() throws IOException {
+		return RomImage.read(file);
+	}
+
+}
@@ -0,0 +1,112 @@
+package emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Save state round trips of a running game: capture and restore through a reused
+ * buffer (what RewindBuffer and EmulatorFarm do), and through the allocating byte[]
+ * variants; capture and restore on their own; and GameBoy.fork(), on its own and
+ * followed by the fork's first frame, in which it copies the pages it writes.
+ *
+ * Setup fails the trial unless 60 frames run from a restored state, and in a fork,
+ * end in the same state as the original run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveStateBenchmark {
+
+	private GameBoy gameBoy;
+	private ByteBuffer buffer;
+	private ByteBuffer state;
+
+	@Setup
+	public void setUp() throws IOException {
+		gameBoy = BenchmarkSupport.boot("TCFOS.GB");
+		checkReplay(gameBoy);
+		buffer = SaveState.allocateBuffer();
+		state = SaveState.allocateBuffer();
+		SaveState.capture(gameBoy, state);
+	}
+
+	//a restored state and a fork must both replay 60 frames exactly as the original did
+	private static void checkReplay(GameBoy gameBoy){
+		byte[] origin = SaveState.capture(gameBoy);
+		for(int i = 0; i < 60; i++)
+			gameBoy.runFrame();
+		byte[] expected = SaveState.capture(gameBoy);
+
+		SaveState.restore(gameBoy, origin);
+		for(int i = 0; i < 60; i++)
+			gameBoy.runFrame();
+		if(!Arrays.equals(expected, SaveState.capture(gameBoy)))
+			throw new IllegalStateException("Replay after restore differs from the original run");
+
+		SaveState.restore(gameBoy, origin);
+		GameBoy child = gameBoy.fork();
+		for(int i = 0; i < 60; i++)
+			child.runFrame();
+		if(!Arrays.equals(expected, SaveState.capture(child)))
+			throw new IllegalStateException("Replay in a fork differs from the original run");
+	}
+
+	@Benchmark
+	public ByteBuffer roundTripBuffer(){
+		buffer.clear();
+		SaveState.capture(gameBoy, buffer);
+		buffer.flip();
+		SaveState.restore(gameBoy, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] roundTripArray(){
+		byte[] state = SaveState.capture(gameBoy);
+		SaveState.restore(gameBoy, state);
+		return state;
+	}
+
+	@Benchmark
+	public ByteBuffer capture(){
+		buffer.clear();
+		SaveState.capture(gameBoy, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer restore(){
+		state.rewind();
+		SaveState.restore(gameBoy, state);
+		return state;
+	}
+
+	@Benchmark
+	public GameBoy fork(){
+		return gameBoy.fork();
+	}
+
+	@Benchmark
+	public GameBoy forkAndRunFrame(){
+		GameBoy child = gameBoy.fork();
+		child.runFrame();
+		return child;
+	}
+
+}
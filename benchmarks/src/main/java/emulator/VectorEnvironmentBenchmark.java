@@ -0,0 +1,71 @@
+package emulator;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Batched stepping of a VectorEnvironment with random joypad masks and a few RAM
+ * bytes observed, the way a training script would pick score or position. An
+ * operation is one step of every environment, so env-steps per second are the
+ * score times envs. With -prof gc, gc.alloc.rate.norm is what a step allocates
+ * across all threads, which should be nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VectorEnvironmentBenchmark {
+
+	@Param({ "16" })
+	public int envs;
+
+	@Param({ "4" })
+	public int threads;
+
+	@Param({ "GRAYSCALE_HALF", "FRAMEBUFFER" })
+	public String observation;
+
+	private VectorEnvironment environment;
+	private int[][] actions;
+	private int step;
+
+	@Setup
+	public void setUp() throws IOException {
+		int[] ram = { 0xC000, 0xC001, 0xFF80 };
+		environment = new VectorEnvironment(BenchmarkSupport.loadRom("TCFOS.GB"), envs, ObservationType.valueOf(observation), ram, threads);
+
+		Random random = new Random(0);
+		actions = new int[64][envs];
+		for(int[] row : actions){
+			for(int i = 0; i < envs; i++)
+				row[i] = random.nextInt(0x100);
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		environment.shutdown();
+	}
+
+	@Benchmark
+	public byte[] step(){
+		return environment.step(actions[step++ & (actions.length - 1)]);
+	}
+
+}
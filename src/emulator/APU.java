@@ -0,0 +1,756 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * The audio processing unit: two square channels (the first with frequency sweep),
+ * the wave channel and the noise channel, mixed to stereo by NR50/NR51.
+ *
+ * The APU is clocked lazily. It remembers the clock cycle it has been brought up to
+ * and only catches up to the current cycle when it has to: before a sound register
+ * is written, when NR52 is read, and at the end of every frame while an output is
+ * attached. Catching up runs the 512 Hz frame sequencer (length counters, sweep,
+ * envelopes) tick by tick and, with an output, runs the waveform generators over the
+ * elapsed time in one go.
+ *
+ * Synthesis is band-limited: the generators step at their own rates (up to 2 MHz for
+ * the wave channel), and every change of a channel's level in the mix is added to a
+ * BandLimitedBuffer per side as a step at the exact clock cycle it happened. The
+ * buffers are closed at every frame sequencer tick and at the end of every frame,
+ * resampled to the output rate, and the samples collected into a block that is handed
+ * to the AudioOutput when full.
+ *
+ * Without an output no samples are synthesized at all and the waveform generators
+ * stand still; only what the CPU can observe (which channels are on, through NR52)
+ * is kept up to date, which costs a few operations per sound register write.
+ * Waveform phases are therefore not part of the save state, so a state is the same
+ * whether or not audio was being played.
+ */
+public class APU {
+
+	public final static int FIRST_REGISTER_ADDR = 0xFF10;
+	public final static int LAST_REGISTER_ADDR = 0xFF3F;
+	public final static int NR52_ADDR = 0xFF26;
+
+	private final static int WAVE_RAM_ADDR = 0xFF30;
+
+	//the frame sequencer runs at 512 Hz, stepping through 8 steps
+	private final static int SEQUENCER_PERIOD = CPU.PROCESSOR_FREQUENCY_HZ / 512;
+
+	//stereo samples per block handed to the output
+	private final static int BLOCK_FRAMES = 512;
+
+	//each side of the mix is within -480..480 (four channels of -15..15 times a master volume of up to 8)
+	private final static float GAIN = 64;
+
+	private final static int[][] DUTY_WAVEFORMS = {
+		{ 0, 0, 0, 0, 0, 0, 0, 1 },
+		{ 1, 0, 0, 0, 0, 0, 0, 1 },
+		{ 1, 0, 0, 0, 0, 1, 1, 1 },
+		{ 0, 1, 1, 1, 1, 1, 1, 0 }
+	};
+
+	private final Square square1 = new Square(0, true);
+	private final Square square2 = new Square(1, false);
+	private final Wave wave = new Wave(2);
+	private final Noise noise = new Noise(3);
+
+	private boolean powered = true;
+	private int masterVolume;	//NR50
+	private int panning;		//NR51
+
+	//the clock cycle everything has been brought up to
+	private long cycle;
+
+	//output; null while audio is disabled
+	private AudioOutput output;
+	private BandLimitedBuffer left;
+	private BandLimitedBuffer right;
+	private long segmentStart;	//the cycle the buffers' current segment started at
+	//each channel's current contribution to either side, as last added to the buffers
+	private final int[] leftLevels = new int[4];
+	private final int[] rightLevels = new int[4];
+	private final short[] block = new short[2 * BLOCK_FRAMES];
+	private int blockLength;
+
+	private final GameBoy gameBoy;
+
+	public APU(GameBoy gameBoy){
+		this.gameBoy = gameBoy;
+	}
+
+	/*
+	 * Starts synthesizing into the output from the current cycle on, or stops when
+	 * output is null. The previous output, if any, is flushed but not closed.
+	 */
+	public void setOutput(AudioOutput output){
+		catchUp(gameBoy.getClockCycles());
+		if(this.output != null)
+			endSegment();
+		flush();
+		this.output = output;
+		if(output == null)
+			return;
+
+		//a segment spans at most one frame sequencer period
+		int sampleRate = output.getSampleRate();
+		int capacity = (int)((long)SEQUENCER_PERIOD * sampleRate / CPU.PROCESSOR_FREQUENCY_HZ) + 2;
+		left = new BandLimitedBuffer(capacity);
+		right = new BandLimitedBuffer(capacity);
+		left.setRate(sampleRate / (double)CPU.PROCESSOR_FREQUENCY_HZ);
+		right.setRate(sampleRate / (double)CPU.PROCESSOR_FREQUENCY_HZ);
+		restartSynthesis();
+	}
+
+	//starts the buffers and the waveform generators afresh at the current cycle
+	private void restartSynthesis(){
+		segmentStart = cycle;
+		left.clear();
+		right.clear();
+		Arrays.fill(leftLevels, 0);
+		Arrays.fill(rightLevels, 0);
+		square1.nextStep = cycle + square1.period();
+		square2.nextStep = cycle + square2.period();
+		wave.nextStep = cycle + wave.period();
+		noise.nextStep = cycle + noise.period();
+		updateLevels();
+	}
+
+	public AudioOutput getOutput(){
+		return output;
+	}
+
+	//called by Memory before a CPU write to FF10-FF3F is stored
+	void registerWritten(int address, char data){
+
+		catchUp(gameBoy.getClockCycles());
+
+		if(address >= WAVE_RAM_ADDR)
+			wave.ram[address - WAVE_RAM_ADDR] = (byte)data;
+		else if(address == NR52_ADDR)
+			setPowered((data & 0x80) != 0);
+		else if(powered)
+			writeRegister(address, data);
+
+		if(output != null)
+			updateLevels();
+	}
+
+	private void writeRegister(int address, char data){
+		switch(address){
+		case 0xFF10:	square1.writeSweep(data);		break;
+		case 0xFF11:	square1.writeLengthDuty(data);	break;
+		case 0xFF12:	square1.writeEnvelope(data);	break;
+		case 0xFF13:	square1.writeFrequencyLow(data);	break;
+		case 0xFF14:	square1.writeControl(data);		break;
+		case 0xFF16:	square2.writeLengthDuty(data);	break;
+		case 0xFF17:	square2.writeEnvelope(data);	break;
+		case 0xFF18:	square2.writeFrequencyLow(data);	break;
+		case 0xFF19:	square2.writeControl(data);		break;
+		case 0xFF1A:	wave.writeDAC(data);			break;
+		case 0xFF1B:	wave.writeLength(data);			break;
+		case 0xFF1C:	wave.writeVolume(data);			break;
+		case 0xFF1D:	wave.writeFrequencyLow(data);	break;
+		case 0xFF1E:	wave.writeControl(data);		break;
+		case 0xFF20:	noise.writeLength(data);		break;
+		case 0xFF21:	noise.writeEnvelope(data);		break;
+		case 0xFF22:	noise.writePolynomial(data);	break;
+		case 0xFF23:	noise.writeControl(data);		break;
+		case 0xFF24:	masterVolume = data;			break;
+		case 0xFF25:	panning = data;					break;
+		default:		break;
+		}
+	}
+
+	//NR52 as the CPU reads it: power, and which channels are on
+	char readStatus(){
+		catchUp(gameBoy.getClockCycles());
+		return (char)((powered ? 0x80 : 0) | 0x70
+				| (noise.enabled ? 0x08 : 0) | (wave.enabled ? 0x04 : 0)
+				| (square2.enabled ? 0x02 : 0) | (square1.enabled ? 0x01 : 0));
+	}
+
+	private void setPowered(boolean on){
+		if(powered && !on){
+			square1.powerOff();
+			square2.powerOff();
+			wave.powerOff();
+			noise.powerOff();
+			masterVolume = panning = 0;
+		}
+		powered = on;
+	}
+
+	//called by GameBoy at the end of every frame while an output is attached
+	void endFrame(){
+		catchUp(gameBoy.getClockCycles());
+		endSegment();
+		flush();
+	}
+
+	private void flush(){
+		if(output != null && blockLength > 0)
+			output.write(block, 0, blockLength);
+		blockLength = 0;
+	}
+
+	/*
+	 * Brings the APU up to the given cycle: the waveforms of each stretch between
+	 * frame sequencer ticks, then the tick itself, which closes the segment.
+	 */
+	private void catchUp(long now){
+
+		if(output == null && !(square1.enabled || square2.enabled || wave.enabled || noise.enabled)){
+			cycle = Math.max(cycle, now);	//nothing that could change
+			return;
+		}
+
+		while(cycle < now){
+			long tick = (cycle / SEQUENCER_PERIOD + 1) * SEQUENCER_PERIOD;
+			long next = Math.min(tick, now);
+			if(output != null)
+				runGenerators(next);
+			cycle = next;
+			if(cycle == tick){
+				clockSequencer((int)(tick / SEQUENCER_PERIOD) & 7);
+				if(output != null){
+					updateLevels();
+					endSegment();
+				}
+			}
+		}
+	}
+
+	private void clockSequencer(int step){
+		if((step & 1) == 0){
+			square1.clockLength();
+			square2.clockLength();
+			wave.clockLength();
+			noise.clockLength();
+		}
+		if(step == 2 || step == 6)
+			square1.clockSweep();
+		if(step == 7){
+			square1.clockEnvelope();
+			square2.clockEnvelope();
+			noise.clockEnvelope();
+		}
+	}
+
+	private void runGenerators(long until){
+		square1.run(until);
+		square2.run(until);
+		wave.run(until);
+		noise.run(until);
+	}
+
+	//brings the buffers' levels up to date with the channels after a register write or envelope/length tick
+	private void updateLevels(){
+		emit(0, cycle, square1.level());
+		emit(1, cycle, square2.level());
+		emit(2, cycle, wave.level());
+		emit(3, cycle, noise.level());
+	}
+
+	//the given channel is at the given level (-15..15) from the given cycle on
+	private void emit(int channel, long time, int level){
+		int leftLevel = ((panning >> (4 + channel)) & 1) * level * (((masterVolume >> 4) & 7) + 1);
+		int rightLevel = ((panning >> channel) & 1) * level * ((masterVolume & 7) + 1);
+		if(leftLevel != leftLevels[channel]){
+			left.addDelta(time - segmentStart, leftLevel - leftLevels[channel]);
+			leftLevels[channel] = leftLevel;
+		}
+		if(rightLevel != rightLevels[channel]){
+			right.addDelta(time - segmentStart, rightLevel - rightLevels[channel]);
+			rightLevels[channel] = rightLevel;
+		}
+	}
+
+	//resamples the segment up to the current cycle into the block
+	private void endSegment(){
+		long duration = cycle - segmentStart;
+		segmentStart = cycle;
+		int count = left.endSegment(duration);
+		right.endSegment(duration);
+		while(count > 0){
+			int frames = Math.min(count, BLOCK_FRAMES - blockLength / 2);
+			left.read(block, blockLength, 2, frames, GAIN);
+			right.read(block, blockLength + 1, 2, frames, GAIN);
+			blockLength += 2 * frames;
+			count -= frames;
+			if(blockLength == block.length)
+				flush();
+		}
+	}
+
+	//see SaveState; waveform phases are left out (see the class comment)
+	void saveState(ByteBuffer buffer){
+		buffer.putLong(cycle);
+		buffer.put((byte)(powered ? 1 : 0));
+		buffer.put((byte)masterVolume);
+		buffer.put((byte)panning);
+		square1.saveState(buffer);
+		square2.saveState(buffer);
+		wave.saveState(buffer);
+		noise.saveState(buffer);
+	}
+
+	void loadState(ByteBuffer buffer){
+		flush();
+		cycle = buffer.getLong();
+		powered = buffer.get() != 0;
+		masterVolume = buffer.get() & 0xFF;
+		panning = buffer.get() & 0xFF;
+		square1.loadState(buffer);
+		square2.loadState(buffer);
+		wave.loadState(buffer);
+		noise.loadState(buffer);
+		if(output != null)
+			restartSynthesis();
+	}
+
+	//see GameBoy.fork(); the fork has no output
+	void copyStateFrom(APU other){
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		other.saveState(buffer);
+		buffer.flip();
+		loadState(buffer);
+	}
+
+	/*
+	 * What every channel has: the enabled flag (cleared by the length counter, by
+	 * turning the DAC off or by a sweep overflow), the DAC, and the length counter.
+	 */
+	private abstract class Channel {
+
+		final int index;	//in NR51 and the level arrays
+
+		boolean enabled;
+		boolean dacOn;
+		int length;
+		boolean lengthEnabled;
+		int frequency;
+		long nextStep;	//the clock cycle of the next waveform step, while an output is attached
+
+		Channel(int index){
+			this.index = index;
+		}
+
+		abstract int maxLength();
+
+		//clock cycles per waveform step
+		abstract int period();
+
+		//one waveform step
+		abstract void step();
+
+		//skips the given number of waveform steps while the channel is silent
+		abstract void skip(long steps);
+
+		//the output level, -15..15
+		abstract int level();
+
+		//runs the waveform generator up to the given cycle, emitting every change of level
+		void run(long until){
+			if(!enabled){
+				if(nextStep < until){
+					int period = period();
+					long steps = (until - nextStep + period - 1) / period;
+					skip(steps);
+					nextStep += steps * period;
+				}
+				return;
+			}
+			while(nextStep < until){
+				step();
+				emit(index, nextStep, level());
+				nextStep += period();
+			}
+		}
+
+		void clockLength(){
+			if(lengthEnabled && length > 0 && --length == 0)
+				enabled = false;
+		}
+
+		void writeFrequencyLow(char data){
+			frequency = (frequency & 0x700) | data;
+		}
+
+		//NRx4: frequency high bits, length enable, trigger
+		void writeControl(char data){
+			frequency = (frequency & 0xFF) | ((data & 7) << 8);
+			lengthEnabled = (data & 0x40) != 0;
+			if((data & 0x80) != 0)
+				trigger();
+		}
+
+		void trigger(){
+			enabled = dacOn;
+			if(length == 0)
+				length = maxLength();
+			nextStep = cycle + period();
+		}
+
+		void powerOff(){
+			enabled = dacOn = lengthEnabled = false;
+			frequency = 0;
+		}
+
+		void saveState(ByteBuffer buffer){
+			buffer.put((byte)((enabled ? 1 : 0) | (dacOn ? 2 : 0) | (lengthEnabled ? 4 : 0)));
+			buffer.putShort((short)length);
+			buffer.putShort((short)frequency);
+		}
+
+		void loadState(ByteBuffer buffer){
+			int flags = buffer.get();
+			enabled = (flags & 1) != 0;
+			dacOn = (flags & 2) != 0;
+			lengthEnabled = (flags & 4) != 0;
+			length = buffer.getShort();
+			frequency = buffer.getShort();
+		}
+	}
+
+	//volume envelope of the square and noise channels (NRx2)
+	private abstract class EnvelopeChannel extends Channel {
+
+		int envelopeRegister;
+		int volume;
+		int envelopeTimer;
+
+		EnvelopeChannel(int index){
+			super(index);
+		}
+
+		void writeEnvelope(char data){
+			envelopeRegister = data;
+			dacOn = (data & 0xF8) != 0;
+			if(!dacOn)
+				enabled = false;
+		}
+
+		@Override
+		void trigger(){
+			super.trigger();
+			volume = envelopeRegister >> 4;
+			envelopeTimer = envelopeRegister & 7;
+		}
+
+		void clockEnvelope(){
+			int period = envelopeRegister & 7;
+			if(period == 0 || --envelopeTimer > 0)
+				return;
+			envelopeTimer = period;
+			if((envelopeRegister & 0x08) != 0){
+				if(volume < 15)
+					volume++;
+			}else if(volume > 0){
+				volume--;
+			}
+		}
+
+		@Override
+		void powerOff(){
+			super.powerOff();
+			envelopeRegister = volume = envelopeTimer = 0;
+		}
+
+		@Override
+		void saveState(ByteBuffer buffer){
+			super.saveState(buffer);
+			buffer.put((byte)envelopeRegister);
+			buffer.put((byte)volume);
+			buffer.put((byte)envelopeTimer);
+		}
+
+		@Override
+		void loadState(ByteBuffer buffer){
+			super.loadState(buffer);
+			envelopeRegister = buffer.get() & 0xFF;
+			volume = buffer.get();
+			envelopeTimer = buffer.get();
+		}
+	}
+
+	private final class Square extends EnvelopeChannel {
+
+		private final boolean hasSweep;
+
+		int duty;
+		int dutyStep;
+
+		int sweepRegister;
+		int sweepTimer;
+		int shadowFrequency;
+		boolean sweepEnabled;
+
+		Square(int index, boolean hasSweep){
+			super(index);
+			this.hasSweep = hasSweep;
+		}
+
+		@Override
+		int maxLength(){
+			return 64;
+		}
+
+		void writeLengthDuty(char data){
+			duty = data >> 6;
+			length = 64 - (data & 0x3F);
+		}
+
+		void writeSweep(char data){
+			sweepRegister = data;
+		}
+
+		@Override
+		void trigger(){
+			super.trigger();
+			if(!hasSweep)
+				return;
+			shadowFrequency = frequency;
+			int sweepPeriod = (sweepRegister >> 4) & 7;
+			sweepTimer = (sweepPeriod == 0) ? 8 : sweepPeriod;
+			sweepEnabled = sweepPeriod != 0 || (sweepRegister & 7) != 0;
+			if((sweepRegister & 7) != 0)
+				sweptFrequency();
+		}
+
+		//the next sweep frequency; disables the channel when it overflows
+		private int sweptFrequency(){
+			int delta = shadowFrequency >> (sweepRegister & 7);
+			int swept = ((sweepRegister & 0x08) != 0) ? shadowFrequency - delta : shadowFrequency + delta;
+			if(swept > 2047)
+				enabled = false;
+			return swept;
+		}
+
+		void clockSweep(){
+			if(--sweepTimer > 0)
+				return;
+			int sweepPeriod = (sweepRegister >> 4) & 7;
+			sweepTimer = (sweepPeriod == 0) ? 8 : sweepPeriod;
+			if(!sweepEnabled || sweepPeriod == 0)
+				return;
+			int swept = sweptFrequency();
+			if(swept <= 2047 && (sweepRegister & 7) != 0){
+				frequency = shadowFrequency = swept;
+				sweptFrequency();
+			}
+		}
+
+		@Override
+		int period(){
+			return (2048 - frequency) * 4;
+		}
+
+		@Override
+		void step(){
+			dutyStep = (dutyStep + 1) & 7;
+		}
+
+		@Override
+		void skip(long steps){
+			dutyStep = (int)((dutyStep + steps) & 7);
+		}
+
+		@Override
+		int level(){
+			if(!enabled)
+				return 0;
+			return (DUTY_WAVEFORMS[duty][dutyStep] != 0) ? volume : -volume;
+		}
+
+		@Override
+		void powerOff(){
+			super.powerOff();
+			duty = sweepRegister = 0;
+			sweepEnabled = false;
+		}
+
+		@Override
+		void saveState(ByteBuffer buffer){
+			super.saveState(buffer);
+			buffer.put((byte)duty);
+			buffer.put((byte)sweepRegister);
+			buffer.put((byte)sweepTimer);
+			buffer.putShort((short)shadowFrequency);
+			buffer.put((byte)(sweepEnabled ? 1 : 0));
+		}
+
+		@Override
+		void loadState(ByteBuffer buffer){
+			super.loadState(buffer);
+			duty = buffer.get();
+			sweepRegister = buffer.get() & 0xFF;
+			sweepTimer = buffer.get();
+			shadowFrequency = buffer.getShort();
+			sweepEnabled = buffer.get() != 0;
+		}
+	}
+
+	private final class Wave extends Channel {
+
+		final byte[] ram = new byte[16];
+		int volumeShift = 4;	//NR32: 4 mutes
+		int position;
+
+		Wave(int index){
+			super(index);
+		}
+
+		@Override
+		int maxLength(){
+			return 256;
+		}
+
+		void writeDAC(char data){
+			dacOn = (data & 0x80) != 0;
+			if(!dacOn)
+				enabled = false;
+		}
+
+		void writeLength(char data){
+			length = 256 - data;
+		}
+
+		void writeVolume(char data){
+			int code = (data >> 5) & 3;
+			volumeShift = (code == 0) ? 4 : code - 1;
+		}
+
+		@Override
+		void trigger(){
+			super.trigger();
+			position = 0;
+		}
+
+		@Override
+		int period(){
+			return (2048 - frequency) * 2;
+		}
+
+		@Override
+		void step(){
+			position = (position + 1) & 31;
+		}
+
+		@Override
+		void skip(long steps){
+			position = (int)((position + steps) & 31);
+		}
+
+		@Override
+		int level(){
+			if(!enabled || volumeShift == 4)
+				return 0;
+			int sample = ram[position >> 1];
+			sample = ((position & 1) == 0) ? (sample >> 4) & 0xF : sample & 0xF;
+			return (sample >> volumeShift) * 2 - (15 >> volumeShift);
+		}
+
+		@Override
+		void powerOff(){
+			super.powerOff();
+			volumeShift = 4;
+		}
+
+		@Override
+		void saveState(ByteBuffer buffer){
+			super.saveState(buffer);
+			buffer.put((byte)volumeShift);
+			buffer.put(ram);
+		}
+
+		@Override
+		void loadState(ByteBuffer buffer){
+			super.loadState(buffer);
+			volumeShift = buffer.get();
+			buffer.get(ram);
+		}
+	}
+
+	private final class Noise extends EnvelopeChannel {
+
+		int polynomial;	//NR43
+		int lfsr = 0x7FFF;
+
+		Noise(int index){
+			super(index);
+		}
+
+		@Override
+		int maxLength(){
+			return 64;
+		}
+
+		void writeLength(char data){
+			length = 64 - (data & 0x3F);
+		}
+
+		void writePolynomial(char data){
+			polynomial = data;
+		}
+
+		@Override
+		void writeControl(char data){
+			lengthEnabled = (data & 0x40) != 0;
+			if((data & 0x80) != 0)
+				trigger();
+		}
+
+		@Override
+		void trigger(){
+			lfsr = 0x7FFF;
+			super.trigger();
+		}
+
+		@Override
+		int period(){
+			int divisor = polynomial & 7;
+			return ((divisor == 0) ? 8 : divisor * 16) << (polynomial >> 4);
+		}
+
+		@Override
+		void step(){
+			int feedback = (lfsr ^ (lfsr >> 1)) & 1;
+			lfsr = (lfsr >> 1) | (feedback << 14);
+			if((polynomial & 0x08) != 0)
+				lfsr = (lfsr & ~0x40) | (feedback << 6);
+		}
+
+		@Override
+		void skip(long steps){
+			//the LFSR restarts on the next trigger anyway
+		}
+
+		@Override
+		int level(){
+			if(!enabled)
+				return 0;
+			return ((lfsr & 1) == 0) ? volume : -volume;
+		}
+
+		@Override
+		void powerOff(){
+			super.powerOff();
+			polynomial = 0;
+		}
+
+		@Override
+		void saveState(ByteBuffer buffer){
+			super.saveState(buffer);
+			buffer.put((byte)polynomial);
+		}
+
+		@Override
+		void loadState(ByteBuffer buffer){
+			super.loadState(buffer);
+			polynomial = buffer.get() & 0xFF;
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+package emulator;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Connects the APU to an AudioSink: the APU hands over blocks of samples on the
+ * emulation thread, they go through an AudioRing, and a drain thread feeds them to
+ * the sink. The emulation thread never waits for the sink unless the output is
+ * lossless:
+ *  - realtime outputs (a sound card) drop what doesn't fit into the ring, so a slow
+ *    or stalled device can never stall emulation;
+ *  - lossless outputs (files, measurements) make the emulation thread wait for room,
+ *    so every sample arrives, however fast emulation runs.
+ */
+public class AudioOutput {
+
+	public final static int DEFAULT_SAMPLE_RATE = 44100;
+
+	private final static int DRAIN_CHUNK = 2048;
+
+	private final AudioSink sink;
+	private final int sampleRate;
+	private final boolean lossless;
+	private final AudioRing ring;
+
+	private final Thread drainer;
+	private volatile Thread producer;
+	private volatile boolean closing = false;
+	private volatile IOException sinkError;
+
+	//producer side
+	private long droppedSamples;
+
+	/*
+	 * Opens the sink. bufferMillis is the capacity of the ring, the most audio that can
+	 * be waiting between the APU and the sink.
+	 */
+	public AudioOutput(AudioSink sink, int sampleRate, int bufferMillis, boolean lossless) throws IOException {
+
+		this.sink = sink;
+		this.sampleRate = sampleRate;
+		this.lossless = lossless;
+		this.ring = new AudioRing(2 * (int)((long)sampleRate * bufferMillis / 1000));
+
+		sink.open(sampleRate);
+
+		drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "audio-output");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/*
+	 * A realtime output without sink or drain thread: whoever plays the device takes
+	 * the samples with poll(). FramePacerBenchmark uses one as a sound card
+	 * running on a simulated clock.
+	 */
+	AudioOutput(int sampleRate, int bufferMillis){
+		this.sink = null;
+		this.sampleRate = sampleRate;
+		this.lossless = false;
+		this.ring = new AudioRing(2 * (int)((long)sampleRate * bufferMillis / 1000));
+		this.drainer = null;
+	}
+
+	public int getSampleRate(){
+		return sampleRate;
+	}
+
+	//stereo samples waiting in the ring
+	public int getBufferedFrames(){
+		return ring.available() / 2;
+	}
+
+	public int getCapacityFrames(){
+		return ring.capacity() / 2;
+	}
+
+	//stereo samples a realtime output had to drop because the ring was full
+	public long getDroppedFrames(){
+		return droppedSamples / 2;
+	}
+
+	//called by the APU on the emulation thread
+	void write(short[] block, int offset, int length){
+
+		int done = ring.offer(block, offset, length);
+		LockSupport.unpark(drainer);
+		if(done == length)
+			return;
+
+		if(!lossless){
+			droppedSamples += length - done;
+			return;
+		}
+		producer = Thread.currentThread();
+		while(done < length){
+			if(sinkError != null)
+				throw new IllegalStateException("Audio output failed", sinkError);
+			LockSupport.parkNanos(this, 100000);
+			done += ring.offer(block, offset + done, length - done);
+		}
+	}
+
+	//takes up to length waiting samples; for outputs without a drain thread
+	int poll(short[] block, int offset, int length){
+		return ring.poll(block, offset, length);
+	}
+
+	private void drainLoop(){
+
+		short[] chunk = new short[DRAIN_CHUNK];
+		try{
+			while(true){
+				boolean finished = closing;
+				int count = ring.poll(chunk, 0, chunk.length);
+				if(count == 0){
+					if(finished)
+						break;
+					LockSupport.parkNanos(this, 1000000);
+					continue;
+				}
+				Thread waiting = producer;
+				if(waiting != null)
+					LockSupport.unpark(waiting);
+				sink.write(chunk, 0, count);
+			}
+		}catch(IOException e){
+			sinkError = e;
+		}
+	}
+
+	//writes out what is still in the ring and closes the sink; emulation thread, after the APU let go of it
+	public void close() throws IOException {
+		if(drainer == null)
+			return;
+		closing = true;
+		LockSupport.unpark(drainer);
+		try{
+			drainer.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		sink.close();
+		if(sinkError != null)
+			throw sinkError;
+	}
+
+}
@@ -0,0 +1,65 @@
+package emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Single producer, single consumer ring of 16 bit samples. The producer (the
+ * emulation thread, through the APU) and the consumer (the drain thread of an
+ * AudioOutput) each own one position and only read the other's; positions are
+ * published with ordered stores, so neither side ever takes a lock. Neither offer()
+ * nor poll() blocks; waiting is left to the caller.
+ *
+ * Samples are interleaved stereo, so counts are kept even: a left/right pair is
+ * never split between two offers or polls.
+ */
+final class AudioRing {
+
+	private final short[] samples;
+	private final int mask;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong read = new AtomicLong();
+
+	//capacity in samples, rounded up to a power of two
+	AudioRing(int capacity){
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		samples = new short[size];
+		mask = size - 1;
+	}
+
+	int capacity(){
+		return samples.length;
+	}
+
+	//samples waiting to be read
+	int available(){
+		return (int)(written.get() - read.get());
+	}
+
+	//copies as much of the block as fits and returns how many samples that was; producer only
+	int offer(short[] block, int offset, int length){
+
+		long position = written.get();
+		int count = Math.min(length, samples.length - (int)(position - read.get())) & ~1;
+		int first = (int)(position & mask);
+		int head = Math.min(count, samples.length - first);
+		System.arraycopy(block, offset, samples, first, head);
+		System.arraycopy(block, offset + head, samples, 0, count - head);
+		written.lazySet(position + count);
+		return count;
+	}
+
+	//copies up to length waiting samples into block and returns how many; consumer only
+	int poll(short[] block, int offset, int length){
+
+		long position = read.get();
+		int count = Math.min(length, (int)(written.get() - position)) & ~1;
+		int first = (int)(position & mask);
+		int head = Math.min(count, samples.length - first);
+		System.arraycopy(samples, first, block, offset, head);
+		System.arraycopy(samples, 0, block, offset + head, count - head);
+		read.lazySet(position + count);
+		return count;
+	}
+
+}
@@ -0,0 +1,34 @@
+package emulator;
+
+import java.io.IOException;
+
+/*
+ * Destination of the APU's output: interleaved stereo 16 bit samples (left, right)
+ * at the sample rate given to open(). A sink is driven by the drain thread of an
+ * AudioOutput and may block in write(); a sound card line does, which is what paces
+ * the drain thread.
+ */
+public interface AudioSink {
+
+	void open(int sampleRate) throws IOException;
+
+	//length is in shorts and always even
+	void write(short[] samples, int offset, int length) throws IOException;
+
+	void close() throws IOException;
+
+	//discards everything; for measuring the cost of synthesis alone
+	AudioSink NULL = new AudioSink() {
+		@Override
+		public void open(int sampleRate) {
+		}
+
+		@Override
+		public void write(short[] samples, int offset, int length) {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+}
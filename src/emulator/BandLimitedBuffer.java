@@ -0,0 +1,110 @@
+package emulator;
+
+import java.util.Arrays;
+
+/*
+ * Band-limited step synthesis, after blip_buf: the APU's channels change level at
+ * exact clock cycles (about 2 MHz at the fastest), and each change is added here as
+ * a band-limited step at its fractional position in the output sample stream. The
+ * steps are windowed sinc kernels in a delta buffer; integrating the buffer gives
+ * the output samples, free of the aliasing that picking the level at each output
+ * sample produces.
+ *
+ * Time is in clock cycles from the start of the current segment. A segment is
+ * closed by endSegment(), after which its complete samples can be read; the
+ * fraction of a sample left over carries into the next segment, so no rounding
+ * accumulates at segment boundaries.
+ */
+final class BandLimitedBuffer {
+
+	private final static int PHASE_BITS = 5;
+	private final static int PHASES = 1 << PHASE_BITS;
+	private final static int HALF_WIDTH = 8;
+	private final static int WIDTH = 2 * HALF_WIDTH;
+
+	private final static int FRACTION_BITS = 32;
+
+	//high-pass coefficient of the DC blocker (the Game Boy's output capacitor), per sample at 44.1-48 kHz
+	private final static float HIGH_PASS = 0.999f;
+
+	//impulse response for each phase of the step within a sample, each summing to 1
+	private final static float[][] KERNELS = new float[PHASES][WIDTH];
+
+	static {
+		double cutoff = 0.9;	//of the output Nyquist frequency, leaving room for the transition band
+		for(int phase = 0; phase < PHASES; phase++){
+			double sum = 0;
+			for(int tap = 0; tap < WIDTH; tap++){
+				double x = tap - HALF_WIDTH + 1 - phase / (double)PHASES;
+				double sinc = (x == 0) ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+				double window = 0.42 + 0.5 * Math.cos(Math.PI * x / HALF_WIDTH) + 0.08 * Math.cos(2 * Math.PI * x / HALF_WIDTH);
+				KERNELS[phase][tap] = (float)(sinc * window);
+				sum += KERNELS[phase][tap];
+			}
+			for(int tap = 0; tap < WIDTH; tap++)
+				KERNELS[phase][tap] /= sum;
+		}
+	}
+
+	private final float[] deltas;
+	private final int capacity;
+
+	private long factor;	//output samples per clock cycle, fixed point
+	private long offset;	//position of the segment start in samples, fixed point; integer part is 0 after read()
+
+	private float integrator;
+	private float lastInput;
+	private float lastOutput;
+
+	//capacity: the most samples a segment (plus unread samples) can span
+	BandLimitedBuffer(int capacity){
+		this.capacity = capacity;
+		this.deltas = new float[capacity + WIDTH];
+	}
+
+	void setRate(double samplesPerCycle){
+		factor = (long)(samplesPerCycle * (1L << FRACTION_BITS));
+	}
+
+	//a step of the given height at the given clock cycle of the current segment
+	void addDelta(long time, float delta){
+		long position = offset + time * factor;
+		int index = (int)(position >>> FRACTION_BITS);
+		float[] kernel = KERNELS[(int)(position >>> (FRACTION_BITS - PHASE_BITS)) & (PHASES - 1)];
+		for(int tap = 0; tap < WIDTH; tap++)
+			deltas[index + tap] += delta * kernel[tap];
+	}
+
+	//closes the segment after the given clock cycles and returns the samples now ready
+	int endSegment(long duration){
+		offset += duration * factor;
+		int available = (int)(offset >>> FRACTION_BITS);
+		if(available > capacity)
+			throw new IllegalStateException("Segment too long for the buffer: " + available + " samples");
+		return available;
+	}
+
+	/*
+	 * Integrates count ready samples into out, from offset with the given stride,
+	 * scaled by gain and clipped to 16 bits, and removes them from the buffer.
+	 */
+	void read(short[] out, int outOffset, int stride, int count, float gain){
+		for(int i = 0; i < count; i++){
+			integrator += deltas[i];
+			lastOutput = integrator - lastInput + HIGH_PASS * lastOutput;
+			lastInput = integrator;
+			int sample = (int)(lastOutput * gain);
+			out[outOffset + i * stride] = (short)Math.max(Math.min(sample, Short.MAX_VALUE), Short.MIN_VALUE);
+		}
+		System.arraycopy(deltas, count, deltas, 0, deltas.length - count);
+		Arrays.fill(deltas, deltas.length - count, deltas.length, 0);
+		offset -= (long)count << FRACTION_BITS;
+	}
+
+	void clear(){
+		Arrays.fill(deltas, 0);
+		offset = 0;
+		integrator = lastInput = lastOutput = 0;
+	}
+
+}
@@ -1,5 +1,6 @@
 package emulator;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
@@ -19,6 +20,8 @@ enum Interrupt{
 
 public class CPU extends Thread{
 	
+	private final static CPUState[] STATES = CPUState.values();
+	
 	public volatile boolean debugFlag = false;
 	
 	public final static int PROCESSOR_FREQUENCY_HZ = 4194304;
@@ -34,8 +37,8 @@ public class CPU extends Thread{
 	
 	private CPUState state;
 	
-	private int M; //machine cycles
-	private int T;	//clock cycles
+	private long M; //machine cycles
+	private long T;	//clock cycles
 	
 	private char[] registers;
 	
@@ -65,6 +68,12 @@ public class CPU extends Thread{
 	private int cntUntilDisableInterrupt = -1;
 	
 	private boolean isStopped = false;
+	
+	//optional instrumentation; while all of it is null the CPU only tests 'instrumented'
+	private TraceRecorder tracer;
+	private Profiler profiler;
+	private OpcodeStats opcodeStats;
+	private boolean instrumented = false;
 //	currInterrupt = type;
 
 	public CPU(GameBoy gameBoy, CyclicBarrier barrier) {
@@ -89,32 +98,20 @@ public class CPU extends Thread{
 			
 			
 			long startTime = System.nanoTime();
+			long startCycles = T;
 			
-			if(this.state == CPUState.CPU_STATE_EXECUTING){
-				
-				if(isStopped){
-					execStoppedState();
-				}else{
-					
-					updateInterruptStates();
-					
-					if(IME)
-						serviceInterrrupts();
-					
-					fetchNextOpcode();
-					decodeAndExecuteOpcode();
-				}
-				
-
-			}else{
-				try {
-					barrier.await();
-				} catch (InterruptedException | BrokenBarrierException e) {
-					e.printStackTrace();
-				}
+			try {
+				step();
+			} catch (IllegalStateException e) {
+				System.err.println(e.getMessage());
+				System.exit(0);
 			}
 //			System.out.println("CPU State: "+this.state);
 			
+			//a FramePacer waits once per frame instead
+			if(gameBoy.getPacer() != null)
+				continue;
+			
 			long endTime = System.nanoTime();
 			long stallTimeNano = Math.max(((NANOSECONDS_IN_SECOND/PROCESSOR_DAMPED_FREQUENCY_HZ) 
 					- (endTime - startTime)), 0);
@@ -127,10 +124,161 @@ public class CPU extends Thread{
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
+			
+			EmulationMetrics metrics = gameBoy.getMetrics();
+			if(metrics != null){
+				long wakeTime = System.nanoTime();
+				metrics.pacedStep(wakeTime - startTime, wakeTime - endTime, (int)(T - startCycles));
+			}
 
 		}
 	}
 	
+	/*
+	 * Executes a single instruction (or one stopped/waiting tick) without any pacing.
+	 * Used by run() as well as by the headless runners, which drive the CPU directly.
+	 * Throws IllegalStateException when an unsupported opcode is encountered.
+	 */
+	public void step(){
+		
+		if(this.state == CPUState.CPU_STATE_EXECUTING){
+			
+			gameBoy.inputHandler.pollInput();
+			
+			if(isStopped){
+				execStoppedState();
+			}else{
+				
+				updateInterruptStates();
+				
+				if(IME)
+					serviceInterrrupts();
+				
+				fetchNextOpcode();
+				if(instrumented)
+					decodeAndExecuteInstrumented();
+				else
+					decodeAndExecuteOpcode();
+			}
+			
+
+		}else{
+			try {
+				barrier.await();
+			} catch (InterruptedException | BrokenBarrierException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if(gameBoy.serialPort.active)
+			gameBoy.serialPort.clock(T);
+		
+		if(gameBoy.frameListenersPending)
+			gameBoy.dispatchFrameListeners();
+	}
+	
+	public long getClockCycles(){
+		return T;
+	}
+	
+	void setTracer(TraceRecorder tracer){
+		this.tracer = tracer;
+		updateInstrumented();
+	}
+	
+	void setProfiler(Profiler profiler){
+		this.profiler = profiler;
+		updateInstrumented();
+	}
+	
+	void setOpcodeStats(OpcodeStats opcodeStats){
+		this.opcodeStats = opcodeStats;
+		updateInstrumented();
+	}
+	
+	private void updateInstrumented(){
+		instrumented = (tracer != null || profiler != null || opcodeStats != null);
+	}
+	
+	//decodeAndExecuteOpcode() with the trace, profiler and opcode counters fed around it
+	private void decodeAndExecuteInstrumented(){
+		
+		if(tracer != null)
+			tracer.record(pc, currentOpcode, registers, sp, T, IME);
+		
+		int fetchPC = pc;
+		int fetchSP = sp;
+		char fetchOpcode = currentOpcode;	//replaced by the second byte of CB opcodes
+		long fetchM = M;
+		long fetchT = T;
+		
+		decodeAndExecuteOpcode();
+		
+		if(profiler != null)
+			profiler.instructionExecuted(fetchPC, fetchOpcode, fetchSP, sp, T);
+		if(opcodeStats != null)
+			opcodeStats.instructionExecuted((fetchOpcode == 0xCB) ? (0x100 | currentOpcode) : fetchOpcode,
+					(int)(M - fetchM), (int)(T - fetchT));
+	}
+	
+	public int getPC(){
+		return pc;
+	}
+	
+	//for the debugger console
+	String describeRegisters(){
+		return String.format("A=%02X F=%02X B=%02X C=%02X D=%02X E=%02X H=%02X L=%02X SP=%04X PC=%04X IME=%d cycles=%d",
+				(int)registers[INDEX_A], (int)registers[INDEX_F], (int)registers[INDEX_B], (int)registers[INDEX_C],
+				(int)registers[INDEX_D], (int)registers[INDEX_E], (int)registers[INDEX_H], (int)registers[INDEX_L],
+				sp, pc, IME ? 1 : 0, T);
+	}
+	
+	//see GameBoy.fork()
+	void copyStateFrom(CPU other){
+		System.arraycopy(other.registers, 0, registers, 0, registers.length);
+		pc = other.pc;
+		sp = other.sp;
+		M = other.M;
+		T = other.T;
+		currentOpcode = other.currentOpcode;
+		IME = other.IME;
+		isStopped = other.isStopped;
+		cntUntinEnableInterrupt = other.cntUntinEnableInterrupt;
+		cntUntilDisableInterrupt = other.cntUntilDisableInterrupt;
+		state = other.state;
+	}
+	
+	//see SaveState
+	void saveState(ByteBuffer buffer){
+		for(char register : registers)
+			buffer.put((byte)register);
+		buffer.putShort((short)pc);
+		buffer.putShort((short)sp);
+		buffer.putLong(M);
+		buffer.putLong(T);
+		buffer.putChar(currentOpcode);
+		buffer.put((byte)(IME ? 1 : 0));
+		buffer.put((byte)(isStopped ? 1 : 0));
+		buffer.putInt(cntUntinEnableInterrupt);
+		buffer.putInt(cntUntilDisableInterrupt);
+		buffer.put((byte)state.ordinal());
+	}
+	
+	void loadState(ByteBuffer buffer){
+		for(int i = 0; i < registers.length; i++)
+			registers[i] = (char)(buffer.get() & 0xFF);
+		pc = buffer.getShort() & 0xFFFF;
+		sp = buffer.getShort() & 0xFFFF;
+		M = buffer.getLong();
+		T = buffer.getLong();
+		currentOpcode = buffer.getChar();
+		IME = buffer.get() != 0;
+		isStopped = buffer.get() != 0;
+		cntUntinEnableInterrupt = buffer.getInt();
+		cntUntilDisableInterrupt = buffer.getInt();
+		state = STATES[buffer.get()];
+	}
+	
 	public synchronized void setState(CPUState state){
 		this.state = state;
 	}
@@ -141,12 +289,12 @@ public class CPU extends Thread{
 	
 	private void serviceInterrrupts(){
 		
-		char interruptReg = gameBoy.memory.readByte(GameBoy.INTERRUPT_FLAG_REGISTER_ADDR);
+		char interruptReg = readByte(GameBoy.INTERRUPT_FLAG_REGISTER_ADDR);
 		for(int i = 0; i < 5; i++){
 			int bit = (interruptReg >> i) & 0x1;
 			if(bit > 0){
 				
-				char ieEnableReg = gameBoy.memory.readByte(0xFFFF);
+				char ieEnableReg = readByte(0xFFFF);
 				if(((ieEnableReg >> i) & 0x1) == 0)
 					continue;
 				
@@ -202,27 +350,17 @@ public class CPU extends Thread{
 	
 	private void fetchNextOpcode(){
 		
-		currentOpcode = gameBoy.memory.readByte(pc);
+		currentOpcode = readByte(pc);
 		
 	}
 	
+	//the CPU's own reads: the only ones watchpoints see (see Debugger)
+	private char readByte(int address){
+		return gameBoy.memory.readByte(address, HardwareType.CPU);
+	}
+	
 	private void decodeAndExecuteOpcode(){
 		
-//		System.out.print("pc: " + Integer.toHexString(pc).toUpperCase());
-//		System.out.print(" opcode: " + Integer.toHexString(currentOpcode).toUpperCase() + ((currentOpcode != 0xCB)?"\n":""));
-//		
-//		if(pc == 0xFF8D){
-//			System.out.println("-->");
-//		}
-//		
-//		if(pc == 0x3FF){
-//			System.out.println("");
-//		}
-
-//		if(pc == 0x26C0){
-//			System.out.println("stat: " + Integer.toHexString(gameBoy.memory.readByte(LCDController.LCD_REGISTER_ADDR)));
-//		}
-		
 		switch(currentOpcode){
 		
 		/*longer opcodes with prefix cb*/
@@ -392,7 +530,7 @@ public class CPU extends Thread{
 			
 			case 0x3E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				
 				if((value & 1) == 0)
 					registers[INDEX_F] &= ~CARRY_BIT;
@@ -679,7 +817,7 @@ public class CPU extends Thread{
 			
 			case 0x0E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				char rotatedBit = (char)(value &1);
 				value = (char) ((rotatedBit << 7) | (value >> 1));
 				
@@ -701,7 +839,7 @@ public class CPU extends Thread{
 			
 			case 0x16:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				char rotatedBit = (char)(value >> 7);
 				char oldCarry = (char)((registers[INDEX_F] & CARRY_BIT) >> 4);
 				value = (char)((oldCarry | (value << 1)) & 0xFF);
@@ -724,7 +862,7 @@ public class CPU extends Thread{
 			
 			case 0x26:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				char shiftedBit = (char)(value >> 7);
 				value = (char)((value << 1) & 0xFF);
 				
@@ -746,7 +884,7 @@ public class CPU extends Thread{
 			
 			case 0x2E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				char shiftedBit = (char)(value &1);
 				char lastBit = (char)(value >> 7);
 				value = (char)((lastBit << 7 | value >> 1) & 0xFF);
@@ -769,7 +907,7 @@ public class CPU extends Thread{
 			
 			case 0x36:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				char lowerNibble = (char)(value &0xFF);
 				char upperNibble = (char)(value >> 8);
 				
@@ -791,7 +929,7 @@ public class CPU extends Thread{
 			
 			case 0x46:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 0)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -809,7 +947,7 @@ public class CPU extends Thread{
 			case 0x4E:{
 				
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 1)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -827,7 +965,7 @@ public class CPU extends Thread{
 			
 			case 0x56:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 2)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -844,7 +982,7 @@ public class CPU extends Thread{
 			
 			case 0x5E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 3)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -861,7 +999,7 @@ public class CPU extends Thread{
 			
 			case 0x66:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 4)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -878,7 +1016,7 @@ public class CPU extends Thread{
 			
 			case 0x6E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 5)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -895,7 +1033,7 @@ public class CPU extends Thread{
 			
 			case 0x76:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 6)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -912,7 +1050,7 @@ public class CPU extends Thread{
 			
 			case 0x7E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				if((value & (1 << 7)) == 0)
 					setFlags(ZERO_BIT);
 				else
@@ -929,7 +1067,7 @@ public class CPU extends Thread{
 			
 			case 0x86:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 0);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -941,7 +1079,7 @@ public class CPU extends Thread{
 			
 			case 0x8E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 1);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -953,7 +1091,7 @@ public class CPU extends Thread{
 			
 			case 0x96:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 2);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -965,7 +1103,7 @@ public class CPU extends Thread{
 			
 			case 0x9E:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 3);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -977,7 +1115,7 @@ public class CPU extends Thread{
 			
 			case 0xA6:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 4);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -989,7 +1127,7 @@ public class CPU extends Thread{
 			
 			case 0xAE:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 5);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1001,7 +1139,7 @@ public class CPU extends Thread{
 			
 			case 0xB6:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 6);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1013,7 +1151,7 @@ public class CPU extends Thread{
 			
 			case 0xBE:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value &= ~(1 << 7);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1025,7 +1163,7 @@ public class CPU extends Thread{
 			
 			case 0xC6:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 0);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1037,7 +1175,7 @@ public class CPU extends Thread{
 			
 			case 0xCE:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 1);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1049,7 +1187,7 @@ public class CPU extends Thread{
 			
 			case 0xD6:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 2);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1061,7 +1199,7 @@ public class CPU extends Thread{
 			
 			case 0xDE:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 3);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1073,7 +1211,7 @@ public class CPU extends Thread{
 			
 			case 0xE6:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 4);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1085,7 +1223,7 @@ public class CPU extends Thread{
 			
 			case 0xEE:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 5);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1097,7 +1235,7 @@ public class CPU extends Thread{
 			
 			case 0xF6:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 6);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1109,7 +1247,7 @@ public class CPU extends Thread{
 			
 			case 0xFE:{
 				char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-				char value = gameBoy.memory.readByte(address);
+				char value = readByte(address);
 				value |= (1 << 7);
 				gameBoy.memory.writeByte(address, value, HardwareType.CPU);
 				
@@ -1532,8 +1670,7 @@ public class CPU extends Thread{
 			case 0xFF:	setBit(INDEX_A, 7);		break;
 			
 				default:
-					System.err.println("Unsupported opcode : CB "+Integer.toHexString(currentOpcode).toUpperCase());
-					System.exit(0);
+					throw new IllegalStateException("Unsupported opcode : CB "+Integer.toHexString(currentOpcode).toUpperCase());
 			}
 			
 			break;
@@ -1550,7 +1687,7 @@ public class CPU extends Thread{
 		/****************************/
 		
 		case 0x06:{
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			registers[INDEX_B] = immediate;
 			
@@ -1561,7 +1698,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0x0E:{
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			registers[INDEX_C] = immediate;
 			
@@ -1573,7 +1710,7 @@ public class CPU extends Thread{
 		
 		case 0x16: {
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			registers[INDEX_D] = immediate;
 			
@@ -1585,7 +1722,7 @@ public class CPU extends Thread{
 		
 		case 0x1E: {
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			registers[INDEX_E] = immediate;
 			
@@ -1597,7 +1734,7 @@ public class CPU extends Thread{
 		
 		case 0x26: {
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			registers[INDEX_H] = immediate;
 			
@@ -1609,7 +1746,7 @@ public class CPU extends Thread{
 		
 		case 0x2E: {
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			registers[INDEX_L] = immediate;
 			
@@ -1683,7 +1820,7 @@ public class CPU extends Thread{
 		
 		case 0x7E: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			registers[INDEX_A] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -1738,7 +1875,7 @@ public class CPU extends Thread{
 		
 		case 0x46: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_B] = gameBoy.memory.readByte(address);
+			registers[INDEX_B] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -1802,7 +1939,7 @@ public class CPU extends Thread{
 		
 		case 0x4E: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_C] = gameBoy.memory.readByte(address);
+			registers[INDEX_C] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -1866,7 +2003,7 @@ public class CPU extends Thread{
 		
 		case 0x56: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_D] = gameBoy.memory.readByte(address);
+			registers[INDEX_D] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -1930,7 +2067,7 @@ public class CPU extends Thread{
 		
 		case 0x5E: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_E] = gameBoy.memory.readByte(address);
+			registers[INDEX_E] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -1994,7 +2131,7 @@ public class CPU extends Thread{
 		
 		case 0x66: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_H] = gameBoy.memory.readByte(address);
+			registers[INDEX_H] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -2059,7 +2196,7 @@ public class CPU extends Thread{
 		
 		case 0x6E: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_L] = gameBoy.memory.readByte(address);
+			registers[INDEX_L] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -2129,7 +2266,7 @@ public class CPU extends Thread{
 		
 		case 0x36: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			gameBoy.memory.writeByte(address, gameBoy.memory.readByte(++pc), HardwareType.CPU);
+			gameBoy.memory.writeByte(address, readByte(++pc), HardwareType.CPU);
 			
 			M += 3;
 			T += 12;
@@ -2139,7 +2276,7 @@ public class CPU extends Thread{
 		
 		case 0x0A: {
 			char address = (char)((registers[INDEX_B] << 8) | registers[INDEX_C]);
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			registers[INDEX_A] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -2149,7 +2286,7 @@ public class CPU extends Thread{
 		
 		case 0x1A: {
 			char address = (char)((registers[INDEX_D] << 8) | registers[INDEX_E]);
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			registers[INDEX_A] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -2158,8 +2295,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0xFA: {
-			char address = (char)(gameBoy.memory.readByte(++pc) | (gameBoy.memory.readByte(++pc) << 8));
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			char address = (char)(readByte(++pc) | (readByte(++pc) << 8));
+			registers[INDEX_A] = readByte(address);
 			
 			M += 4;
 			T += 16;
@@ -2168,7 +2305,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0x3E: {
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			registers[INDEX_A] = immediate;
 			
 			M += 2;
@@ -2262,7 +2399,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xEA: {
-			char address = (char)(gameBoy.memory.readByte(++pc) | (gameBoy.memory.readByte(++pc) << 8));
+			char address = (char)(readByte(++pc) | (readByte(++pc) << 8));
 			gameBoy.memory.writeByte(address, registers[INDEX_A], HardwareType.CPU);
 			
 			M += 4;
@@ -2272,8 +2409,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0xF2: {
-			char address = (gameBoy.memory.readByte(0xFF00 + registers[INDEX_C]));
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			char address = (char)(0xFF00 + registers[INDEX_C]);
+			registers[INDEX_A] = readByte(address);
 			
 			M += 2;
 			T += 8;
@@ -2282,7 +2419,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xE2: {
-			char address = (gameBoy.memory.readByte(0xFF00 + registers[INDEX_C]));
+			char address = (char)(0xFF00 + registers[INDEX_C]);
 			gameBoy.memory.writeByte(address, registers[INDEX_A], HardwareType.CPU);
 			
 			M += 2;
@@ -2293,7 +2430,7 @@ public class CPU extends Thread{
 		
 		case 0x3A: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			registers[INDEX_A] = readByte(address);
 			
 			address--;
 			registers[INDEX_H] = (char)(address >> 8);
@@ -2321,7 +2458,7 @@ public class CPU extends Thread{
 		
 		case 0x2A: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			registers[INDEX_A] = gameBoy.memory.readByte(address);
+			registers[INDEX_A] = readByte(address);
 			
 			address++;
 			registers[INDEX_H] = (char)(address >> 8);
@@ -2348,7 +2485,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xE0: {
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			gameBoy.memory.writeByte(0xFF00 + immediate, registers[INDEX_A], HardwareType.CPU);
 			
@@ -2359,9 +2496,9 @@ public class CPU extends Thread{
 		}
 		
 		case 0xF0: {
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
-			registers[INDEX_A] = gameBoy.memory.readByte(0xFF00 + immediate);
+			registers[INDEX_A] = readByte(0xFF00 + immediate);
 						
 			M += 3;
 			T += 12;
@@ -2374,8 +2511,8 @@ public class CPU extends Thread{
 		/****************************/
 		
 		case 0x01: {
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			
 			registers[INDEX_B] = immediateMS;
 			registers[INDEX_C] = immediateLS;
@@ -2387,8 +2524,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0x11: {
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			
 			registers[INDEX_D] = immediateMS;
 			registers[INDEX_E] = immediateLS;
@@ -2400,8 +2537,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0x21: {
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			
 			registers[INDEX_H] = immediateMS;
 			registers[INDEX_L] = immediateLS;
@@ -2413,8 +2550,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0x31: {
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			
 			sp = (immediateMS << 8 | immediateLS);
 			
@@ -2435,7 +2572,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xF8: {
-			byte signedImmediate = (byte)(gameBoy.memory.readByte(++pc));
+			byte signedImmediate = (byte)(readByte(++pc));
 			char address = (char)((sp + signedImmediate)%0x10000);
 			
 			registers[INDEX_H] = (char)(address >> 8);
@@ -2465,8 +2602,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0x08: {
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			
 			char address = (char)((immediateMS << 8) | immediateLS);
 			
@@ -2534,9 +2671,9 @@ public class CPU extends Thread{
 		case 0xF1: {
 			
 			//Least significant nibble is always 0 in reg. F
-			registers[INDEX_F] = (char)(gameBoy.memory.readByte(sp) & 0xF0);
+			registers[INDEX_F] = (char)(readByte(sp) & 0xF0);
 			sp ++;
-			registers[INDEX_A] = gameBoy.memory.readByte(sp);
+			registers[INDEX_A] = readByte(sp);
 			sp ++;
 			
 			M += 4;
@@ -2547,9 +2684,9 @@ public class CPU extends Thread{
 		
 		case 0xC1: {
 			
-			registers[INDEX_C] = gameBoy.memory.readByte(sp);
+			registers[INDEX_C] = readByte(sp);
 			sp ++;
-			registers[INDEX_B] = gameBoy.memory.readByte(sp);
+			registers[INDEX_B] = readByte(sp);
 			sp ++;
 			
 			M += 4;
@@ -2560,9 +2697,9 @@ public class CPU extends Thread{
 		
 		case 0xD1: {
 			
-			registers[INDEX_E] = gameBoy.memory.readByte(sp);
+			registers[INDEX_E] = readByte(sp);
 			sp ++;
-			registers[INDEX_D] = gameBoy.memory.readByte(sp);
+			registers[INDEX_D] = readByte(sp);
 			sp ++;
 			
 			M += 4;
@@ -2573,9 +2710,9 @@ public class CPU extends Thread{
 		
 		case 0xE1: {
 			
-			registers[INDEX_L] = gameBoy.memory.readByte(sp);
+			registers[INDEX_L] = readByte(sp);
 			sp ++;
-			registers[INDEX_H] = gameBoy.memory.readByte(sp);
+			registers[INDEX_H] = readByte(sp);
 			sp ++;
 			
 			M += 4;
@@ -2814,7 +2951,7 @@ public class CPU extends Thread{
 		
 		case 0x86: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			char result = (char)((registers[INDEX_A] + gameBoy.memory.readByte(address)));
+			char result = (char)((registers[INDEX_A] + readByte(address)));
 			
 			//set z flag
 			if(result%0x100 == 0)
@@ -2826,7 +2963,7 @@ public class CPU extends Thread{
 			registers[INDEX_F] &= ~OP_BIT;
 			
 			//set h flag
-			if((registers[INDEX_A] &0xF) + (gameBoy.memory.readByte(address)) > 0xF)
+			if((registers[INDEX_A] &0xF) + (readByte(address)) > 0xF)
 				registers[INDEX_F] |= HALF_CARRY_BIT;
 			else
 				registers[INDEX_F] &= ~HALF_CARRY_BIT;
@@ -2846,7 +2983,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xC6: {
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			int result = ((registers[INDEX_A] + immediate));
 			
 			//set z flag
@@ -3104,7 +3241,7 @@ public class CPU extends Thread{
 		
 		case 0x8E: {
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]); 
-			int result = (registers[INDEX_A] + gameBoy.memory.readByte(address) + ((registers[INDEX_F] & CARRY_BIT) >> 4));
+			int result = (registers[INDEX_A] + readByte(address) + ((registers[INDEX_F] & CARRY_BIT) >> 4));
 			
 			//set z flag
 			if((result%0x100) == 0)
@@ -3116,7 +3253,7 @@ public class CPU extends Thread{
 			registers[INDEX_F] &= ~OP_BIT;
 			
 			//set h flag
-			if(((registers[INDEX_A] &0xF) + (gameBoy.memory.readByte(address) + ((registers[INDEX_F] & CARRY_BIT) >> 4)) > 0xF))
+			if(((registers[INDEX_A] &0xF) + (readByte(address) + ((registers[INDEX_F] & CARRY_BIT) >> 4)) > 0xF))
 				registers[INDEX_F] |= HALF_CARRY_BIT;
 			else
 				registers[INDEX_F] &= ~HALF_CARRY_BIT;
@@ -3136,7 +3273,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xCE: {
-//			char immediate = gameBoy.memory.readByte(++pc); 
+//			char immediate = readByte(++pc); 
 //			int result = (registers[INDEX_A] + immediate + ((registers[INDEX_F] & ZERO_BIT) >> 4));
 //			
 //			//set z flag
@@ -3162,7 +3299,7 @@ public class CPU extends Thread{
 //			
 //			registers[INDEX_A] = (char)(result % 0x100);
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			char carry = (char)((registers[INDEX_F] & CARRY_BIT) >> 4);
 			if((registers[INDEX_A] + immediate + carry) > 0xFF)
 				setFlags(CARRY_BIT);
@@ -3195,8 +3332,8 @@ public class CPU extends Thread{
 		
 		//just implement what I need atm
 		case 0xC3: {
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			
 			char address = (char)((immediateMS << 8) | immediateLS);
 			pc = address;
@@ -3338,7 +3475,7 @@ public class CPU extends Thread{
 		
 		case 0xAE:{
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			char value = gameBoy.memory.readByte(address);
+			char value = readByte(address);
 			registers[INDEX_A] = (char)((registers[INDEX_A] ^ value) & 0xFF);
 			
 			if(registers[INDEX_A] == 0)
@@ -3357,7 +3494,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xEE:{
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			registers[INDEX_A] = (char)((registers[INDEX_A] ^ immediate) & 0xFF);
 			
 			if(registers[INDEX_A] == 0)
@@ -3399,7 +3536,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0x20: {
-			byte signedImmediate = (byte)(gameBoy.memory.readByte(++pc));
+			byte signedImmediate = (byte)(readByte(++pc));
 			
 			//check not zero flag
 			if(((registers[INDEX_F] & ZERO_BIT) >> 4) == 0){
@@ -3444,8 +3581,8 @@ public class CPU extends Thread{
 		
 		case 0xCD: {
 			
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 				
 			sp --;
 			gameBoy.memory.writeByte( sp, (char)(pc+1 >> 8) ,HardwareType.CPU);
@@ -3508,9 +3645,9 @@ public class CPU extends Thread{
 		
 		case 0xC9: {
 			
-			char retAddLS = gameBoy.memory.readByte(sp);
+			char retAddLS = readByte(sp);
 			sp ++;
-			char retAddMS = gameBoy.memory.readByte(sp);
+			char retAddMS = readByte(sp);
 			sp ++;
 			
 			pc = (char)((retAddMS << 8) | retAddLS);
@@ -3535,7 +3672,7 @@ public class CPU extends Thread{
 		
 		case 0xFE: {
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			
 			char result = (char)(registers[INDEX_A] - immediate);
 			
@@ -3627,7 +3764,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0x28: {
-			byte signedImmediate = (byte)(gameBoy.memory.readByte(++pc));
+			byte signedImmediate = (byte)(readByte(++pc));
 			
 			//check not zero flag
 			if(((registers[INDEX_F] & ZERO_BIT) >> 4) != 0){
@@ -3672,7 +3809,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0x18: {
-			byte signedImmediate = (byte)gameBoy.memory.readByte(++pc);
+			byte signedImmediate = (byte)readByte(++pc);
 			pc = (char)(pc +1 + signedImmediate); //TODO: hyper sketch +1
 			
 			//these vals are not agreed upon?
@@ -3961,7 +4098,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0x96:{
-			char value = gameBoy.memory.readByte((registers[INDEX_H] << 8) | registers[INDEX_L]);
+			char value = readByte((registers[INDEX_H] << 8) | registers[INDEX_L]);
 			char result = (char)(registers[INDEX_A] - value);
 			
 			//set z flag
@@ -3994,7 +4131,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xD6:{
-			char value = gameBoy.memory.readByte(++pc);
+			char value = readByte(++pc);
 			char result = (char)(registers[INDEX_A] - value);
 			
 			//set z flag
@@ -4106,7 +4243,7 @@ public class CPU extends Thread{
 		case 0xBE: {
 			
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			char value = gameBoy.memory.readByte(address);
+			char value = readByte(address);
 			
 			char result = (char)(registers[INDEX_A] - value);
 			
@@ -4305,7 +4442,7 @@ public class CPU extends Thread{
 		
 		case 0xB6:{
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			char value = gameBoy.memory.readByte(address);
+			char value = readByte(address);
 			char valueA = registers[INDEX_A];
 			
 			if((valueA | value) != 0){
@@ -4327,7 +4464,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xF6:{
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			char valueA = registers[INDEX_A];
 			
 			if((valueA | immediate) != 0){
@@ -4372,7 +4509,7 @@ public class CPU extends Thread{
 		
 		case 0xE6:{
 			
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			registers[INDEX_A] = (char) ((registers[INDEX_A] & immediate) &0xFF);
 			
 			if(registers[INDEX_A] == 0)
@@ -4518,7 +4655,7 @@ public class CPU extends Thread{
 		}
 		case 0xA6:{
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			char value = gameBoy.memory.readByte(address);
+			char value = readByte(address);
 			
 			registers[INDEX_A] = (char) ((registers[INDEX_A] & value) &0xFF);
 			
@@ -4793,7 +4930,7 @@ public class CPU extends Thread{
 		
 		case 0xE8:{
 			
-			byte signedImmediate = (byte)(gameBoy.memory.readByte(++pc));
+			byte signedImmediate = (byte)(readByte(++pc));
 			
 			char result = (char)(sp + signedImmediate);
 
@@ -4820,8 +4957,8 @@ public class CPU extends Thread{
 		
 		case 0xC4:{
 			
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			char value = (char)(immediateMS << 8 | immediateLS);
 			
 			M += 3;
@@ -4849,8 +4986,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0xCC:{
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			char value = (char)(immediateMS << 8 | immediateLS);
 			
 			M += 3;
@@ -4878,8 +5015,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0xD4:{
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			char value = (char)(immediateMS << 8 | immediateLS);
 			
 			M += 3;
@@ -4907,8 +5044,8 @@ public class CPU extends Thread{
 		}
 		
 		case 0xDC:{
-			char immediateLS = gameBoy.memory.readByte(++pc);
-			char immediateMS = gameBoy.memory.readByte(++pc);
+			char immediateLS = readByte(++pc);
+			char immediateMS = readByte(++pc);
 			char value = (char)(immediateMS << 8 | immediateLS);
 			
 			M += 3;
@@ -5012,7 +5149,7 @@ public class CPU extends Thread{
 		
 		case 0x34:{
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			int value = gameBoy.memory.readByte(address);
+			int value = readByte(address);
 			int result = value+1;
 			
 			if((result&0xFF) == 0)
@@ -5041,9 +5178,9 @@ public class CPU extends Thread{
 			T += 8;
 			
 			if((registers[INDEX_F] & ZERO_BIT) == 0){
-				char retAddLS = gameBoy.memory.readByte(sp);
+				char retAddLS = readByte(sp);
 				sp ++;
-				char retAddMS = gameBoy.memory.readByte(sp);
+				char retAddMS = readByte(sp);
 				sp ++;
 				
 				pc = (char)((retAddMS << 8) | retAddLS);
@@ -5066,9 +5203,9 @@ public class CPU extends Thread{
 			T += 8;
 			
 			if((registers[INDEX_F] & ZERO_BIT) > 0){
-				char retAddLS = gameBoy.memory.readByte(sp);
+				char retAddLS = readByte(sp);
 				sp ++;
-				char retAddMS = gameBoy.memory.readByte(sp);
+				char retAddMS = readByte(sp);
 				sp ++;
 				
 				pc = (char)((retAddMS << 8) | retAddLS);
@@ -5090,9 +5227,9 @@ public class CPU extends Thread{
 			T += 8;
 			
 			if((registers[INDEX_F] & CARRY_BIT) == 0){
-				char retAddLS = gameBoy.memory.readByte(sp);
+				char retAddLS = readByte(sp);
 				sp ++;
-				char retAddMS = gameBoy.memory.readByte(sp);
+				char retAddMS = readByte(sp);
 				sp ++;
 				
 				pc = (char)((retAddMS << 8) | retAddLS);
@@ -5115,9 +5252,9 @@ public class CPU extends Thread{
 			
 			if((registers[INDEX_F] & CARRY_BIT) > 0){
 				
-				char retAddLS = gameBoy.memory.readByte(sp);
+				char retAddLS = readByte(sp);
 				sp ++;
-				char retAddMS = gameBoy.memory.readByte(sp);
+				char retAddMS = readByte(sp);
 				sp ++;
 				
 				pc = (char)((retAddMS << 8) | retAddLS);
@@ -5369,7 +5506,7 @@ public class CPU extends Thread{
 			char carry = (char)((registers[INDEX_F] & CARRY_BIT) >> 4);
 			
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
-			int value = gameBoy.memory.readByte(address);
+			int value = readByte(address);
 			
 			char result = (char)(registers[INDEX_A] - (value + carry));
 			
@@ -5593,9 +5730,9 @@ public class CPU extends Thread{
 		
 		case 0xD9:{
 			
-			char retAddLS = gameBoy.memory.readByte(sp);
+			char retAddLS = readByte(sp);
 			sp ++;
-			char retAddMS = gameBoy.memory.readByte(sp);
+			char retAddMS = readByte(sp);
 			sp ++;
 			
 			pc = (char)((retAddMS << 8) | retAddLS);
@@ -5626,7 +5763,7 @@ public class CPU extends Thread{
 			M += 2;
 			T += 8;
 			
-			byte signedImmediate = (byte)(gameBoy.memory.readByte(++pc));
+			byte signedImmediate = (byte)(readByte(++pc));
 			if((registers[INDEX_F] & CARRY_BIT) == 0){
 				pc += 1 + signedImmediate;	//mb we need a sketchy + 1?
 				
@@ -5646,7 +5783,7 @@ public class CPU extends Thread{
 			M += 2;
 			T += 8;
 			
-			byte signedImmediate = (byte)(gameBoy.memory.readByte(++pc));
+			byte signedImmediate = (byte)(readByte(++pc));
 			if((registers[INDEX_F] & CARRY_BIT) > 0){
 				pc += 1 + signedImmediate;	//mb we need a sketchy + 1?
 				
@@ -5711,7 +5848,7 @@ public class CPU extends Thread{
 		case 0x35:{
 			char address = (char)((registers[INDEX_H] << 8) | registers[INDEX_L]);
 			
-			char value = gameBoy.memory.readByte(address);
+			char value = readByte(address);
 			char result = (char) (value-1);
 			
 			if(result == 0)
@@ -5758,8 +5895,8 @@ public class CPU extends Thread{
 			M += 3;
 			T += 12;
 			
-			char addLS = gameBoy.memory.readByte(++pc);
-			char addMS = gameBoy.memory.readByte(++pc);
+			char addLS = readByte(++pc);
+			char addMS = readByte(++pc);
 			
 			if((registers[INDEX_F] & ZERO_BIT) == 0){
 				
@@ -5781,8 +5918,8 @@ public class CPU extends Thread{
 			M += 3;
 			T += 12;
 			
-			char addLS = gameBoy.memory.readByte(++pc);
-			char addMS = gameBoy.memory.readByte(++pc);
+			char addLS = readByte(++pc);
+			char addMS = readByte(++pc);
 			
 			if((registers[INDEX_F] & ZERO_BIT) > 0){
 				
@@ -5804,8 +5941,8 @@ public class CPU extends Thread{
 			M += 3;
 			T += 12;
 			
-			char addLS = gameBoy.memory.readByte(++pc);
-			char addMS = gameBoy.memory.readByte(++pc);
+			char addLS = readByte(++pc);
+			char addMS = readByte(++pc);
 			
 			if((registers[INDEX_F] & CARRY_BIT) == 0){
 				
@@ -5827,8 +5964,8 @@ public class CPU extends Thread{
 			M += 3;
 			T += 12;
 			
-			char addLS = gameBoy.memory.readByte(++pc);
-			char addMS = gameBoy.memory.readByte(++pc);
+			char addLS = readByte(++pc);
+			char addMS = readByte(++pc);
 			
 			if((registers[INDEX_F] & CARRY_BIT) > 0){
 				
@@ -5897,7 +6034,7 @@ public class CPU extends Thread{
 		}
 		
 		case 0xDE:{
-			char immediate = gameBoy.memory.readByte(++pc);
+			char immediate = readByte(++pc);
 			char carry = (char)((registers[INDEX_F] & CARRY_BIT) >> 4);
 			char result = (char)(registers[INDEX_A] - (immediate + carry));
 			
@@ -6021,8 +6158,7 @@ public class CPU extends Thread{
 		}
 		
 			default:{
-				System.err.println("Unsupported Opcode: " +Integer.toHexString(currentOpcode).toUpperCase());
-				System.exit(0);
+				throw new IllegalStateException("Unsupported Opcode: " +Integer.toHexString(currentOpcode).toUpperCase());
 			}
 
 		}
@@ -6065,37 +6201,8 @@ public class CPU extends Thread{
 		registers[INDEX_D] = 0x00;	registers[INDEX_E] = 0xD8;
 		registers[INDEX_H] = 0x01;	registers[INDEX_L] = 0x4D;
 		
-		gameBoy.memory.writeByte(0xFF05, (char)0x00, HardwareType.CPU);	//TIMA
-		gameBoy.memory.writeByte(0xFF06, (char)0x00, HardwareType.CPU);	//TMA
-		gameBoy.memory.writeByte(0xFF07, (char)0x00, HardwareType.CPU);	//TAC
-		gameBoy.memory.writeByte(0xFF10, (char)0x80, HardwareType.CPU);	//NR10
-		gameBoy.memory.writeByte(0xFF11, (char)0xBF, HardwareType.CPU);	//NR11
-		gameBoy.memory.writeByte(0xFF12, (char)0xF3, HardwareType.CPU);	//NR12
-		gameBoy.memory.writeByte(0xFF14, (char)0xBF, HardwareType.CPU);	//NR14
-		gameBoy.memory.writeByte(0xFF16, (char)0x3F, HardwareType.CPU);	//NR21
-		gameBoy.memory.writeByte(0xFF17, (char)0x00, HardwareType.CPU);	//NR22
-		gameBoy.memory.writeByte(0xFF19, (char)0xBF, HardwareType.CPU);	//NR24
-		gameBoy.memory.writeByte(0xFF1A, (char)0x7F, HardwareType.CPU);	//NR30
-		gameBoy.memory.writeByte(0xFF1B, (char)0xFF, HardwareType.CPU);	//NR31
-		gameBoy.memory.writeByte(0xFF1C, (char)0x9F, HardwareType.CPU);	//NR32
-		gameBoy.memory.writeByte(0xFF1E, (char)0xBF, HardwareType.CPU);	//NR33
-		gameBoy.memory.writeByte(0xFF20, (char)0xFF, HardwareType.CPU);	//NR41
-		gameBoy.memory.writeByte(0xFF21, (char)0x00, HardwareType.CPU);	//NR42
-		gameBoy.memory.writeByte(0xFF22, (char)0x00, HardwareType.CPU);	//NR43
-		gameBoy.memory.writeByte(0xFF23, (char)0xBF, HardwareType.CPU);	//NR30
-		gameBoy.memory.writeByte(0xFF24, (char)0x77, HardwareType.CPU);	//NR50
-		gameBoy.memory.writeByte(0xFF25, (char)0xF3, HardwareType.CPU);	//NR51
-		gameBoy.memory.writeByte(0xFF26, (char)0xF1, HardwareType.CPU); //NR52, $F0 for super gameboy
-		gameBoy.memory.writeByte(0xFF40, (char)0x91, HardwareType.CPU);	//LCDC
-		gameBoy.memory.writeByte(0xFF42, (char)0x00, HardwareType.CPU);	//SCY
-		gameBoy.memory.writeByte(0xFF43, (char)0x00, HardwareType.CPU);	//SCX
-		gameBoy.memory.writeByte(0xFF45, (char)0x00, HardwareType.CPU);	//LYC
-		gameBoy.memory.writeByte(0xFF47, (char)0xFC, HardwareType.CPU);	//BGP
-		gameBoy.memory.writeByte(0xFF48, (char)0xFF, HardwareType.CPU);	//OBPO
-		gameBoy.memory.writeByte(0xFF49, (char)0xFF, HardwareType.CPU);	//OBP1
-		gameBoy.memory.writeByte(0xFF4A, (char)0x00, HardwareType.CPU);	//WY
-		gameBoy.memory.writeByte(0xFF4B, (char)0x00, HardwareType.CPU);	//WX
-		gameBoy.memory.writeByte(0xFFFF, (char)0x00, HardwareType.CPU);	//IE
+		//TIMA, TMA, TAC, the sound registers, LCDC, scroll, palettes, window and IE in one copy
+		gameBoy.memory.loadPowerOnState();
 		
 	}
 	
@@ -6207,7 +6314,7 @@ public class CPU extends Thread{
 	
 	private final void rotateMemLeftThroughCarry(int address){
 		
-		char value = gameBoy.memory.readByte(address);
+		char value = readByte(address);
 		char rotatedBit = (char)(value >> 7);
 		char oldCarry = (char)((registers[INDEX_F] & CARRY_BIT) >> 4); 
 		value = (char) (oldCarry | (value << 1));
@@ -6229,7 +6336,7 @@ public class CPU extends Thread{
 	
 	private final void rotateMemRightThroughCarry(int address){
 		
-		char value = gameBoy.memory.readByte(address);
+		char value = readByte(address);
 		char rotatedBit = (char)(value & 1);
 		char oldCarry = (char)((registers[INDEX_F] & CARRY_BIT) >> 4); 
 		
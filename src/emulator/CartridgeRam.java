@@ -0,0 +1,301 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * External RAM on the cartridge, seen at A000-BFFF in banks of 8 KB (MBC2 has 512
+ * half-bytes built in instead). Its size comes from the cartridge header.
+ *
+ * RAM of cartridges with a battery can be mapped onto a .sav file next to the ROM.
+ * Reads and writes then go straight to the page cache through a MappedByteBuffer:
+ * nothing is read at startup (pages fault in as the game touches them), nothing is
+ * copied, and what the game writes reaches the file even if the emulator is killed.
+ * To also survive a crash of the machine, dirty RAM is forced to disk on a background
+ * thread when the game disables RAM (which games do after saving), at most once a
+ * second while it keeps writing, and on close().
+ */
+final class CartridgeRam {
+
+	final static int BANK_SIZE = 0x2000;
+
+	final static int RAM_SIZE_ADDR = 0x149;
+
+	//sizes by the header's RAM size code
+	private final static int[] SIZES = { 0, 0x800, 0x2000, 0x8000, 0x20000, 0x10000 };
+
+	private final static int MBC2_SIZE = 512;
+
+	private final static int FORCE_INTERVAL_FRAMES = 60;
+
+	/*
+	 * The RAM in banks of BANK_SIZE (one bank if it is smaller). Banks may be shared
+	 * with forks (see fork()) and are then copied on the first write, like Memory's
+	 * pages, so a fork only costs the banks written afterwards.
+	 */
+	private final ByteBuffer[] banks;
+	private final boolean[] sharedBanks;
+	private final int size;
+	private final int mask;
+	private final boolean halfBytes;
+	//banks reserved for loadState() to replace shared ones with, so a restore doesn't allocate
+	private final ByteBuffer[] spareBanks;
+	private int spareCount;
+
+	//only for RAM mapped onto a file
+	private final MappedByteBuffer mapped;
+	private final Thread forcer;
+	private volatile boolean forceRequested;
+	private volatile boolean closed;
+
+	private boolean dirty;
+	private int framesSinceForce;
+
+	private CartridgeRam(ByteBuffer data, boolean halfBytes, MappedByteBuffer mapped){
+		this.size = data.capacity();
+		this.mask = size - 1;
+		this.halfBytes = halfBytes;
+		this.mapped = mapped;
+		int bankLength = bankLength(size);
+		this.banks = new ByteBuffer[size / bankLength];
+		for(int i = 0; i < banks.length; i++){
+			ByteBuffer bank = data.duplicate();
+			bank.position(i * bankLength);
+			bank.limit((i + 1) * bankLength);
+			banks[i] = bank.slice();
+		}
+		this.sharedBanks = new boolean[banks.length];
+		this.spareBanks = new ByteBuffer[banks.length];
+		if(mapped == null){
+			forcer = null;
+			return;
+		}
+		forcer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				forceLoop();
+			}
+		}, "cartridge-ram");
+		forcer.setDaemon(true);
+		forcer.start();
+	}
+
+	//a fork of parent, in memory: forks must never write to the parent's file
+	private CartridgeRam(CartridgeRam parent){
+		this.size = parent.size;
+		this.mask = parent.mask;
+		this.halfBytes = parent.halfBytes;
+		this.mapped = null;
+		this.forcer = null;
+		this.banks = parent.banks.clone();
+		this.sharedBanks = new boolean[banks.length];
+		this.spareBanks = new ByteBuffer[banks.length];
+		if(parent.mapped != null){
+			//the parent goes on writing its file in place, so the fork can't share it
+			for(int i = 0; i < banks.length; i++)
+				banks[i] = copyOf(parent.banks[i]);
+			return;
+		}
+		Arrays.fill(sharedBanks, true);
+		Arrays.fill(parent.sharedBanks, true);
+	}
+
+	private static int bankLength(int size){
+		return Math.min(size, BANK_SIZE);
+	}
+
+	private static ByteBuffer copyOf(ByteBuffer bank){
+		ByteBuffer copy = ByteBuffer.allocate(bank.capacity());
+		for(int i = 0; i < bank.capacity(); i++)
+			copy.put(i, bank.get(i));
+		return copy;
+	}
+
+	//RAM for the cartridge, in memory; null when it has none
+	static CartridgeRam forCartridge(RomImage rom){
+		int size = sizeOf(rom);
+		return (size > 0) ? new CartridgeRam(ByteBuffer.allocate(size), isMBC2(rom), null) : null;
+	}
+
+	//RAM for the cartridge mapped onto the file, which is created or extended as needed
+	static CartridgeRam map(RomImage rom, File file) throws IOException {
+		int size = sizeOf(rom);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			if(raf.length() < size)
+				raf.setLength(size);
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			return new CartridgeRam(mapped, isMBC2(rom), mapped);
+		}finally{
+			raf.close();	//the mapping stays valid
+		}
+	}
+
+	static int sizeOf(RomImage rom){
+		if(isMBC2(rom))
+			return MBC2_SIZE;
+		int code = rom.readByte(RAM_SIZE_ADDR);
+		return (code < SIZES.length) ? SIZES[code] : 0;
+	}
+
+	private static boolean isMBC2(RomImage rom){
+		int type = rom.getCartridgeType();
+		return type == 0x05 || type == 0x06;
+	}
+
+	static boolean hasBattery(RomImage rom){
+		switch(rom.getCartridgeType()){
+		case 0x03: case 0x06: case 0x09: case 0x0D: case 0x0F: case 0x10:
+		case 0x13: case 0x1B: case 0x1E: case 0xFF:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	//the .sav file for a ROM file: its path with the extension replaced
+	static File saveFileFor(String romPath){
+		int dot = romPath.lastIndexOf('.');
+		int separator = Math.max(romPath.lastIndexOf('/'), romPath.lastIndexOf(File.separatorChar));
+		return new File(((dot > separator) ? romPath.substring(0, dot) : romPath) + ".sav");
+	}
+
+	int size(){
+		return size;
+	}
+
+	boolean isMapped(){
+		return mapped != null;
+	}
+
+	//address within A000-BFFF; smaller RAMs repeat
+	char read(int bank, int address){
+		int index = (bank * BANK_SIZE + (address - Memory.EIGHT_KB_SWITCHABLE_RAM_BANK_ADDR)) & mask;
+		int value = banks[index / BANK_SIZE].get(index % BANK_SIZE) & 0xFF;
+		return (char)(halfBytes ? value | 0xF0 : value);
+	}
+
+	void write(int bank, int address, char value){
+		int index = (bank * BANK_SIZE + (address - Memory.EIGHT_KB_SWITCHABLE_RAM_BANK_ADDR)) & mask;
+		int bankIndex = index / BANK_SIZE;
+		if(sharedBanks[bankIndex]){
+			banks[bankIndex] = copyOf(banks[bankIndex]);
+			sharedBanks[bankIndex] = false;
+		}
+		banks[bankIndex].put(index % BANK_SIZE, (byte)(halfBytes ? value & 0x0F : value));
+		dirty = true;
+	}
+
+	//the game disabled RAM, usually at the end of a save
+	void disabled(){
+		if(dirty)
+			requestForce();
+	}
+
+	//called once per frame
+	void frameCompleted(){
+		if(dirty && ++framesSinceForce >= FORCE_INTERVAL_FRAMES)
+			requestForce();
+	}
+
+	private void requestForce(){
+		dirty = false;
+		framesSinceForce = 0;
+		if(forcer == null)
+			return;
+		forceRequested = true;
+		LockSupport.unpark(forcer);
+	}
+
+	private void forceLoop(){
+		while(!closed){
+			LockSupport.park(this);
+			if(forceRequested){
+				forceRequested = false;
+				mapped.force();
+			}
+		}
+	}
+
+	//forces what is left to disk and stops the background thread; the RAM stays usable
+	void close(){
+		if(mapped == null || closed)
+			return;
+		closed = true;
+		LockSupport.unpark(forcer);
+		try{
+			forcer.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		mapped.force();
+		dirty = false;
+	}
+
+	/*
+	 * Both this RAM and the fork treat every bank as shared afterwards; whichever
+	 * writes a bank first gets its own copy. RAM mapped onto a file is the exception:
+	 * its fork gets a copy up front.
+	 */
+	CartridgeRam fork(){
+		return new CartridgeRam(this);
+	}
+
+	//allocates a spare bank for every bank loadState() would have to unshare
+	void reserveRestoreBanks(){
+		int shared = 0;
+		for(int i = 0; i < banks.length; i++){
+			if(sharedBanks[i])
+				shared++;
+		}
+		while(spareCount < shared)
+			spareBanks[spareCount++] = ByteBuffer.allocate(bankLength(size));
+	}
+
+	//see SaveState
+	void saveState(ByteBuffer buffer){
+		for(ByteBuffer bank : banks){
+			if(bank.hasArray()){
+				buffer.put(bank.array(), bank.arrayOffset(), bank.capacity());
+			}else{
+				//mapped, so never shared with a fork: its position is ours to move
+				bank.clear();
+				buffer.put(bank);
+			}
+		}
+	}
+
+	//bulk copies straight into the banks' arrays (or the mapping), without views, so a restore doesn't allocate
+	void loadState(ByteBuffer buffer){
+		for(int b = 0; b < banks.length; b++){
+			if(sharedBanks[b]){
+				//every byte is about to be overwritten, so no need to copy the shared contents
+				if(spareCount > 0){
+					banks[b] = spareBanks[--spareCount];
+					spareBanks[spareCount] = null;
+				}else{
+					banks[b] = ByteBuffer.allocate(bankLength(size));
+				}
+				sharedBanks[b] = false;
+			}
+			ByteBuffer bank = banks[b];
+			if(bank.hasArray()){
+				buffer.get(bank.array(), bank.arrayOffset(), bank.capacity());
+			}else{
+				int limit = buffer.limit();
+				buffer.limit(buffer.position() + bank.capacity());
+				bank.clear();
+				bank.put(buffer);
+				buffer.limit(limit);
+			}
+		}
+		dirty = true;
+	}
+
+}
@@ -0,0 +1,238 @@
+package emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/*
+ * PC breakpoints and memory watchpoints for a headless GameBoy, with a command
+ * console on stdin (or a command file).
+ *
+ * Nothing is instrumented unless it is used: breakpoints are checked by the
+ * debugger's own run loop between instructions, so the CPU is untouched, and Memory
+ * only calls back into the debugger while at least one watchpoint is set (otherwise
+ * its watcher is null). Within the callbacks a per-page count rejects accesses to
+ * unwatched pages before the per-address flags are looked at.
+ *
+ * A watchpoint fires for the CPU's accesses to the address, instruction fetches
+ * included; execution stops after the instruction that made the access. The LCD
+ * controller reading VRAM and OAM every line, DMA and the echo of internal RAM
+ * don't trigger it.
+ */
+public class Debugger {
+
+	public final static int WATCH_READ = 1;
+	public final static int WATCH_WRITE = 2;
+
+	private final static int ADDRESS_SPACE = 0x10000;
+
+	private final GameBoy gameBoy;
+	private final CPU cpu;
+
+	private final boolean[] breakpoints = new boolean[ADDRESS_SPACE];
+	private int breakpointCount = 0;
+
+	private final byte[] watchpoints = new byte[ADDRESS_SPACE];
+	private final int[] watchpointsPerPage = new int[ADDRESS_SPACE >> 8];
+	private int watchpointCount = 0;
+
+	//why the last run stopped, or null if it ran to completion
+	private String stopReason;
+
+	public Debugger(GameBoy gameBoy){
+		this.gameBoy = gameBoy;
+		this.cpu = gameBoy.getCPU();
+	}
+
+	public void setBreakpoint(int address, boolean set){
+		address &= 0xFFFF;
+		if(breakpoints[address] != set){
+			breakpoints[address] = set;
+			breakpointCount += set ? 1 : -1;
+		}
+	}
+
+	//flags is a combination of WATCH_READ and WATCH_WRITE, 0 to remove the watchpoint
+	public void setWatchpoint(int address, int flags){
+		address &= 0xFFFF;
+		boolean wasSet = watchpoints[address] != 0;
+		watchpoints[address] = (byte)flags;
+		if(wasSet != (flags != 0)){
+			int delta = (flags != 0) ? 1 : -1;
+			watchpointsPerPage[address >> 8] += delta;
+			watchpointCount += delta;
+		}
+		gameBoy.memory.setWatcher((watchpointCount > 0) ? this : null);
+	}
+
+	//called by Memory while a watchpoint is set
+	void memoryRead(int address){
+		if(watchpointsPerPage[address >> 8] == 0)
+			return;
+		if((watchpoints[address] & WATCH_READ) != 0 && stopReason == null)
+			stopReason = String.format("read of %04X at PC=%04X", address, cpu.getPC());
+	}
+
+	void memoryWritten(int address, char data, HardwareType type){
+		if(watchpointsPerPage[address >> 8] == 0)
+			return;
+		if((watchpoints[address] & WATCH_WRITE) != 0 && stopReason == null)
+			stopReason = String.format("write of %02X to %04X by %s at PC=%04X", (int)data, address, type, cpu.getPC());
+	}
+
+	/*
+	 * Executes up to the given number of instructions, stopping early at a breakpoint
+	 * (before the instruction there executes) or after an instruction that hit a
+	 * watchpoint. Returns the number of instructions executed.
+	 */
+	public long step(long instructions){
+
+		stopReason = null;
+		for(long i = 0; i < instructions; i++){
+			if(i > 0 && breakpointCount > 0 && breakpoints[cpu.getPC()]){
+				stopReason = String.format("breakpoint at %04X", cpu.getPC());
+				return i;
+			}
+			cpu.step();
+			if(stopReason != null)
+				return i + 1;
+		}
+		return instructions;
+	}
+
+	//runs up to the given number of frames, stopping early like step()
+	public long runFrames(int frames){
+
+		long endFrame = gameBoy.getFrameCount() + frames;
+		long instructions = 0;
+		stopReason = null;
+
+		while(gameBoy.getFrameCount() < endFrame && stopReason == null){
+			if(instructions > 0 && breakpointCount > 0 && breakpoints[cpu.getPC()]){
+				stopReason = String.format("breakpoint at %04X", cpu.getPC());
+				break;
+			}
+			cpu.step();
+			instructions++;
+		}
+		return instructions;
+	}
+
+	public String getStopReason(){
+		return stopReason;
+	}
+
+	//not a CPU read, so it doesn't trigger watchpoints
+	public int peek(int address){
+		return gameBoy.memory.readByte(address & 0xFFFF);
+	}
+
+	/*
+	 * Reads commands until "quit" or the end of input:
+	 *   break <addr> / delete <addr>        PC breakpoint
+	 *   watch <addr> [r|w|rw] / unwatch <addr>
+	 *   step [n]                            instructions
+	 *   continue [frames]                   default: until a breakpoint or watchpoint
+	 *   regs
+	 *   x <addr> [count]                    examine memory
+	 *   list
+	 * Addresses are hex.
+	 */
+	public void console(BufferedReader reader, boolean prompt) throws IOException {
+
+		String line;
+		if(prompt)
+			System.out.print("> ");
+		while((line = reader.readLine()) != null){
+
+			String[] words = line.trim().split("\\s+");
+			String command = words[0].toLowerCase();
+			try{
+				if(command.isEmpty()){
+					//nothing
+				}else if(command.equals("quit") || command.equals("q")){
+					return;
+				}else if(command.equals("break") || command.equals("b")){
+					setBreakpoint(parseHex(words[1]), true);
+				}else if(command.equals("delete") || command.equals("d")){
+					setBreakpoint(parseHex(words[1]), false);
+				}else if(command.equals("watch") || command.equals("w")){
+					String mode = (words.length > 2) ? words[2].toLowerCase() : "w";
+					setWatchpoint(parseHex(words[1]), (mode.contains("r") ? WATCH_READ : 0) | (mode.contains("w") ? WATCH_WRITE : 0));
+				}else if(command.equals("unwatch")){
+					setWatchpoint(parseHex(words[1]), 0);
+				}else if(command.equals("step") || command.equals("s")){
+					step((words.length > 1) ? Long.parseLong(words[1]) : 1);
+					printStop();
+				}else if(command.equals("continue") || command.equals("c")){
+					runFrames((words.length > 1) ? Integer.parseInt(words[1]) : Integer.MAX_VALUE);
+					printStop();
+				}else if(command.equals("regs") || command.equals("r")){
+					System.out.println(cpu.describeRegisters());
+				}else if(command.equals("x")){
+					int address = parseHex(words[1]);
+					int count = (words.length > 2) ? Integer.parseInt(words[2]) : 16;
+					for(int row = 0; row < count; row += 16){
+						StringBuilder text = new StringBuilder(String.format("%04X:", (address + row) & 0xFFFF));
+						for(int i = row; i < Math.min(row + 16, count); i++)
+							text.append(String.format(" %02X", peek(address + i)));
+						System.out.println(text);
+					}
+				}else if(command.equals("list") || command.equals("l")){
+					for(int address = 0; address < ADDRESS_SPACE; address++){
+						if(breakpoints[address])
+							System.out.println(String.format("break %04X", address));
+						if(watchpoints[address] != 0)
+							System.out.println(String.format("watch %04X %s%s", address,
+									(watchpoints[address] & WATCH_READ) != 0 ? "r" : "",
+									(watchpoints[address] & WATCH_WRITE) != 0 ? "w" : ""));
+					}
+				}else{
+					System.out.println("unknown command: " + words[0]);
+				}
+			}catch(RuntimeException e){	//ArrayIndexOutOfBounds, NumberFormat, IllegalState from the CPU
+				System.out.println("error: " + e.getMessage());
+			}
+			if(prompt)
+				System.out.print("> ");
+		}
+	}
+
+	private void printStop(){
+		String where = String.format("frame %d, PC=%04X", gameBoy.getFrameCount(), cpu.getPC());
+		System.out.println((stopReason != null) ? ("stopped: " + stopReason + " (" + where + ")") : where);
+	}
+
+	private static int parseHex(String text){
+		if(text.startsWith("0x") || text.startsWith("0X"))
+			text = text.substring(2);
+		return Integer.parseInt(text, 16);
+	}
+
+	/*
+	 * Usage: Debugger rom [command file]
+	 * Without a command file, commands are read from stdin.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if(args.length < 1){
+			System.out.println("Usage: Debugger <rom> [command file]");
+			System.exit(2);
+		}
+
+		GameBoy gameBoy = new GameBoy(RomImage.load(args[0]));
+		gameBoy.powerOn();
+
+		Debugger debugger = new Debugger(gameBoy);
+		if(args.length > 1){
+			try(BufferedReader reader = new BufferedReader(new FileReader(new File(args[1])))){
+				debugger.console(reader, false);
+			}
+		}else{
+			debugger.console(new BufferedReader(new InputStreamReader(System.in)), true);
+		}
+	}
+
+}
@@ -0,0 +1,395 @@
+package emulator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Emulation speed and frame timing: frames per second, effective clock speed,
+ * frame time percentiles, where the time of a frame went (CPU, PPU, presentation,
+ * pacing sleep) and how far the pacing loop of CPU.run() overshoots the ideal
+ * 1/4194304 s per clock cycle.
+ *
+ * Everything is recorded on the emulation thread into plain fields and
+ * LatencyHistograms, so recording takes no locks. Once a second, of emulated or of
+ * wall clock time whichever comes first, at a frame boundary the interval is condensed into an immutable Summary behind a
+ * volatile field, which is all that JMX, the overlay (see ScreenPanel) and other
+ * threads ever read. Each frame and each summary is also emitted as a JFR event
+ * (emulator.Frame, emulator.Speed) when a recording has them enabled.
+ *
+ * The CPU and PPU split comes from timing LCDController.run(); presentation is the
+ * part of it spent painting rows on screen, and is counted only there.
+ */
+public class EmulationMetrics implements EmulationMetricsMBean, FrameListener {
+
+	private final static int PUBLISH_INTERVAL_FRAMES = 60;
+	private final static long PUBLISH_INTERVAL_NANOS = 1000000000L;
+	private final static double IDEAL_NANOS_PER_CYCLE = 1e9 / CPU.PROCESSOR_FREQUENCY_HZ;
+
+	private final static AtomicInteger instanceIds = new AtomicInteger();
+
+	//written by the emulation thread only
+	private final LatencyHistogram frameTimes = new LatencyHistogram();
+	private final LatencyHistogram pacingOvershoots = new LatencyHistogram();
+
+	private long framePpuNanos;
+	private long framePresentationNanos;
+	private long framePacingNanos;
+
+	private long lastFrameTime = -1;
+	private long lastFrameCycles;
+	private long frameCount;
+
+	private long intervalStartTime;
+	private long intervalStartCycles;
+	private int intervalFrames;
+	private long intervalPpuNanos;
+	private long intervalPresentationNanos;
+	private long intervalPacingNanos;
+
+	private volatile Summary summary = new Summary();
+
+	private final String name;
+
+	public EmulationMetrics(){
+		this.name = "EmulationMetrics-" + instanceIds.incrementAndGet();
+	}
+
+	public void attach(GameBoy gameBoy){
+		lastFrameTime = -1;
+		gameBoy.setMetrics(this);
+		gameBoy.addFrameListener(this);
+	}
+
+	public void detach(GameBoy gameBoy){
+		gameBoy.setMetrics(null);
+		gameBoy.removeFrameListener(this);
+	}
+
+	//registers this instance with the platform MBean server as emulator:type=EmulationMetrics,name=...
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("emulator:type=EmulationMetrics,name=" + name));
+	}
+
+	//called by GameBoy around LCDController.run()
+	void ppuTime(long nanos){
+		framePpuNanos += nanos;
+	}
+
+	//called by GameBoy around painting a row; nested in ppuTime()
+	void presentationTime(long nanos){
+		framePresentationNanos += nanos;
+	}
+
+	/*
+	 * Called by CPU.run() after each paced step: the wall clock time of the whole step
+	 * including its sleep, the part of it that was sleep, and the clock cycles it ran.
+	 */
+	void pacedStep(long stepNanos, long sleepNanos, int clockCycles){
+		framePacingNanos += sleepNanos;
+		pacingOvershoots.record(stepNanos - (long)(clockCycles * IDEAL_NANOS_PER_CYCLE));
+	}
+
+	@Override
+	public void frameCompleted(GameBoy gameBoy) {
+
+		long now = System.nanoTime();
+		long cycles = gameBoy.getClockCycles();
+		if(lastFrameTime < 0){
+			lastFrameTime = intervalStartTime = now;
+			lastFrameCycles = intervalStartCycles = cycles;
+			framePpuNanos = framePresentationNanos = framePacingNanos = 0;
+			return;
+		}
+
+		long frameNanos = now - lastFrameTime;
+		frameTimes.record(frameNanos);
+		frameCount++;
+
+		FrameEvent event = new FrameEvent();
+		if(event.shouldCommit()){
+			event.frame = frameCount;
+			event.clockCycles = cycles - lastFrameCycles;
+			event.frameTime = frameNanos;
+			event.ppuTime = framePpuNanos - framePresentationNanos;
+			event.presentationTime = framePresentationNanos;
+			event.pacingTime = framePacingNanos;
+			event.cpuTime = frameNanos - framePpuNanos - framePacingNanos;
+			event.commit();
+		}
+
+		intervalFrames++;
+		intervalPpuNanos += framePpuNanos;
+		intervalPresentationNanos += framePresentationNanos;
+		intervalPacingNanos += framePacingNanos;
+		framePpuNanos = framePresentationNanos = framePacingNanos = 0;
+		lastFrameTime = now;
+		lastFrameCycles = cycles;
+
+		if(intervalFrames >= PUBLISH_INTERVAL_FRAMES || now - intervalStartTime >= PUBLISH_INTERVAL_NANOS)
+			publish(now, cycles);
+	}
+
+	private void publish(long now, long cycles){
+
+		Summary next = new Summary(this, now - intervalStartTime, cycles - intervalStartCycles);
+		summary = next;
+
+		SpeedEvent event = new SpeedEvent();
+		if(event.shouldCommit()){
+			event.framesPerSecond = next.framesPerSecond;
+			event.effectiveClockHz = next.effectiveClockHz;
+			event.frameTimeP99 = (long)(next.frameTimeP99Millis * 1e6);
+			event.pacingOvershootP99 = (long)(next.pacingOvershootP99Micros * 1e3);
+			event.commit();
+		}
+
+		frameTimes.reset();
+		pacingOvershoots.reset();
+		intervalFrames = 0;
+		intervalPpuNanos = intervalPresentationNanos = intervalPacingNanos = 0;
+		intervalStartTime = now;
+		intervalStartCycles = cycles;
+	}
+
+	/*
+	 * One publication interval, condensed. Built on the emulation thread, then only
+	 * read.
+	 */
+	static final class Summary {
+
+		final long frameCount;
+		final double framesPerSecond;
+		final double effectiveClockHz;
+		final double frameTimeMeanMillis;
+		final double frameTimeP50Millis;
+		final double frameTimeP90Millis;
+		final double frameTimeP99Millis;
+		final double frameTimeP999Millis;
+		final double frameTimeMaxMillis;
+		final double cpuShare;
+		final double ppuShare;
+		final double presentationShare;
+		final double pacingShare;
+		final double pacingOvershootP50Micros;
+		final double pacingOvershootP99Micros;
+		final double pacingOvershootMaxMicros;
+
+		//nothing published yet
+		Summary(){
+			frameCount = 0;
+			framesPerSecond = effectiveClockHz = 0;
+			frameTimeMeanMillis = frameTimeP50Millis = frameTimeP90Millis = frameTimeP99Millis = frameTimeP999Millis = frameTimeMaxMillis = 0;
+			cpuShare = ppuShare = presentationShare = pacingShare = 0;
+			pacingOvershootP50Micros = pacingOvershootP99Micros = pacingOvershootMaxMicros = 0;
+		}
+
+		Summary(EmulationMetrics metrics, long intervalNanos, long intervalCycles){
+
+			double seconds = Math.max(intervalNanos, 1) / 1e9;
+			LatencyHistogram frames = metrics.frameTimes;
+			LatencyHistogram overshoots = metrics.pacingOvershoots;
+
+			frameCount = metrics.frameCount;
+			framesPerSecond = metrics.intervalFrames / seconds;
+			effectiveClockHz = intervalCycles / seconds;
+
+			frameTimeMeanMillis = intervalNanos / 1e6 / Math.max(metrics.intervalFrames, 1);
+			frameTimeP50Millis = frames.getValueAtPercentile(50) / 1e6;
+			frameTimeP90Millis = frames.getValueAtPercentile(90) / 1e6;
+			frameTimeP99Millis = frames.getValueAtPercentile(99) / 1e6;
+			frameTimeP999Millis = frames.getValueAtPercentile(99.9) / 1e6;
+			frameTimeMaxMillis = frames.getMaxValue() / 1e6;
+
+			double total = Math.max(intervalNanos, 1);
+			ppuShare = (metrics.intervalPpuNanos - metrics.intervalPresentationNanos) / total;
+			presentationShare = metrics.intervalPresentationNanos / total;
+			pacingShare = metrics.intervalPacingNanos / total;
+			cpuShare = Math.max(1 - ppuShare - presentationShare - pacingShare, 0);
+
+			pacingOvershootP50Micros = overshoots.getValueAtPercentile(50) / 1e3;
+			pacingOvershootP99Micros = overshoots.getValueAtPercentile(99) / 1e3;
+			pacingOvershootMaxMicros = overshoots.getMaxValue() / 1e3;
+		}
+
+		//the lines of the on-screen overlay
+		String[] describe(){
+			return new String[]{
+				String.format("%.1f fps  %.2f MHz (%.0f%%)", framesPerSecond, effectiveClockHz / 1e6,
+						100 * effectiveClockHz / CPU.PROCESSOR_FREQUENCY_HZ),
+				String.format("frame p50 %.2f p99 %.2f max %.2f ms", frameTimeP50Millis, frameTimeP99Millis, frameTimeMaxMillis),
+				String.format("cpu %.0f%% ppu %.0f%% present %.0f%% sleep %.0f%%", 100 * cpuShare, 100 * ppuShare,
+						100 * presentationShare, 100 * pacingShare),
+				String.format("pacing overshoot p99 %.1f max %.1f us", pacingOvershootP99Micros, pacingOvershootMaxMicros)
+			};
+		}
+	}
+
+	Summary getSummary(){
+		return summary;
+	}
+
+	@Override
+	public long getFrameCount() {
+		return summary.frameCount;
+	}
+
+	@Override
+	public double getFramesPerSecond() {
+		return summary.framesPerSecond;
+	}
+
+	@Override
+	public double getEffectiveClockHz() {
+		return summary.effectiveClockHz;
+	}
+
+	@Override
+	public double getSpeedRatio() {
+		return summary.effectiveClockHz / CPU.PROCESSOR_FREQUENCY_HZ;
+	}
+
+	@Override
+	public double getFrameTimeMeanMillis() {
+		return summary.frameTimeMeanMillis;
+	}
+
+	@Override
+	public double getFrameTimeP50Millis() {
+		return summary.frameTimeP50Millis;
+	}
+
+	@Override
+	public double getFrameTimeP90Millis() {
+		return summary.frameTimeP90Millis;
+	}
+
+	@Override
+	public double getFrameTimeP99Millis() {
+		return summary.frameTimeP99Millis;
+	}
+
+	@Override
+	public double getFrameTimeP999Millis() {
+		return summary.frameTimeP999Millis;
+	}
+
+	@Override
+	public double getFrameTimeMaxMillis() {
+		return summary.frameTimeMaxMillis;
+	}
+
+	@Override
+	public double getCpuShare() {
+		return summary.cpuShare;
+	}
+
+	@Override
+	public double getPpuShare() {
+		return summary.ppuShare;
+	}
+
+	@Override
+	public double getPresentationShare() {
+		return summary.presentationShare;
+	}
+
+	@Override
+	public double getPacingShare() {
+		return summary.pacingShare;
+	}
+
+	@Override
+	public double getPacingOvershootP50Micros() {
+		return summary.pacingOvershootP50Micros;
+	}
+
+	@Override
+	public double getPacingOvershootP99Micros() {
+		return summary.pacingOvershootP99Micros;
+	}
+
+	@Override
+	public double getPacingOvershootMaxMicros() {
+		return summary.pacingOvershootMaxMicros;
+	}
+
+	@Override
+	public String summary() {
+		StringBuilder text = new StringBuilder();
+		for(String line : summary.describe())
+			text.append(line).append(System.lineSeparator());
+		return text.toString();
+	}
+
+}
+
+@Name("emulator.Frame")
+@Label("Emulated Frame")
+@Category({ "Game Boy Emulator" })
+@Description("Wall clock time of one emulated frame and where it went")
+@StackTrace(false)
+class FrameEvent extends Event {
+
+	@Label("Frame")
+	long frame;
+
+	@Label("Clock Cycles")
+	long clockCycles;
+
+	@Label("Frame Time")
+	@Timespan
+	long frameTime;
+
+	@Label("CPU Time")
+	@Timespan
+	long cpuTime;
+
+	@Label("PPU Time")
+	@Timespan
+	long ppuTime;
+
+	@Label("Presentation Time")
+	@Timespan
+	long presentationTime;
+
+	@Label("Pacing Sleep")
+	@Timespan
+	long pacingTime;
+}
+
+@Name("emulator.Speed")
+@Label("Emulation Speed")
+@Category({ "Game Boy Emulator" })
+@Description("Emulation speed over the last publication interval of EmulationMetrics")
+@StackTrace(false)
+class SpeedEvent extends Event {
+
+	@Label("Frames per Second")
+	@Frequency
+	double framesPerSecond;
+
+	@Label("Effective Clock")
+	@Frequency
+	double effectiveClockHz;
+
+	@Label("Frame Time p99")
+	@Timespan
+	long frameTimeP99;
+
+	@Label("Pacing Overshoot p99")
+	@Timespan
+	long pacingOvershootP99;
+}
@@ -0,0 +1,48 @@
+package emulator;
+
+/*
+ * JMX view of EmulationMetrics. Values describe the last publication interval
+ * (a second of emulated or wall clock time, whichever is shorter); times are in milliseconds or microseconds as
+ * named, shares are fractions of the interval's wall clock time.
+ */
+public interface EmulationMetricsMBean {
+
+	long getFrameCount();
+
+	double getFramesPerSecond();
+
+	//emulated clock cycles per wall clock second, and as a fraction of the real 4194304 Hz
+	double getEffectiveClockHz();
+
+	double getSpeedRatio();
+
+	double getFrameTimeMeanMillis();
+
+	double getFrameTimeP50Millis();
+
+	double getFrameTimeP90Millis();
+
+	double getFrameTimeP99Millis();
+
+	double getFrameTimeP999Millis();
+
+	double getFrameTimeMaxMillis();
+
+	double getCpuShare();
+
+	double getPpuShare();
+
+	double getPresentationShare();
+
+	//time spent sleeping in the pacing loop of CPU.run(), or in a FramePacer
+	double getPacingShare();
+
+	//how much longer than the ideal 1/4194304 s per clock cycle a paced CPU step (or paced frame) took
+	double getPacingOvershootP50Micros();
+
+	double getPacingOvershootP99Micros();
+
+	double getPacingOvershootMaxMicros();
+
+	String summary();
+}
@@ -0,0 +1,163 @@
+package emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Hosts many headless GameBoys in one JVM. Instances are time-sliced on a fixed
+ * pool of worker threads in one-frame quanta: every round each instance advances by
+ * exactly one frame, with workers claiming instances from a shared cursor so that
+ * slow and fast instances balance out across cores.
+ *
+ * Instances started from the same RomImage share the ROM read-only.
+ */
+public class EmulatorFarm {
+
+	private final List<GameBoy> instances = new ArrayList<GameBoy>();
+	//instances that threw (e.g. hit an unsupported opcode) are parked instead of killing their worker
+	private RuntimeException[] failures = new RuntimeException[0];
+	private final Thread[] workers;
+
+	//round coordination: the caller bumps the round and unparks the workers, the last
+	//worker to finish unparks the caller. Nothing here allocates once the farm is running.
+	private volatile long round;
+	private volatile Thread caller;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger cursor = new AtomicInteger();
+	//quanta of the current round that ran to completion, i.e. frames actually made
+	private final AtomicInteger completed = new AtomicInteger();
+	private volatile boolean shutdown = false;
+
+	private volatile long totalFrames;
+	private volatile long totalNanos;
+
+	public EmulatorFarm(int threadCount){
+
+		this.workers = new Thread[threadCount];
+
+		for(int i = 0; i < threadCount; i++){
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					workerLoop();
+				}
+			}, "farm-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public synchronized int addInstance(RomImage image){
+
+		GameBoy gameBoy = new GameBoy(image);
+		gameBoy.powerOn();
+
+		instances.add(gameBoy);
+		failures = Arrays.copyOf(failures, instances.size());
+		return instances.size() - 1;
+	}
+
+	public GameBoy getInstance(int index){
+		return instances.get(index);
+	}
+
+	public int getInstanceCount(){
+		return instances.size();
+	}
+	
+	//the exception that stopped the instance, or null if it is still running
+	public RuntimeException getFailure(int index){
+		return failures[index];
+	}
+	
+	public int getRunningInstanceCount(){
+		int running = 0;
+		for(RuntimeException failure : failures){
+			if(failure == null)
+				running++;
+		}
+		return running;
+	}
+
+	/*
+	 * Advances every instance by the given number of frames. Blocks until done; must
+	 * not be called concurrently with itself or with addInstance(). Returns the number
+	 * of frames the instances completed, which leaves out those of instances that
+	 * failed or had already stopped.
+	 */
+	public long runFrames(int frames){
+
+		long startTime = System.nanoTime();
+		long frameCount = 0;
+
+		caller = Thread.currentThread();
+		for(int i = 0; i < frames; i++){
+			cursor.set(0);
+			completed.set(0);
+			pending.set(workers.length);
+			round++;
+			for(Thread worker : workers)
+				LockSupport.unpark(worker);
+			while(pending.get() > 0)
+				LockSupport.park(this);
+			frameCount += completed.get();
+		}
+
+		totalNanos += System.nanoTime() - startTime;
+		totalFrames += frameCount;
+		return frameCount;
+	}
+
+	private void workerLoop(){
+
+		long lastRound = 0;
+		while(true){
+			while(round == lastRound && !shutdown)
+				LockSupport.park(this);
+			if(shutdown)
+				return;
+			lastRound = round;
+
+			int index;
+			int done = 0;
+			while((index = cursor.getAndIncrement()) < instances.size()){
+				if(failures[index] != null)
+					continue;
+				try{
+					runQuantum(index, instances.get(index));
+					done++;
+				}catch(RuntimeException e){
+					failures[index] = e;
+				}
+			}
+			completed.addAndGet(done);
+
+			if(pending.decrementAndGet() == 0)
+				LockSupport.unpark(caller);
+		}
+	}
+	
+	//one time slice of one instance; runs on a worker thread
+	protected void runQuantum(int index, GameBoy gameBoy){
+		gameBoy.runFrame();
+	}
+
+	public void shutdown(){
+		shutdown = true;
+		for(Thread worker : workers)
+			LockSupport.unpark(worker);
+	}
+
+	//aggregate frames per second across all instances since the farm was created
+	public double getAggregateFPS(){
+		return (totalNanos > 0) ? totalFrames * 1e9 / totalNanos : 0;
+	}
+
+	public long getTotalFrames(){
+		return totalFrames;
+	}
+
+}
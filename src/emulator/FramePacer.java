@@ -0,0 +1,182 @@
+package emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Paces emulation a frame at a time against the audio output, instead of the sleep
+ * after every instruction that CPU.run() does on its own (which overshoots by far
+ * more than the 238 ns an instruction should take). While a pacer is attached,
+ * CPU.run() doesn't sleep at all and all waiting happens here, at VBlank.
+ *
+ * Modes:
+ *  - AUDIO_CLOCK: the sound card's clock is the only clock. After each frame the
+ *    emulation thread waits until no more than the target latency is left in the
+ *    ring, so emulation runs at exactly the rate the device plays, with frames
+ *    released as the device drains.
+ *  - DYNAMIC_RATE: frames are paced by the wall clock at the emulated time they took, made
+ *    faster or slower by up to MAX_ADJUSTMENT (half a percent) in proportion to how
+ *    far the smoothed ring fill is from the target. This absorbs the drift between
+ *    the sound card's clock and the wall clock without underruns, with a change of
+ *    speed and pitch far too small to notice.
+ *  - WALL_CLOCK: the wall clock alone, for comparison; any drift between the two
+ *    clocks ends in underruns or dropped samples sooner or later.
+ *
+ * Until the ring first reaches the target, frames run unpaced to fill it.
+ */
+final class FramePacer implements FrameListener {
+
+	enum Mode {
+		WALL_CLOCK("wall"), AUDIO_CLOCK("audio"), DYNAMIC_RATE("drc");
+
+		final String flag;
+
+		Mode(String flag){
+			this.flag = flag;
+		}
+
+		static Mode forFlag(String flag){
+			for(Mode mode : values())
+				if(mode.flag.equals(flag))
+					return mode;
+			throw new IllegalArgumentException("Unknown pacing mode: " + flag);
+		}
+	}
+
+	//time source and sleep; SYSTEM_CLOCK, or a simulated sound card's (see FramePacerBenchmark)
+	interface Clock {
+		long nanoTime();
+		void sleepUntil(long deadline);
+	}
+
+	final static Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void sleepUntil(long deadline) {
+			long remaining;
+			while((remaining = deadline - System.nanoTime()) > 0)
+				LockSupport.parkNanos(remaining);
+		}
+	};
+
+	final static double FRAME_NANOS = LCDController.TOTAL_REFRESH_CYCLES * 1e9 / CPU.PROCESSOR_FREQUENCY_HZ;
+
+	final static double MAX_ADJUSTMENT = 0.005;
+
+	//weight of each frame's ring fill in the smoothed fill (the drain thread takes samples in chunks)
+	private final static double FILL_SMOOTHING = 0.05;
+
+	//deadlines further in the past than this are given up on (the emulator fell behind or was paused)
+	private final static int MAX_LAG_FRAMES = 4;
+
+	private final AudioOutput output;
+	private final Mode mode;
+	private final int targetFrames;
+	private final Clock clock;
+
+	private boolean primed = false;
+	private double deadline = -1;
+	private double fill;
+	private double adjustment;
+
+	//for EmulationMetrics
+	private long lastFrameTime = -1;
+	private long lastFrameCycles;
+
+	//latency of the newest samples at the end of each frame, and the range of adjustments made
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private double minAdjustment;
+	private double maxAdjustment;
+
+	//targetMillis: the audio to keep waiting in the output's ring
+	FramePacer(AudioOutput output, Mode mode, int targetMillis, Clock clock){
+		this.output = output;
+		this.mode = mode;
+		this.targetFrames = (int)((long)output.getSampleRate() * targetMillis / 1000);
+		this.clock = clock;
+		if(targetFrames > output.getCapacityFrames())
+			throw new IllegalArgumentException("Target latency exceeds the output's buffer");
+	}
+
+	//from the emulation thread, or before it starts
+	void attach(GameBoy gameBoy){
+		gameBoy.addFrameListener(this);
+		gameBoy.setPacer(this);
+	}
+
+	void detach(GameBoy gameBoy){
+		gameBoy.removeFrameListener(this);
+		gameBoy.setPacer(null);
+	}
+
+	@Override
+	public void frameCompleted(GameBoy gameBoy) {
+
+		long startTime = clock.nanoTime();
+		long cycles = gameBoy.getClockCycles();
+		//the emulated time since the last frame; more than a frame when the LCD was off
+		double emulatedNanos = (cycles - lastFrameCycles) * 1e9 / CPU.PROCESSOR_FREQUENCY_HZ;
+		int buffered = output.getBufferedFrames();
+		latencies.record(buffered * 1000000000L / output.getSampleRate());
+
+		if(!primed){
+			primed = buffered >= targetFrames;
+			fill = buffered;
+		}else if(mode == Mode.AUDIO_CLOCK){
+			int excess;
+			while((excess = output.getBufferedFrames() - targetFrames) > 0)
+				clock.sleepUntil(clock.nanoTime() + excess * 1000000000L / output.getSampleRate());
+		}else if(mode == Mode.DYNAMIC_RATE){
+			fill += FILL_SMOOTHING * (buffered - fill);
+			adjustment = Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT,
+					MAX_ADJUSTMENT * (targetFrames - fill) / targetFrames));
+			minAdjustment = Math.min(minAdjustment, adjustment);
+			maxAdjustment = Math.max(maxAdjustment, adjustment);
+			waitFor(emulatedNanos / (1 + adjustment));
+		}else{
+			waitFor(emulatedNanos);
+		}
+
+		long endTime = clock.nanoTime();
+		EmulationMetrics metrics = gameBoy.getMetrics();
+		if(metrics != null && lastFrameTime >= 0)
+			metrics.pacedStep(endTime - lastFrameTime, endTime - startTime, (int)(cycles - lastFrameCycles));
+		lastFrameTime = endTime;
+		lastFrameCycles = cycles;
+	}
+
+	private void waitFor(double period){
+		long now = clock.nanoTime();
+		if(deadline < 0 || now - deadline > MAX_LAG_FRAMES * FRAME_NANOS)
+			deadline = now;
+		deadline += period;
+		clock.sleepUntil((long)deadline);
+	}
+
+	//the current speed relative to real time, 1 +- MAX_ADJUSTMENT
+	double getSpeed(){
+		return 1 + adjustment;
+	}
+
+	LatencyHistogram getLatencies(){
+		return latencies;
+	}
+
+	void resetStatistics(){
+		latencies.reset();
+		minAdjustment = maxAdjustment = adjustment;
+	}
+
+	//the range getSpeed() has been in since the last resetStatistics()
+	double getMinSpeed(){
+		return 1 + minAdjustment;
+	}
+
+	double getMaxSpeed(){
+		return 1 + maxAdjustment;
+	}
+
+}
@@ -1,10 +1,23 @@
 package emulator;
 
 import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
 import emulator.LCDController;
 
+/*
+ * Called once per frame on the emulation thread, at the first instruction boundary
+ * after the LCD enters VBlank, so the machine is in a consistent state (it can be
+ * captured, restored or have its input changed from here).
+ */
+interface FrameListener {
+	void frameCompleted(GameBoy gameBoy);
+}
+
 public class GameBoy extends Thread{
 	
 	public final static int INTERRUPT_FLAG_REGISTER_ADDR = 0xFF0F;
@@ -14,20 +27,102 @@ public class GameBoy extends Thread{
 	
 	public boolean lcdControllerIsIdle;
 	
-	private int machineCycles;
-	private int clockCycles;
+	private long machineCycles;
+	private long clockCycles;
+	
+	private volatile long frameCount;
+	
+	private FrameListener[] frameListeners = new FrameListener[0];
+	//set at VBlank when there are listeners; the CPU dispatches them after the current instruction
+	boolean frameListenersPending;
+	
+	//set while EmulationMetrics is attached; otherwise the LCD and screen are run untimed
+	private EmulationMetrics metrics;
+	
+	//set while a FramePacer paces whole frames; CPU.run() then doesn't pace each step
+	private FramePacer pacer;
+	
+	//set while a VideoRecorder records the frames
+	private VideoRecorder videoRecorder;
+	
+	public final static int SCREEN_WIDTH = 160;
+	public final static int SCREEN_HEIGHT = 144;
+	
+	//the last completed rows as shades (0=white..3=black) after palette mapping, row-major
+	private byte[] frameBuffer = new byte[SCREEN_WIDTH * SCREEN_HEIGHT];
+	//true while frameBuffer is shared with a fork (copy before writing)
+	private boolean frameBufferShared;
+	//reserved for loadState() to unshare frameBuffer with; see reserveRestoreBuffers()
+	private byte[] spareFrameBuffer;
+	
+	private final boolean headless;
 	
 	private CPU cpu;
 	private LCDController lcd;
-	private ScreenFrame screenFrame;
+	private volatile ScreenFrame screenFrame;	//created on the event dispatch thread
 	
 	public InputHandler inputHandler;
 	public Memory memory;
+	public SerialPort serialPort;
+	public APU apu;
 		
 	public GameBoy() {
+		this(false);
+	}
+	
+	//a headless GameBoy has no window and is driven by the caller through powerOn()/runCycles()
+	public GameBoy(boolean headless) {
+		this.headless = headless;
 		init();
 	}
 	
+	//a headless GameBoy with the ROM loaded, for tools to attach their probes to before powerOn()
+	public GameBoy(RomImage rom) {
+		this(true);
+		new RomLoader(this).loadROM(rom);
+	}
+	
+	//see fork()
+	private GameBoy(GameBoy parent) {
+		this.headless = true;
+		
+		final CyclicBarrier barrier = new CyclicBarrier(1);
+		
+		memory = parent.memory.fork(this);
+		cpu = new CPU(this, barrier);
+		lcd = parent.lcd.fork(this, barrier);
+		inputHandler = new InputHandler(this);
+		serialPort = new SerialPort(this);
+		apu = new APU(this);
+		
+		old_y = parent.old_y;
+		reset = parent.reset;
+		lcdControllerIsIdle = parent.lcdControllerIsIdle;
+		machineCycles = parent.machineCycles;
+		clockCycles = parent.clockCycles;
+		frameCount = parent.frameCount;
+		frameBuffer = parent.frameBuffer;
+		frameBufferShared = true;
+		parent.frameBufferShared = true;
+		
+		cpu.copyStateFrom(parent.cpu);
+		inputHandler.copyStateFrom(parent.inputHandler);
+		apu.copyStateFrom(parent.apu);
+		serialPort.copyStateFrom(parent.serialPort);
+	}
+	
+	/*
+	 * Returns a headless copy of this machine in its current state. The ROM is shared,
+	 * RAM and the framebuffer are shared copy-on-write, and the LCD caches until either
+	 * side refills them on its next line, so a fork costs little up front and each side
+	 * only pays for the pages it writes afterwards.
+	 * Must be called on the thread driving this instance (or while it is paused); the
+	 * fork may then be run on any thread. The serial device and link cable are not carried over.
+	 */
+	public GameBoy fork() {
+		return new GameBoy(this);
+	}
+	
 	private void init() {
 		
 	    final CyclicBarrier barrier = new CyclicBarrier(1);
@@ -36,12 +131,32 @@ public class GameBoy extends Thread{
 		cpu = new CPU(this, barrier);
 		lcd = new LCDController(this, barrier);
 		inputHandler = new InputHandler(this);
-		screenFrame = new ScreenFrame(this);
+		serialPort = new SerialPort(this);
+		apu = new APU(this);
+		if(!headless)
+			openScreenLater();
 		
 		lcdControllerIsIdle = false;
 
 	}
 	
+	/*
+	 * Builds the window on the event dispatch thread while the caller goes on loading
+	 * the ROM and powering on, instead of blocking the constructor on Swing's startup
+	 * (toolkit, fonts, the key repeat fixer), the largest part of a cold start. Rows
+	 * and palettes set before the window exists are simply not shown; the palettes
+	 * are handed over once it does.
+	 */
+	private void openScreenLater() {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				screenFrame = new ScreenFrame(GameBoy.this);
+				memory.refreshPalettes();
+			}
+		});
+	}
+	
 	public void start() {
 		
 		cpu.init();
@@ -54,6 +169,140 @@ public class GameBoy extends Thread{
 	    
 	}
 	
+	/*
+	 * Headless counterpart of start(): initializes the CPU and runs the first LCD state
+	 * on the calling thread instead of spawning the CPU and LCD threads.
+	 */
+	public void powerOn() {
+		
+		cpu.init();
+		runLCD();
+		
+	}
+	
+	/*
+	 * Runs instructions on the calling thread until at least the given number of clock
+	 * cycles have elapsed. Returns the number of clock cycles actually executed.
+	 */
+	public long runCycles(long cycles) {
+		
+		long startCycles = cpu.getClockCycles();
+		long endCycles = startCycles + cycles;
+		
+		while(cpu.getClockCycles() < endCycles)
+			cpu.step();
+		
+		return cpu.getClockCycles() - startCycles;
+	}
+	
+	/*
+	 * Runs until the LCD enters the next VBlank, or for one frame's worth of cycles
+	 * if the LCD is switched off. Returns the number of clock cycles executed.
+	 */
+	public long runFrame() {
+		
+		long startCycles = cpu.getClockCycles();
+		long startFrame = frameCount;
+		
+		while(frameCount == startFrame 
+				&& cpu.getClockCycles() - startCycles < LCDController.TOTAL_REFRESH_CYCLES)
+			cpu.step();
+		
+		return cpu.getClockCycles() - startCycles;
+	}
+	
+	//called by the LCD controller on entering VBlank
+	public void frameCompleted() {
+		frameCount++;
+		memory.frameCompleted();
+		if(apu.getOutput() != null)
+			apu.endFrame();
+		if(frameListeners.length > 0)
+			frameListenersPending = true;
+	}
+	
+	//called by the CPU between instructions
+	void dispatchFrameListeners() {
+		frameListenersPending = false;
+		for(FrameListener listener : frameListeners)
+			listener.frameCompleted(this);
+	}
+	
+	//listeners are added and removed from the emulation thread (or while it is paused)
+	public void addFrameListener(FrameListener listener) {
+		FrameListener[] listeners = Arrays.copyOf(frameListeners, frameListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		frameListeners = listeners;
+	}
+	
+	public void removeFrameListener(FrameListener listener) {
+		for(int i = 0; i < frameListeners.length; i++){
+			if(frameListeners[i] == listener){
+				FrameListener[] listeners = new FrameListener[frameListeners.length - 1];
+				System.arraycopy(frameListeners, 0, listeners, 0, i);
+				System.arraycopy(frameListeners, i + 1, listeners, i, listeners.length - i);
+				frameListeners = listeners;
+				return;
+			}
+		}
+	}
+	
+	public long getFrameCount() {
+		return frameCount;
+	}
+	
+	//for tools that step the CPU directly (Debugger)
+	CPU getCPU() {
+		return cpu;
+	}
+	
+	void setMetrics(EmulationMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	//draws the summary of the metrics over the screen; null removes the overlay
+	void setMetricsOverlay(final EmulationMetrics metrics) {
+		//queued behind openScreenLater(), so the window exists by the time this runs
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if(screenFrame != null)
+					screenFrame.screenPanel.setOverlay(metrics);
+			}
+		});
+	}
+	
+	EmulationMetrics getMetrics() {
+		return metrics;
+	}
+	
+	void setPacer(FramePacer pacer) {
+		this.pacer = pacer;
+	}
+	
+	FramePacer getPacer() {
+		return pacer;
+	}
+	
+	void setVideoRecorder(VideoRecorder recorder) {
+		this.videoRecorder = recorder;
+	}
+	
+	private void runLCD() {
+		if(metrics == null){
+			lcd.run();
+			return;
+		}
+		long startTime = System.nanoTime();
+		lcd.run();
+		metrics.ppuTime(System.nanoTime() - startTime);
+	}
+	
+	//for the LCD benchmarks, which render lines outside the state machine
+	LCDController getLCD() {
+		return lcd;
+	}
+	
 //	public void DMATransfer() {
 //		char sourceAddress = (char)(((memory[LCDController.DMA_REGISTER_ADDR] / 0x100) << 8) | 0x0);
 //		char destinationAddress = 0xFE00;
@@ -109,11 +358,100 @@ public class GameBoy extends Thread{
 	}
 	
 	public void projectRow(int row, PixelData[] pixelsArray){
+		
+		if(row < SCREEN_HEIGHT){
+			if(frameBufferShared){
+				frameBuffer = frameBuffer.clone();
+				frameBufferShared = false;
+			}
+			char bgp = memory.readByte(LCDController.BGP_REGISTER_ADDR);
+			char obp0 = memory.readByte(LCDController.OBP0_REGISTER_ADDR);
+			char obp1 = memory.readByte(LCDController.OBP1_REGISTER_ADDR);
+			int offset = row * SCREEN_WIDTH;
+			
+			for(int i = 0; i < SCREEN_WIDTH; i++){
+				PixelData pixel = pixelsArray[i];
+				char palette;
+				switch(pixel.type){
+				case PaletteTypeObject0:	palette = obp0;	break;
+				case PaletteTypeObject1:	palette = obp1;	break;
+				default:					palette = bgp;	break;
+				}
+				frameBuffer[offset + i] = (byte)((palette >> (2 * pixel.color)) & 0b11);
+			}
+			if(videoRecorder != null)
+				videoRecorder.rowProjected(row, pixelsArray, bgp, obp0, obp1);
+		}
+		
+		if(screenFrame == null)
+			return;
+		if(metrics == null){
+			screenFrame.screenPanel.paintRow(row, pixelsArray);
+			return;
+		}
+		long startTime = System.nanoTime();
 		screenFrame.screenPanel.paintRow(row, pixelsArray);
+		metrics.presentationTime(System.nanoTime() - startTime);
+	}
+	
+	public byte[] getFrameBuffer(){
+		return frameBuffer;
+	}
+	
+	//see SaveState
+	void saveState(ByteBuffer buffer){
+		buffer.putInt(old_y);
+		buffer.put((byte)(reset ? 1 : 0));
+		buffer.put((byte)(lcdControllerIsIdle ? 1 : 0));
+		buffer.putLong(machineCycles);
+		buffer.putLong(clockCycles);
+		buffer.putLong(frameCount);
+		buffer.putShort((short)inputHandler.getState());
+		buffer.put(frameBuffer);
+		cpu.saveState(buffer);
+		memory.saveState(buffer);
+		lcd.saveState(buffer);
+		apu.saveState(buffer);
+		serialPort.saveState(buffer);
+	}
+	
+	/*
+	 * Allocates up front what loadState() needs to stop sharing memory with a fork, so
+	 * that a restore (a rewind in particular) doesn't allocate. Cheap when nothing is
+	 * shared; RewindBuffer calls it every frame, since a fork can be taken at any time.
+	 */
+	void reserveRestoreBuffers(){
+		if(frameBufferShared && spareFrameBuffer == null)
+			spareFrameBuffer = new byte[frameBuffer.length];
+		memory.reserveRestorePages();
+		lcd.reserveRestoreCaches();
+	}
+	
+	void loadState(ByteBuffer buffer){
+		old_y = buffer.getInt();
+		reset = buffer.get() != 0;
+		lcdControllerIsIdle = buffer.get() != 0;
+		machineCycles = buffer.getLong();
+		clockCycles = buffer.getLong();
+		frameCount = buffer.getLong();
+		inputHandler.setState(buffer.getShort());
+		if(frameBufferShared){
+			frameBuffer = (spareFrameBuffer != null) ? spareFrameBuffer : new byte[frameBuffer.length];
+			spareFrameBuffer = null;
+			frameBufferShared = false;
+		}
+		buffer.get(frameBuffer);
+		cpu.loadState(buffer);
+		memory.loadState(buffer);
+		lcd.loadState(buffer);
+		apu.loadState(buffer);
+		serialPort.loadState(buffer);
 	}
 	
 
 	public void setColorPalette(PaletteType type, Color[] colors){
+		if(screenFrame == null)
+			return;
 		switch(type){
 		case PaletteTypeBackground:
 			screenFrame.screenPanel.setBackgroundAndWindowColors(colors[0], colors[1], colors[2], colors[3]);
@@ -135,19 +473,23 @@ public class GameBoy extends Thread{
 
 	//GET/SET
 	
-	public int getMachineCycles() {
+	public long getMachineCycles() {
 		return machineCycles;
 	}
 	
-	public void setMachineCycles(int machineCycles){
+	public void setMachineCycles(long machineCycles){
 		this.machineCycles = machineCycles;
 	}
 	
-	public int getClockCycles() {
+	public long getClockCycles() {
 		return clockCycles;
 	}
 	
-	public void setClockCycles(int clockCycles){
+	public boolean isHeadless() {
+		return headless;
+	}
+	
+	public void setClockCycles(long clockCycles){
 		this.clockCycles = clockCycles;
 //		System.out.println("clock cycles: " + this.clockCycles);
 		LCDControllerState prevState = lcd.getLCDState();
@@ -159,12 +501,12 @@ public class GameBoy extends Thread{
 			newState = LCDControllerState.LCD_STATE_VBLANK;
 			lcd.setLCDState(newState);
 
-			int currentCycles = clockCycles%LCDController.TOTAL_REFRESH_CYCLES;
+			int currentCycles = (int)(clockCycles%LCDController.TOTAL_REFRESH_CYCLES);
 			if((currentCycles - LCDController.TOTAL_PRE_VBLANK_CYCLES)/LCDController.HORIZONTAL_LINE_CYCLES != old_y){
 
 				if(lcdControllerIsIdle){
 					lcdControllerIsIdle = false;
-					lcd.run();
+					runLCD();
 				}else{
 					cpu.setState(CPUState.CPU_STATE_WAITING);
 				}
@@ -202,7 +544,7 @@ public class GameBoy extends Thread{
 			if(lcdControllerIsIdle){
 				lcd.setLCDState(newState);
 				lcdControllerIsIdle = false;
-				lcd.run();
+				runLCD();
 			}else{
 				cpu.setState(CPUState.CPU_STATE_WAITING);
 
@@ -0,0 +1,266 @@
+package emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/*
+ * Checked by GameScript.waitUntil() once per frame, on the emulation thread.
+ */
+interface MemoryCondition {
+	boolean test(Memory memory);
+}
+
+/*
+ * Drives a headless GameBoy from code, for automated play and QA: hold buttons for
+ * a number of frames, wait for a RAM value, read RAM. The script runs on the calling
+ * thread and steps emulation itself, frame by frame, so every call is in lockstep
+ * with the machine and nothing runs between calls. A GameBoy without a script pays
+ * nothing for this class.
+ *
+ * Button changes take effect at frame boundaries, like InputMovie, so a script
+ * produces the same run every time.
+ *
+ * main() runs a plain text script (see run()); it exits with status 1 if a wait
+ * times out or an expectation fails, so it can gate a build.
+ */
+public class GameScript {
+
+	private final GameBoy gameBoy;
+	private final int maxFramesPerWait;
+
+	private final static int DEFAULT_MAX_FRAMES_PER_WAIT = 60 * 60;
+
+	public GameScript(GameBoy gameBoy){
+		this(gameBoy, DEFAULT_MAX_FRAMES_PER_WAIT);
+	}
+
+	public GameScript(GameBoy gameBoy, int maxFramesPerWait){
+		this.gameBoy = gameBoy;
+		this.maxFramesPerWait = maxFramesPerWait;
+	}
+
+	//a powered-on headless GameBoy running the image
+	public static GameScript start(RomImage image){
+		GameBoy gameBoy = new GameBoy(image);
+		gameBoy.powerOn();
+		return new GameScript(gameBoy);
+	}
+
+	public GameBoy getGameBoy(){
+		return gameBoy;
+	}
+
+	public long getFrame(){
+		return gameBoy.getFrameCount();
+	}
+
+	//holds the given BUTTON_* mask from now on
+	public void hold(int buttons){
+		gameBoy.inputHandler.setButtons(buttons);
+	}
+
+	public void release(){
+		gameBoy.inputHandler.setButtons(0);
+	}
+
+	//holds the buttons for the given number of frames, then releases them
+	public void press(int buttons, int frames){
+		hold(buttons);
+		waitFrames(frames);
+		release();
+	}
+
+	public void waitFrames(int frames){
+		for(int i = 0; i < frames; i++)
+			gameBoy.runFrame();
+	}
+
+	/*
+	 * Runs until the condition holds at a frame boundary, for at most maxFrames frames.
+	 * Returns the number of frames waited, or -1 on timeout.
+	 */
+	public int waitUntil(MemoryCondition condition, int maxFrames){
+		for(int frames = 0; frames <= maxFrames; frames++){
+			if(condition.test(gameBoy.memory))
+				return frames;
+			if(frames < maxFrames)
+				gameBoy.runFrame();
+		}
+		return -1;
+	}
+
+	public int waitUntil(MemoryCondition condition){
+		return waitUntil(condition, maxFramesPerWait);
+	}
+
+	public int readByte(int address){
+		return gameBoy.memory.readByte(address);
+	}
+
+	//little endian, like the CPU's 16 bit loads
+	public int readWord(int address){
+		return readByte(address) | (readByte(address + 1) << 8);
+	}
+
+	public byte[] readBytes(int address, int length){
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++)
+			bytes[i] = (byte)readByte(address + i);
+		return bytes;
+	}
+
+	public static MemoryCondition byteEquals(final int address, final int value){
+		return new MemoryCondition() {
+			@Override
+			public boolean test(Memory memory) {
+				return memory.readByte(address) == value;
+			}
+		};
+	}
+
+	public static MemoryCondition byteNotEquals(final int address, final int value){
+		return new MemoryCondition() {
+			@Override
+			public boolean test(Memory memory) {
+				return memory.readByte(address) != value;
+			}
+		};
+	}
+
+	public static MemoryCondition bitsSet(final int address, final int mask){
+		return new MemoryCondition() {
+			@Override
+			public boolean test(Memory memory) {
+				return (memory.readByte(address) & mask) == mask;
+			}
+		};
+	}
+
+	/*
+	 * Runs a text script, one command per line ('#' starts a comment):
+	 *   press <buttons> <frames>          e.g. press A+START 5
+	 *   hold <buttons> / release
+	 *   wait <frames>
+	 *   waitfor <addr> <op> <value> [max frames]
+	 *   expect <addr> <op> <value>
+	 *   print <addr> [count]
+	 * Addresses and values are hex (C0A0 or 0xC0A0), frame counts decimal. Ops are
+	 * == != and & (all bits of the value set).
+	 * Returns the number of failed waits and expectations.
+	 */
+	public int run(BufferedReader reader) throws IOException {
+
+		int failures = 0;
+		String line;
+		int lineNumber = 0;
+
+		while((line = reader.readLine()) != null){
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if(comment >= 0)
+				line = line.substring(0, comment);
+			String[] words = line.trim().split("\\s+");
+			if(words[0].isEmpty())
+				continue;
+
+			String command = words[0].toLowerCase();
+			try{
+				if(command.equals("press")){
+					press(parseButtons(words[1]), Integer.parseInt(words[2]));
+				}else if(command.equals("hold")){
+					hold(parseButtons(words[1]));
+				}else if(command.equals("release")){
+					release();
+				}else if(command.equals("wait")){
+					waitFrames(Integer.parseInt(words[1]));
+				}else if(command.equals("waitfor")){
+					int maxFrames = (words.length > 4) ? Integer.parseInt(words[4]) : maxFramesPerWait;
+					int waited = waitUntil(parseCondition(words[1], words[2], words[3]), maxFrames);
+					if(waited < 0){
+						System.out.println(String.format("line %d: timed out after %d frames: %s", lineNumber, maxFrames, line.trim()));
+						failures++;
+					}
+				}else if(command.equals("expect")){
+					if(!parseCondition(words[1], words[2], words[3]).test(gameBoy.memory)){
+						int address = parseHex(words[1]);
+						System.out.println(String.format("line %d: expectation failed, %04X = %02X: %s",
+								lineNumber, address, readByte(address), line.trim()));
+						failures++;
+					}
+				}else if(command.equals("print")){
+					int address = parseHex(words[1]);
+					int count = (words.length > 2) ? Integer.parseInt(words[2]) : 1;
+					StringBuilder text = new StringBuilder(String.format("frame %d, %04X:", getFrame(), address));
+					for(int i = 0; i < count; i++)
+						text.append(String.format(" %02X", readByte(address + i)));
+					System.out.println(text);
+				}else{
+					throw new IllegalArgumentException("unknown command " + words[0]);
+				}
+			}catch(RuntimeException e){	//ArrayIndexOutOfBounds, NumberFormat, IllegalArgument
+				throw new IOException("line " + lineNumber + ": cannot parse '" + line.trim() + "' (" + e.getMessage() + ")", e);
+			}
+		}
+		return failures;
+	}
+
+	private static int parseButtons(String text){
+		int buttons = 0;
+		for(String name : text.toUpperCase().split("\\+")){
+			switch(name){
+			case "RIGHT":	buttons |= InputHandler.BUTTON_RIGHT;	break;
+			case "LEFT":	buttons |= InputHandler.BUTTON_LEFT;	break;
+			case "UP":		buttons |= InputHandler.BUTTON_UP;		break;
+			case "DOWN":	buttons |= InputHandler.BUTTON_DOWN;	break;
+			case "A":		buttons |= InputHandler.BUTTON_A;		break;
+			case "B":		buttons |= InputHandler.BUTTON_B;		break;
+			case "SELECT":	buttons |= InputHandler.BUTTON_SELECT;	break;
+			case "START":	buttons |= InputHandler.BUTTON_START;	break;
+			case "NONE":	break;
+			default:		throw new IllegalArgumentException("unknown button " + name);
+			}
+		}
+		return buttons;
+	}
+
+	private static MemoryCondition parseCondition(String address, String operator, String value){
+		switch(operator){
+		case "==":	return byteEquals(parseHex(address), parseHex(value));
+		case "!=":	return byteNotEquals(parseHex(address), parseHex(value));
+		case "&":	return bitsSet(parseHex(address), parseHex(value));
+		default:	throw new IllegalArgumentException("unknown operator " + operator);
+		}
+	}
+
+	private static int parseHex(String text){
+		if(text.startsWith("0x") || text.startsWith("0X"))
+			text = text.substring(2);
+		return Integer.parseInt(text, 16);
+	}
+
+	/*
+	 * Usage: GameScript script rom
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if(args.length != 2){
+			System.out.println("Usage: GameScript <script> <rom>");
+			System.exit(2);
+		}
+
+		GameScript script = start(RomImage.load(args[1]));
+
+		long startTime = System.nanoTime();
+		int failures;
+		try(BufferedReader reader = new BufferedReader(new FileReader(new File(args[0])))){
+			failures = script.run(reader);
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		System.out.println(String.format("%d frames in %.2f s, %d failures", script.getFrame(), seconds, failures));
+		System.exit((failures > 0) ? 1 : 0);
+	}
+
+}
@@ -2,16 +2,21 @@ package emulator;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/*
+ * Joypad state. The eight buttons live in one atomic word that input threads (AWT,
+ * scripts, replays) update without locks; the emulation thread derives the value of
+ * the joypad register from it whenever the CPU reads P1, and raises the joypad
+ * interrupt for new presses at the next instruction boundary (see pollInput()).
+ * Nothing here writes to Memory from another thread.
+ */
 public class InputHandler implements KeyListener {
-	
-	private ArrayList<Integer> pressedKeyCodes;
-	
+
 	private GameBoy gameBoy;
-	
-	public final static int JOYPAD_ADDR = 0xFF00; 
-	
+
+	public final static int JOYPAD_ADDR = 0xFF00;
+
 	private final static int A_KEY = KeyEvent.VK_A;
 	private final static int B_KEY = KeyEvent.VK_S;
 	private final static int UP_KEY = KeyEvent.VK_UP;
@@ -21,115 +26,167 @@ public class InputHandler implements KeyListener {
 	private final static int START_KEY = KeyEvent.VK_SPACE;
 	private final static int SELECT_KEY = KeyEvent.VK_ENTER;
 
+	//button bits for programmatic input, laid out like the joypad register (P14 nibble, then P15 nibble)
+	public final static int BUTTON_RIGHT	= 0x01;
+	public final static int BUTTON_LEFT		= 0x02;
+	public final static int BUTTON_UP		= 0x04;
+	public final static int BUTTON_DOWN		= 0x08;
+	public final static int BUTTON_A		= 0x10;
+	public final static int BUTTON_B		= 0x20;
+	public final static int BUTTON_SELECT	= 0x40;
+	public final static int BUTTON_START	= 0x80;
+
+	private final static int BUTTON_MASK	= 0xFF;
+	//set along with the button bits when a button goes down; cleared by the emulation thread
+	private final static int PRESS_PENDING	= 0x100;
+
+	private final static int[] BUTTON_KEY_CODES = {
+		RIGHT_KEY, LEFT_KEY, UP_KEY, DOWN_KEY, A_KEY, B_KEY, SELECT_KEY, START_KEY
+	};
+
+	//held buttons (BUTTON_* mask) | PRESS_PENDING
+	private final AtomicInteger state = new AtomicInteger();
+
+	//when latched, key events only update latchedButtons; see InputMovie.Recorder
+	private volatile boolean latched = false;
+	private final AtomicInteger latchedButtons = new AtomicInteger();
+
 	public InputHandler(GameBoy gameBoy){
 		this.gameBoy = gameBoy;
-		this.pressedKeyCodes = new ArrayList<Integer>();
 	}
-	
+
 	@Override
-	public synchronized void keyPressed(KeyEvent event) {
-//		System.out.println("P14 low: " + isP14Low());
-//		System.out.println("P15 low: " + isP15Low());
-		this.pressedKeyCodes.add(event.getKeyCode());
-		
-		updateJoypadRegisterForPress(event);
-		gameBoy.resumeCPUExecution();
+	public void keyPressed(KeyEvent event) {
+		int button = buttonForKeyCode(event.getKeyCode());
+		if(button == 0)
+			return;
+		if(latched){
+			setBits(latchedButtons, button, true);
+			return;
+		}
+		press(button);
 	}
 
 	@Override
-	public synchronized void keyReleased(KeyEvent event) {
-		this.pressedKeyCodes.remove((Object)event.getKeyCode());
-		updateJoypadRegisterForRelease(event);
+	public void keyReleased(KeyEvent event) {
+		int button = buttonForKeyCode(event.getKeyCode());
+		if(button == 0)
+			return;
+		if(latched){
+			setBits(latchedButtons, button, false);
+			return;
+		}
+		setBits(state, button, false);
 	}
 
 	@Override
 	public void keyTyped(KeyEvent event) {/* NOT NEEDED */}
-	
-	private boolean isP14Low() {
-		char joypadRegVal = gameBoy.memory.readByte(InputHandler.JOYPAD_ADDR);
-		return (joypadRegVal & 0x10) == 0;
-	}
-	
-	private boolean isP15Low() {
-		char joypadRegVal = gameBoy.memory.readByte(InputHandler.JOYPAD_ADDR);
-		return (joypadRegVal & 0x20) == 0;
-	}
-	
-	private void updateJoypadRegisterForRelease(KeyEvent event){
-		
-		char joypadReg = gameBoy.memory.readByte(InputHandler.JOYPAD_ADDR);
-		
-		switch(event.getKeyCode()){
-		case A_KEY:
-		case RIGHT_KEY: 
-			joypadReg |= 0x01;	break;
-		case B_KEY:
-		case LEFT_KEY:
-			joypadReg |= 0x02;	break;
-		case SELECT_KEY:
-		case UP_KEY:
-			joypadReg |= 0x04;	break;
-		case START_KEY:
-		case DOWN_KEY:
-			joypadReg |= 0x08;	break;
+
+	//see GameBoy.fork(); copies the held buttons without raising an interrupt
+	void copyStateFrom(InputHandler other){
+		this.state.set(other.state.get());
+	}
+
+	/*
+	 * In latched mode keyboard input no longer reaches the joypad directly: key events
+	 * are collected and only take effect when the emulation thread calls
+	 * applyLatchedButtons(), so that input changes land on well defined frame
+	 * boundaries and a recording of them can be replayed exactly.
+	 */
+	public void setLatched(boolean latched){
+		this.latchedButtons.set(getButtons());
+		this.latched = latched;
+	}
+
+	//replaces the collected buttons, for input that does not come from the keyboard
+	public void latchButtons(int buttons){
+		latchedButtons.set(buttons & BUTTON_MASK);
+	}
+
+	//applies the buttons collected since the last call; returns the resulting BUTTON_* mask
+	public int applyLatchedButtons(){
+		int buttons = latchedButtons.get();
+		setButtons(buttons);
+		return buttons;
+	}
+
+	private static int buttonForKeyCode(int keyCode){
+		for(int i = 0; i < BUTTON_KEY_CODES.length; i++){
+			if(BUTTON_KEY_CODES[i] == keyCode)
+				return 1 << i;
 		}
-		
-		gameBoy.memory.writeByte(JOYPAD_ADDR, joypadReg, HardwareType.Joypad);
-		
-	}
-	
-	private void updateJoypadRegisterForPress(KeyEvent event){
-		
-		char joypadReg = gameBoy.memory.readByte(InputHandler.JOYPAD_ADDR);
-		
-		if(isP14Low()){
-			switch(event.getKeyCode()){
-			case UP_KEY:		joypadReg &= ~0x04;	break;
-			case DOWN_KEY:		joypadReg &= ~0x08;	break;
-			case LEFT_KEY:		joypadReg &= ~0x02;	break;
-			case RIGHT_KEY:		joypadReg &= ~0x01;	break;
-			default:			return;
-			}
-		}else if(isP15Low()){
-			switch(event.getKeyCode()){
-			case A_KEY:			joypadReg &= ~0x01;	break;
-			case B_KEY:			joypadReg &= ~0x02;	break;
-			case START_KEY:		joypadReg &= ~0x08;	break;
-			case SELECT_KEY:	joypadReg &= ~0x04;	break;
-			}
+		return 0;
+	}
+
+	//the currently held buttons as a BUTTON_* mask
+	public int getButtons(){
+		return state.get() & BUTTON_MASK;
+	}
+
+	/*
+	 * Replaces the set of held buttons with the given BUTTON_* mask, as if the
+	 * corresponding keys had been pressed or released. May be called from any thread.
+	 */
+	public void setButtons(int buttons){
+		buttons &= BUTTON_MASK;
+		while(true){
+			int current = state.get();
+			boolean newPress = (buttons & ~current) != 0;
+			int next = buttons | (current & PRESS_PENDING) | (newPress ? PRESS_PENDING : 0);
+			if(state.compareAndSet(current, next))
+				return;
 		}
-		gameBoy.memory.writeByte(JOYPAD_ADDR, joypadReg, HardwareType.Joypad);
-		raiseJoypadInterrupt();
 	}
-	
-	private void raiseJoypadInterrupt(){
-		gameBoy.requestInterrupt(Interrupt.InterruptJoypad);
+
+	private void press(int button){
+		while(true){
+			int current = state.get();
+			if(state.compareAndSet(current, current | button | PRESS_PENDING))
+				return;
+		}
 	}
 
-	public synchronized void updateJoypadRegForInputLineChange(){
-		
-		char joypadReg = gameBoy.memory.readByte(InputHandler.JOYPAD_ADDR);
-		
-		joypadReg |= 0xF;
-		
-		for(Integer pressedKeyCode : this.pressedKeyCodes){
-			if(isP14Low()){
-				switch(pressedKeyCode){
-				case UP_KEY:		joypadReg &= ~0x04;	break;
-				case DOWN_KEY:		joypadReg &= ~0x08;	break;
-				case LEFT_KEY:		joypadReg &= ~0x02;	break;
-				case RIGHT_KEY:		joypadReg &= ~0x01;	break;
-				}
-			}else if(isP15Low()){
-				switch(pressedKeyCode){
-				case A_KEY:			joypadReg &= ~0x01;	break;
-				case B_KEY:			joypadReg &= ~0x02;	break;
-				case START_KEY:		joypadReg &= ~0x08;	break;
-				case SELECT_KEY:	joypadReg &= ~0x04;	break;
-				}
-			}
+	private static void setBits(AtomicInteger word, int bits, boolean set){
+		while(true){
+			int current = word.get();
+			if(word.compareAndSet(current, set ? (current | bits) : (current & ~bits)))
+				return;
 		}
-		
-		gameBoy.memory.writeByte(JOYPAD_ADDR, joypadReg, HardwareType.Joypad);
+	}
+
+	/*
+	 * Called by the CPU between instructions: raises the joypad interrupt and leaves
+	 * STOP if a button went down since the last call. A single volatile read when
+	 * nothing happened.
+	 */
+	void pollInput(){
+		if((state.get() & PRESS_PENDING) == 0)
+			return;
+		setBits(state, PRESS_PENDING, false);
+		gameBoy.requestInterrupt(Interrupt.InterruptJoypad);
+		gameBoy.resumeCPUExecution();
+	}
+
+	/*
+	 * The value the CPU reads from P1, given the select bits it last wrote (P14 = bit 4,
+	 * P15 = bit 5, active low). Selected lines read 0 for held buttons.
+	 */
+	char readJoypadRegister(char p1){
+		int buttons = state.get();
+		int lines = 0x0F;
+		if((p1 & 0x10) == 0)
+			lines &= ~buttons;
+		if((p1 & 0x20) == 0)
+			lines &= ~(buttons >> 4);
+		return (char)((p1 & 0xF0) | (lines & 0x0F));
+	}
+
+	//see SaveState; includes a press that the CPU has not yet seen
+	int getState(){
+		return state.get();
+	}
+
+	void setState(int state){
+		this.state.set(state & (BUTTON_MASK | PRESS_PENDING));
 	}
 }
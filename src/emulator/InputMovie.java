@@ -0,0 +1,393 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/*
+ * A recording of joypad input, one BUTTON_* mask per frame, together with the SHA-1
+ * of the ROM it was made with and the state it starts from (empty for power-on).
+ *
+ * Input only ever changes on frame boundaries (see FrameListener): entry 0 is held
+ * from the start, entry k from the k-th frame boundary on. Since emulation is
+ * otherwise deterministic, replaying a movie reproduces the recorded run exactly.
+ *
+ * Every CHECKPOINT_INTERVAL frames the recorder also stores the machine state. One
+ * core emulates at about 4-5x real time, so an hour of input takes some 13 minutes
+ * to replay frame by frame; play(movie, rom, threads) instead replays the minutes
+ * between checkpoints in parallel, each from its checkpoint, and checks that each
+ * ends in the state of the next. The hour then takes 13 minutes divided by the
+ * cores available (under a minute on 16).
+ *
+ * File layout, little endian: MAGIC, VERSION, ROM hash (20 bytes), start state
+ * length and bytes, frame count, one byte per frame, then the checkpoint count and
+ * per checkpoint its frame, state length and state. Version 1 files have no
+ * checkpoints.
+ */
+public class InputMovie {
+
+	public final static int MAGIC = 0x564D4247;	//"GBMV"
+	public final static int VERSION = 2;
+
+	//a checkpoint per minute: about 60 KB of state for 3.6 KB of input
+	public final static int CHECKPOINT_INTERVAL = 3600;
+
+	private final static int HASH_SIZE = 20;
+
+	private final byte[] romHash;
+	private final byte[] startState;
+	private byte[] frames = new byte[1024];
+	private int frameCount;
+	//the state at the frame boundary where entry checkpointFrames[i] took effect
+	private final List<Integer> checkpointFrames = new ArrayList<Integer>();
+	private final List<byte[]> checkpointStates = new ArrayList<byte[]>();
+
+	public InputMovie(byte[] romHash, byte[] startState){
+		if(romHash.length != HASH_SIZE)
+			throw new IllegalArgumentException("ROM hash must be " + HASH_SIZE + " bytes");
+		this.romHash = romHash.clone();
+		this.startState = (startState != null) ? startState.clone() : new byte[0];
+	}
+
+	public static InputMovie load(String path) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(new File(path).toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		try{
+			if(buffer.getInt() != MAGIC)
+				throw new IOException("Not an input movie: " + path);
+			int version = buffer.getInt();
+			if(version != VERSION && version != 1)
+				throw new IOException("Unsupported input movie version " + version + ": " + path);
+
+			byte[] hash = new byte[HASH_SIZE];
+			buffer.get(hash);
+			byte[] state = new byte[buffer.getInt()];
+			buffer.get(state);
+
+			InputMovie movie = new InputMovie(hash, state);
+			movie.frameCount = buffer.getInt();
+			movie.frames = new byte[Math.max(movie.frameCount, 1)];
+			buffer.get(movie.frames, 0, movie.frameCount);
+			int checkpoints = (version == 1) ? 0 : buffer.getInt();
+			for(int i = 0; i < checkpoints; i++){
+				int frame = buffer.getInt();
+				byte[] checkpoint = new byte[buffer.getInt()];
+				buffer.get(checkpoint);
+				movie.addCheckpoint(frame, checkpoint);
+			}
+			return movie;
+		}catch(RuntimeException e){	//BufferUnderflowException, NegativeArraySizeException
+			throw new IOException("Truncated or corrupt input movie: " + path, e);
+		}
+	}
+
+	public synchronized void save(String path) throws IOException {
+
+		int size = 4 + 4 + HASH_SIZE + 4 + startState.length + 4 + frameCount + 4;
+		for(byte[] checkpoint : checkpointStates)
+			size += 4 + 4 + checkpoint.length;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.put(romHash);
+		buffer.putInt(startState.length);
+		buffer.put(startState);
+		buffer.putInt(frameCount);
+		buffer.put(frames, 0, frameCount);
+		buffer.putInt(checkpointStates.size());
+		for(int i = 0; i < checkpointStates.size(); i++){
+			buffer.putInt(checkpointFrames.get(i));
+			buffer.putInt(checkpointStates.get(i).length);
+			buffer.put(checkpointStates.get(i));
+		}
+
+		Files.write(new File(path).toPath(), buffer.array());
+	}
+
+	public synchronized void append(int buttons){
+		if(frameCount == frames.length)
+			frames = Arrays.copyOf(frames, frames.length * 2);
+		frames[frameCount++] = (byte)buttons;
+	}
+
+	synchronized void addCheckpoint(int frame, byte[] state){
+		checkpointFrames.add(frame);
+		checkpointStates.add(state);
+	}
+
+	public synchronized int getCheckpointCount(){
+		return checkpointStates.size();
+	}
+
+	public synchronized int getFrameCount(){
+		return frameCount;
+	}
+
+	public synchronized int getButtons(int frame){
+		return frames[frame] & 0xFF;
+	}
+
+	public boolean matches(RomImage rom){
+		return Arrays.equals(romHash, rom.getHash());
+	}
+
+	public boolean startsFromPowerOn(){
+		return startState.length == 0;
+	}
+
+	/*
+	 * Records the input of a running GameBoy. While recording, the InputHandler is
+	 * latched: keyboard input (or latchButtons()) only takes effect at the next frame
+	 * boundary, which is also where it is recorded.
+	 *
+	 * start() and stop() must be called on the emulation thread or before it runs;
+	 * to record from power-on, start before powerOn()/start().
+	 */
+	public static class Recorder implements FrameListener {
+
+		private final GameBoy gameBoy;
+		private InputMovie movie;
+
+		public Recorder(GameBoy gameBoy){
+			this.gameBoy = gameBoy;
+		}
+
+		public InputMovie start(boolean fromPowerOn){
+			movie = new InputMovie(gameBoy.memory.getROM().getHash(), fromPowerOn ? null : SaveState.capture(gameBoy));
+			gameBoy.inputHandler.setLatched(true);
+			movie.append(gameBoy.inputHandler.applyLatchedButtons());
+			gameBoy.addFrameListener(this);
+			return movie;
+		}
+
+		public InputMovie stop(){
+			gameBoy.removeFrameListener(this);
+			gameBoy.inputHandler.setLatched(false);
+			return movie;
+		}
+
+		@Override
+		public void frameCompleted(GameBoy gameBoy) {
+			movie.append(gameBoy.inputHandler.applyLatchedButtons());
+			int frame = movie.getFrameCount() - 1;
+			if(frame % CHECKPOINT_INTERVAL == 0)
+				movie.addCheckpoint(frame, SaveState.capture(gameBoy));
+		}
+	}
+
+	/*
+	 * Replays a movie on a headless GameBoy as fast as possible: restores the start
+	 * state (or powers on) and runs up to the frame boundary where the last entry was
+	 * recorded, which is where the recording stopped.
+	 * Returns the number of clock cycles executed.
+	 */
+	public static long play(InputMovie movie, GameBoy gameBoy){
+		begin(movie, gameBoy);
+		return (movie.getFrameCount() > 0) ? run(movie, gameBoy, 0, movie.getFrameCount() - 1) : 0;
+	}
+
+	//restores the start state (or powers on) and applies the first entry
+	private static void begin(InputMovie movie, GameBoy gameBoy){
+
+		if(!movie.matches(gameBoy.memory.getROM()))
+			throw new IllegalArgumentException("Input movie was recorded with a different ROM");
+
+		if(movie.startsFromPowerOn())
+			gameBoy.powerOn();
+		else
+			SaveState.restore(gameBoy, movie.startState);
+
+		if(movie.getFrameCount() > 0)
+			gameBoy.inputHandler.setButtons(movie.getButtons(0));
+	}
+
+	//runs from the boundary where entry start took effect to the one where entry end does
+	private static long run(InputMovie movie, GameBoy gameBoy, int start, int end){
+		Player player = new Player(movie, start, end);
+		long cycles = 0;
+		gameBoy.addFrameListener(player);
+		while(!player.finished)
+			cycles += gameBoy.runFrame();
+		gameBoy.removeFrameListener(player);
+		return cycles;
+	}
+
+	//the outcome of play(movie, rom, threads)
+	public static class Replay {
+		public final long cycles;
+		public final GameBoy gameBoy;	//left in the state the recording ended in
+
+		Replay(long cycles, GameBoy gameBoy){
+			this.cycles = cycles;
+			this.gameBoy = gameBoy;
+		}
+	}
+
+	/*
+	 * Replays a movie on new headless GameBoys, one per stretch between checkpoints,
+	 * on a pool of the given number of threads. Each stretch but the first starts
+	 * from its checkpoint, and each but the last must end in the state of the next
+	 * checkpoint, or an IllegalStateException names the frame where the replay
+	 * diverged. Without checkpoints this is play(movie, gameBoy) on one thread.
+	 */
+	public static Replay play(final InputMovie movie, final RomImage rom, int threads) throws InterruptedException {
+
+		if(!movie.matches(rom))
+			throw new IllegalArgumentException("Input movie was recorded with a different ROM");
+
+		final int lastFrame = Math.max(movie.getFrameCount() - 1, 0);
+		final List<Integer> starts = new ArrayList<Integer>();
+		final List<byte[]> states = new ArrayList<byte[]>();
+		starts.add(0);
+		states.add(null);
+		synchronized(movie){
+			for(int i = 0; i < movie.checkpointFrames.size(); i++){
+				int frame = movie.checkpointFrames.get(i);
+				if(frame > 0 && frame < lastFrame){
+					starts.add(frame);
+					states.add(movie.checkpointStates.get(i));
+				}
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(Math.min(threads, starts.size()), 1));
+		List<Future<Replay>> futures = new ArrayList<Future<Replay>>();
+		for(int i = 0; i < starts.size(); i++){
+			final int start = starts.get(i);
+			final byte[] state = states.get(i);
+			final int end = (i + 1 < starts.size()) ? starts.get(i + 1) : lastFrame;
+			final byte[] expected = (i + 1 < starts.size()) ? states.get(i + 1) : null;
+			futures.add(executor.submit(new Callable<Replay>() {
+				@Override
+				public Replay call() {
+					GameBoy gameBoy = new GameBoy(rom);
+					if(state == null)
+						begin(movie, gameBoy);
+					else
+						SaveState.restore(gameBoy, state);
+					long cycles = run(movie, gameBoy, start, end);
+					if(expected != null && !Arrays.equals(SaveState.capture(gameBoy), expected))
+						throw new IllegalStateException("Replay diverged from the recording before frame " + end);
+					return new Replay(cycles, gameBoy);
+				}
+			}));
+		}
+
+		long cycles = 0;
+		GameBoy last = null;
+		try{
+			for(Future<Replay> future : futures){
+				Replay replay = future.get();
+				cycles += replay.cycles;
+				last = replay.gameBoy;
+			}
+		}catch(ExecutionException e){
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException)e.getCause() : new IllegalStateException(e.getCause());
+		}finally{
+			executor.shutdownNow();
+		}
+		return new Replay(cycles, last);
+	}
+
+	private static class Player implements FrameListener {
+
+		private final InputMovie movie;
+		private final int end;
+		private int frame;
+		private boolean finished;
+
+		Player(InputMovie movie, int start, int end){
+			this.movie = movie;
+			this.frame = start;
+			this.end = end;
+			this.finished = (start >= end);
+		}
+
+		@Override
+		public void frameCompleted(GameBoy gameBoy) {
+			gameBoy.inputHandler.setButtons(movie.frames[++frame] & 0xFF);
+			finished = (frame == end);
+		}
+	}
+
+	//CRC32 of the machine state, to compare runs across replays and builds
+	public static long stateChecksum(GameBoy gameBoy){
+		CRC32 crc = new CRC32();
+		crc.update(SaveState.capture(gameBoy));
+		return crc.getValue();
+	}
+
+	/*
+	 * Usage: InputMovie -record movie [-frames F] rom
+	 *        InputMovie -play movie [-repeat N] [-threads T] rom
+	 * -record records F frames of pseudo-random input headlessly (a stand-in for a
+	 * play session); -play replays a movie unthrottled N times on T threads (all
+	 * cores by default), reporting the speed and the final state checksum, which must
+	 * be the same on every run.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		String recordPath = null;
+		String playPath = null;
+		int frameCount = 3600;
+		int repeat = 2;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String romPath = Main.DEFAULT_ROM;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-record"))		recordPath = args[++i];
+			else if(args[i].equals("-play"))	playPath = args[++i];
+			else if(args[i].equals("-frames"))	frameCount = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-repeat"))	repeat = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-threads"))	threads = Integer.parseInt(args[++i]);
+			else								romPath = args[i];
+		}
+
+		RomImage rom = RomImage.load(romPath);
+
+		if(recordPath != null){
+			GameBoy gameBoy = new GameBoy(rom);
+
+			Recorder recorder = new Recorder(gameBoy);
+			recorder.start(true);
+			gameBoy.powerOn();
+
+			//hold each random combination for a few frames, the way a player would
+			Random random = new Random(0);
+			while(recorder.movie.getFrameCount() < frameCount){
+				if(gameBoy.getFrameCount() % 8 == 0)
+					gameBoy.inputHandler.latchButtons(random.nextInt(0x100));
+				gameBoy.runFrame();
+			}
+			recorder.stop().save(recordPath);
+			System.out.println(String.format("recorded %d frames with %d checkpoints to %s, final state %08x",
+					recorder.movie.getFrameCount(), recorder.movie.getCheckpointCount(), recordPath, stateChecksum(gameBoy)));
+		}
+
+		if(playPath != null){
+			InputMovie movie = load(playPath);
+			for(int i = 0; i < repeat; i++){
+				long startTime = System.nanoTime();
+				Replay replay = play(movie, rom, threads);
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+
+				double emulatedSeconds = replay.cycles / (double)CPU.PROCESSOR_FREQUENCY_HZ;
+				System.out.println(String.format("replayed %d frames (%.1f s emulated) in %.2f s on %d threads, %.1fx real time, final state %08x",
+						movie.getFrameCount(), emulatedSeconds, seconds, threads, emulatedSeconds / seconds, stateChecksum(replay.gameBoy)));
+			}
+		}
+	}
+
+}
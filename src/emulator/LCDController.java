@@ -1,5 +1,6 @@
 package emulator;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.CyclicBarrier;
 
 enum LCDControllerState{
@@ -30,6 +31,9 @@ class PixelData{
 
 public class LCDController extends Thread{
 	
+	//values() clones its array on every call
+	private final static LCDControllerState[] STATES = LCDControllerState.values();
+	
 	private boolean lcdEnabled = true;
 		
 	private char y;
@@ -43,6 +47,15 @@ public class LCDController extends Thread{
 	private char[][] spriteAttsArray;
 	private char[][] spritesArray;
 	private char[] bgDataArray;
+	//the caches as bytes, for saveState()/loadState()
+	private final byte[] stateBytes = new byte[1024];
+	//true while the OAM cache, or the tile and map caches, are shared with a fork; see unshareSpriteAtts()
+	private boolean spriteAttsShared;
+	private boolean tileCachesShared;
+	//own caches reserved for loadState(), so that a restore doesn't allocate (see reserveRestoreCaches())
+	private char[][] spareSpriteAtts;
+	private char[][] spareSprites;
+	private char[] spareBgData;
 	private PixelData[] linePixelArray;
 //	private PaletteType[] linePixelTypeArray;
 
@@ -135,8 +148,74 @@ public class LCDController extends Thread{
 		spritesArray 		= new char[384][16];
 		bgDataArray 		= new char[1024];
 		linePixelArray		= new PixelData[256];
+		for(int i = 0; i < linePixelArray.length; i++)
+			linePixelArray[i] = new PixelData((char)0, PaletteType.PaletteTypeBackground);
 //		linePixelTypeArray 	= new PaletteType[256];
 	}
+	
+	//a fork of parent; the OAM/tile/map caches are shared until either side refreshes them
+	private LCDController(GameBoy gameBoy, CyclicBarrier barrier, LCDController parent){
+		this.gameBoy = gameBoy;
+		this.barrier = barrier;
+		this.state = parent.state;
+		this.lcdEnabled = parent.lcdEnabled;
+		
+		y = parent.y;
+		winPosX = parent.winPosX;
+		winPosY = parent.winPosY;
+		
+		scrollPosX = parent.scrollPosX;
+		scrollPosY = parent.scrollPosY;
+		
+		spriteAttsArray 	= parent.spriteAttsArray;
+		spritesArray 		= parent.spritesArray;
+		bgDataArray 		= parent.bgDataArray;
+		spriteAttsShared	= true;
+		tileCachesShared	= true;
+		parent.spriteAttsShared = true;
+		parent.tileCachesShared = true;
+		
+		linePixelArray		= new PixelData[256];
+		for(int i = 0; i < linePixelArray.length; i++)
+			linePixelArray[i] = new PixelData((char)0, PaletteType.PaletteTypeBackground);
+	}
+	
+	LCDController fork(GameBoy child, CyclicBarrier barrier){
+		return new LCDController(child, barrier, this);
+	}
+	
+	/*
+	 * A fork shares its parent's caches until either side next refills them. Every
+	 * refill (readOAM(), readOAMandVRAM(), loadState()) overwrites each element, so
+	 * the side refilling just switches to arrays of its own; nothing is copied.
+	 */
+	private void unshareSpriteAtts(){
+		if(!spriteAttsShared)
+			return;
+		spriteAttsArray = (spareSpriteAtts != null) ? spareSpriteAtts : new char[40][4];
+		spareSpriteAtts = null;
+		spriteAttsShared = false;
+	}
+	
+	private void unshareTileCaches(){
+		if(!tileCachesShared)
+			return;
+		spritesArray = (spareSprites != null) ? spareSprites : new char[384][16];
+		bgDataArray = (spareBgData != null) ? spareBgData : new char[1024];
+		spareSprites = null;
+		spareBgData = null;
+		tileCachesShared = false;
+	}
+	
+	//allocates the caches loadState() will switch to, while they are shared; see GameBoy.reserveRestoreBuffers()
+	void reserveRestoreCaches(){
+		if(spriteAttsShared && spareSpriteAtts == null)
+			spareSpriteAtts = new char[40][4];
+		if(tileCachesShared && spareSprites == null){
+			spareSprites = new char[384][16];
+			spareBgData = new char[1024];
+		}
+	}
 	//TODO:
 	/*
 	 * Specifies the upper/left positions of the Window area. (The window is 
@@ -196,9 +275,10 @@ public class LCDController extends Thread{
 			break;
 		case LCD_STATE_VBLANK:
 			
-			if(y == 144)
+			if(y == 144){
 				gameBoy.requestInterrupt(Interrupt.InterruptVBlank);
-			else
+				gameBoy.frameCompleted();
+			}else
 				gameBoy.stopRequestingInterrupt(Interrupt.InterruptVBlank);
 
 
@@ -311,6 +391,7 @@ public class LCDController extends Thread{
 	}
 	
 	private void readOAM(){
+		unshareSpriteAtts();
 		final char baseAddressOAM = Memory.SPRITE_ATTRIB_MEMORY_ADDR;
 		for(int i = 0; i < 40; i++){
 			for(int j = 0; j < 4; j++){
@@ -322,6 +403,7 @@ public class LCDController extends Thread{
 	
 	private void readOAMandVRAM(){
 		
+		unshareTileCaches();
 		final char baseAddressVRAM = Memory.EIGHT_KB_VIDEO_RAM_ADDR;
 		for(int i = 0; i < 384; i++){
 			for(int j = 0; j < 16; j++){
@@ -348,7 +430,8 @@ public class LCDController extends Thread{
 	//bugged
 	private void makeLinePixelArray(){
 		//TODO: diff. tile addressing if it's BG #2
-		final int bgTileBaseIndex = ((int)((scrollPosY+y)/8))*32;
+		//the 256x256 background map wraps around vertically
+		final int bgTileBaseIndex = ((int)(((scrollPosY+y) & 0xFF)/8))*32;
 		final int yCoordinate = (scrollPosY+y)%8;
 		
 		//first "draw" the background tiles
@@ -361,7 +444,8 @@ public class LCDController extends Thread{
 			for(int j = 0; j < 8; j++){
 				final char color = (char)((rowBitSequence >> (7-j)) & 0b11);
 //				System.out.println("color " +j + ": " + String.format("%2s", Integer.toBinaryString(color)).replace(' ', '0'));
-				linePixelArray[8*i+j] = new PixelData(color, PaletteType.PaletteTypeBackground);
+				linePixelArray[8*i+j].color = color;
+				linePixelArray[8*i+j].type = PaletteType.PaletteTypeBackground;
 			}
 			
 //			if(rowBitSequence > 0)
@@ -402,6 +486,24 @@ public class LCDController extends Thread{
 		
 	}
 	
+	/*
+	 * The work of one visible line outside the state machine, for the benchmarks: the
+	 * OAM and VRAM copies if copyVideoMemory is set, then composing the line and
+	 * projecting it into the frame buffer. LY, STAT and the state are left alone.
+	 */
+	void renderLine(int line, boolean copyVideoMemory){
+		if(copyVideoMemory){
+			readOAM();
+			readOAMandVRAM();
+		}
+		char currentY = y;
+		y = (char)line;
+		updateScrollValues();
+		makeLinePixelArray();
+		gameBoy.projectRow(y, linePixelArray);
+		y = currentY;
+	}
+	
 	private void performVBlank(){
 		//w/e happens during vblank
 	}
@@ -414,13 +516,40 @@ public class LCDController extends Thread{
 		return this.state;
 	}
 	
+	//see SaveState; the line caches are included so a state taken mid-line resumes exactly
+	void saveState(ByteBuffer buffer){
+		buffer.put((byte)(lcdEnabled ? 1 : 0));
+		buffer.put((byte)state.ordinal());
+		buffer.putChar(y);
+		buffer.putChar(winPosX);
+		buffer.putChar(winPosY);
+		buffer.putChar(scrollPosX);
+		buffer.putChar(scrollPosY);
+		SaveState.putBytes(buffer, spriteAttsArray, stateBytes);
+		SaveState.putBytes(buffer, spritesArray, stateBytes);
+		SaveState.putBytes(buffer, bgDataArray, stateBytes);
+	}
+	
+	void loadState(ByteBuffer buffer){
+		unshareSpriteAtts();
+		unshareTileCaches();
+		lcdEnabled = buffer.get() != 0;
+		state = STATES[buffer.get()];
+		y = buffer.getChar();
+		winPosX = buffer.getChar();
+		winPosY = buffer.getChar();
+		scrollPosX = buffer.getChar();
+		scrollPosY = buffer.getChar();
+		SaveState.getBytes(buffer, spriteAttsArray, stateBytes);
+		SaveState.getBytes(buffer, spritesArray, stateBytes);
+		SaveState.getBytes(buffer, bgDataArray, stateBytes);
+	}
+	
 	public void enableLCD(){
-		System.out.println("enable lcd");
 		this.lcdEnabled = true;
 	}
 	
 	public void disableLCD(){
-		System.out.println("disable lcd");
 		this.lcdEnabled = false;
 		y = 0;
 		updateLYRegister();
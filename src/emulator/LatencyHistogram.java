@@ -0,0 +1,81 @@
+package emulator;
+
+import java.util.Arrays;
+
+/*
+ * Log-linear histogram of non-negative durations in nanoseconds, laid out like
+ * HdrHistogram: each power of two is split into SUB_BUCKETS linear buckets, so any
+ * recorded value is reported within 1/SUB_BUCKETS (about 3%) of itself, from a
+ * nanosecond up to about 18 minutes, in a fixed table of 1184 counters.
+ *
+ * Recording is an index computation and an array increment: no locks, no atomics,
+ * no allocation. A histogram belongs to the thread that records into it; other
+ * threads see its contents through what that thread publishes (see
+ * EmulationMetrics).
+ */
+final class LatencyHistogram {
+
+	private final static int SUB_BUCKET_BITS = 5;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int MAX_MAGNITUDE = 40;	//2^40 ns
+
+	private final long[] counts = new long[(MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS];
+	private long totalCount;
+	private long maxValue;
+
+	void record(long value){
+		if(value < 0)
+			value = 0;
+		counts[index(value)]++;
+		totalCount++;
+		if(value > maxValue)
+			maxValue = value;
+	}
+
+	//values below 2 * SUB_BUCKETS get a bucket each; above, the top SUB_BUCKET_BITS + 1 bits select the bucket
+	private static int index(long value){
+		int magnitude = 63 - Long.numberOfLeadingZeros(value | (SUB_BUCKETS - 1));
+		if(magnitude > MAX_MAGNITUDE)
+			return (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS - 1;
+		int shift = Math.max(magnitude - SUB_BUCKET_BITS, 0);
+		return shift * SUB_BUCKETS + (int)(value >> shift);
+	}
+
+	//the highest value that lands in the bucket
+	private static long highestValue(int index){
+		if(index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long bucketStart = (long)(index - shift * SUB_BUCKETS) << shift;
+		return bucketStart + (1L << shift) - 1;
+	}
+
+	long getTotalCount(){
+		return totalCount;
+	}
+
+	long getMaxValue(){
+		return maxValue;
+	}
+
+	//the value below which the given percentage of the recorded values fall
+	long getValueAtPercentile(double percentile){
+		if(totalCount == 0)
+			return 0;
+		long target = Math.max((long)Math.ceil(totalCount * percentile / 100.0), 1);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++){
+			seen += counts[i];
+			if(seen >= target)
+				return Math.min(highestValue(i), maxValue);
+		}
+		return maxValue;
+	}
+
+	void reset(){
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		maxValue = 0;
+	}
+
+}
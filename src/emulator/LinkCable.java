@@ -0,0 +1,565 @@
+package emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A link cable between the serial ports of two GameBoys, in the same JVM through a
+ * pair of lock-free rings, or in different processes over a (loopback) socket.
+ *
+ * The two ends exchange timestamped messages, each a long: the clock cycle its
+ * sender had reached, transfers started with the internal clock (with the cycle
+ * they complete at and the byte shifted out), the replies to them, and a hangup.
+ * Both ends run in lockstep with bounded skew: an end that gets more than maxSkew
+ * clock cycles ahead of what it last heard from its peer waits for it. With the
+ * skew below SerialPort.TRANSFER_CYCLES, a transfer is always known to the other
+ * end before its completion cycle, so the end on the external clock completes it at
+ * exactly that cycle, and the end on the internal clock waits there for the reply.
+ *
+ * Which GameBoy clocks a transfer is up to the games, as on hardware; when both use
+ * the internal clock, each sees 0xFF from the other.
+ */
+public final class LinkCable {
+
+	public final static int DEFAULT_MAX_SKEW = SerialPort.TRANSFER_CYCLES / 2;
+
+	private final static int CLOCK = 0;
+	private final static int START = 1;
+	private final static int REPLY = 2;
+	private final static int HANGUP = 3;
+
+	//a message: type in the top bits, then the clock cycle, then the data byte
+	private final static int TYPE_SHIFT = 60;
+	private final static int CYCLE_SHIFT = 8;
+
+	private final static long NO_MESSAGE = -1;
+
+	private final static int RING_CAPACITY = 1024;
+
+	//waiting: spin (only worth it with a core for each end), then yield, then park
+	private final static int SPINS = (Runtime.getRuntime().availableProcessors() > 1) ? 10000 : 0;
+	private final static int YIELDS = 1000;
+	private final static long PARK_NANOS = 20000;
+
+	private LinkCable(){
+	}
+
+	//how messages travel; send() is complete when it returns (flushed)
+	interface Transport {
+		void send(long message) throws IOException;
+		long poll();	//NO_MESSAGE when there is none
+		void close() throws IOException;
+	}
+
+	//both ends of a cable within this JVM
+	public static End[] inProcess(int maxSkew){
+		MessageRing aToB = new MessageRing(RING_CAPACITY);
+		MessageRing bToA = new MessageRing(RING_CAPACITY);
+		return new End[]{
+			new End(new RingTransport(aToB, bToA), maxSkew),
+			new End(new RingTransport(bToA, aToB), maxSkew)
+		};
+	}
+
+	//waits for the other end to connect on the given port
+	public static End listen(int port, int maxSkew) throws IOException {
+		ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+		try{
+			return new End(new SocketTransport(server.accept()), maxSkew);
+		}finally{
+			server.close();
+		}
+	}
+
+	public static End connect(String host, int port, int maxSkew) throws IOException {
+		return new End(new SocketTransport(new Socket(host, port)), maxSkew);
+	}
+
+	//both ends of a cable over a loopback socket, both in this JVM
+	public static End[] loopback(int maxSkew) throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try{
+			End client = connect("localhost", server.getLocalPort(), maxSkew);
+			End host = new End(new SocketTransport(server.accept()), maxSkew);
+			return new End[]{ host, client };
+		}finally{
+			server.close();
+		}
+	}
+
+	/*
+	 * One end of the cable, plugged into a GameBoy's serial port and called by it on
+	 * the emulation thread.
+	 */
+	public static final class End {
+
+		private final Transport transport;
+		private final int maxSkew;
+
+		private SerialPort port;
+		private boolean connected = true;
+
+		private long peerClock;
+		private long lastPublished = Long.MIN_VALUE / 2;
+
+		//a transfer started by the peer: the cycle it completes at and its byte; -1 when none
+		private long peerTransferEnd = -1;
+		private char peerData;
+
+		private int reply = -1;
+
+		//statistics
+		private long transfers;
+		private long messages;
+		private long waitNanos;
+
+		End(Transport transport, int maxSkew){
+			if(maxSkew >= SerialPort.TRANSFER_CYCLES)
+				throw new IllegalArgumentException("The skew must be below a transfer: " + maxSkew);
+			this.transport = transport;
+			this.maxSkew = maxSkew;
+		}
+
+		//from the emulation thread, or before it starts
+		public void plugInto(GameBoy gameBoy){
+			port = gameBoy.serialPort;
+			port.setLink(this);
+		}
+
+		//hangs up and unplugs; the peer carries on unlinked
+		public void close() throws IOException {
+			if(connected)
+				send(HANGUP, 0, 0);
+			connected = false;
+			if(port != null)
+				port.setLink(null);
+			transport.close();
+		}
+
+		public boolean isConnected(){
+			return connected;
+		}
+
+		//transfers this end took part in, either way
+		public long getTransfers(){
+			return transfers;
+		}
+
+		public long getMessages(){
+			return messages;
+		}
+
+		//time spent waiting for the peer
+		public long getWaitNanos(){
+			return waitNanos;
+		}
+
+		//called by the port after every instruction
+		void clock(long now){
+			receive(now);
+			if(!connected)
+				return;
+			if(now - lastPublished >= maxSkew / 2)
+				publish(now);
+			if(now > peerClock + maxSkew){
+				long startTime = System.nanoTime();
+				publish(now);
+				for(int spins = 0; connected && now > peerClock + maxSkew; spins++){
+					idle(spins);
+					receive(now);
+				}
+				waitNanos += System.nanoTime() - startTime;
+			}
+		}
+
+		void transferStarted(long end, char data){
+			if(connected)
+				send(START, end, data);
+		}
+
+		//the byte the peer shifted out for the transfer this end clocked, completing at now
+		char awaitReply(long now){
+			long startTime = System.nanoTime();
+			publish(now);
+			for(int spins = 0; reply < 0 && connected; spins++){
+				idle(spins);
+				receive(now);
+			}
+			waitNanos += System.nanoTime() - startTime;
+			if(reply < 0)
+				return SerialPort.DISCONNECTED_BYTE;
+			transfers++;
+			char data = (char)reply;
+			reply = -1;
+			return data;
+		}
+
+		private void receive(long now){
+			long message;
+			while((message = transport.poll()) != NO_MESSAGE){
+				int type = (int)(message >>> TYPE_SHIFT);
+				long cycle = (message & ((1L << TYPE_SHIFT) - 1)) >>> CYCLE_SHIFT;
+				char data = (char)(message & 0xFF);
+				switch(type){
+				case CLOCK:		peerClock = cycle;	break;
+				case START:		peerTransferEnd = cycle;	peerData = data;	break;
+				case REPLY:		reply = data;		break;
+				default:		connected = false;	break;
+				}
+			}
+			if(peerTransferEnd >= 0 && now >= peerTransferEnd){
+				int outgoing = port.externalTransfer(peerData);
+				peerTransferEnd = -1;
+				if(outgoing < 0){
+					outgoing = SerialPort.DISCONNECTED_BYTE;
+				}else{
+					transfers++;
+				}
+				if(connected)
+					send(REPLY, now, outgoing);
+			}
+		}
+
+		private void publish(long now){
+			send(CLOCK, now, 0);
+			lastPublished = now;
+		}
+
+		private void send(int type, long cycle, int data){
+			try{
+				transport.send(((long)type << TYPE_SHIFT) | (cycle << CYCLE_SHIFT) | data);
+				messages++;
+			}catch(IOException e){
+				connected = false;
+			}
+		}
+
+		private static void idle(int spins){
+			if(spins < SPINS)
+				Thread.onSpinWait();
+			else if(spins < SPINS + YIELDS)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	/*
+	 * Single producer, single consumer ring of messages, published with ordered stores
+	 * like AudioRing.
+	 */
+	private static final class MessageRing {
+
+		private final long[] messages;
+		private final int mask;
+
+		private final AtomicLong written = new AtomicLong();
+		private final AtomicLong read = new AtomicLong();
+
+		MessageRing(int capacity){
+			messages = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		boolean offer(long message){
+			long position = written.get();
+			if(position - read.get() == messages.length)
+				return false;
+			messages[(int)(position & mask)] = message;
+			written.lazySet(position + 1);
+			return true;
+		}
+
+		long poll(){
+			long position = read.get();
+			if(position == written.get())
+				return NO_MESSAGE;
+			long message = messages[(int)(position & mask)];
+			read.lazySet(position + 1);
+			return message;
+		}
+	}
+
+	private static final class RingTransport implements Transport {
+
+		private final MessageRing out;
+		private final MessageRing in;
+
+		RingTransport(MessageRing out, MessageRing in){
+			this.out = out;
+			this.in = in;
+		}
+
+		@Override
+		public void send(long message) {
+			for(int spins = 0; !out.offer(message); spins++)
+				End.idle(spins);
+		}
+
+		@Override
+		public long poll() {
+			return in.poll();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/*
+	 * Messages over a socket. A reader thread moves what arrives into a ring, so the
+	 * emulation thread never blocks on a read; a closed connection reads as a hangup.
+	 */
+	private static final class SocketTransport implements Transport {
+
+		private final Socket socket;
+		private final DataOutputStream out;
+		private final MessageRing in = new MessageRing(RING_CAPACITY);
+
+		SocketTransport(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long message;
+					try{
+						while(true){
+							message = input.readLong();
+							for(int spins = 0; !in.offer(message); spins++)
+								End.idle(spins);
+						}
+					}catch(EOFException e){
+						//hung up without a word
+					}catch(IOException e){
+						//closed
+					}
+					for(int spins = 0; !in.offer((long)HANGUP << TYPE_SHIFT); spins++)
+						End.idle(spins);
+				}
+			}, "link-cable");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		@Override
+		public void send(long message) throws IOException {
+			out.writeLong(message);
+			out.flush();
+		}
+
+		@Override
+		public long poll() {
+			return in.poll();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/*
+	 * Usage: LinkCable [-seconds S] [-skew C] (-listen port | -connect host:port) [-tetris rom | master slave]
+	 * Runs one side of a linked pair against another process for S emulated seconds
+	 * (60), unthrottled: the master, waiting for the slave on the port, or the slave.
+	 * Reports the speed, the transfers and the share of time spent waiting for the
+	 * peer. Without ROMs, the pair is a built-in master that sends a counter as fast
+	 * as the link allows and a slave that echoes each byte back on the next transfer;
+	 * the master counts wrong echoes. -tetris runs Tetris on both sides and presses
+	 * the buttons that start a 2-player game (see TETRIS_2P_BUTTONS), which then plays
+	 * on with no further input. LinkCableBenchmark runs both sides in one JVM.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		int seconds = 60;
+		int maxSkew = DEFAULT_MAX_SKEW;
+		int listenPort = -1;
+		String connectTo = null;
+		RomImage master = new RomImage("link-master", buildProgram(true));
+		RomImage slave = new RomImage("link-slave", buildProgram(false));
+		int[][] buttons = { null, null };
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-seconds"))			seconds = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-skew"))		maxSkew = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-listen"))		listenPort = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-connect"))		connectTo = args[++i];
+			else if(args[i].equals("-tetris")){
+				master = slave = RomImage.load(args[++i]);
+				buttons = TETRIS_2P_BUTTONS;
+			}else{
+				master = RomImage.load(args[i]);
+				slave = RomImage.load(args[++i]);
+			}
+		}
+		long cycles = (long)seconds * CPU.PROCESSOR_FREQUENCY_HZ;
+
+		if(listenPort >= 0){
+			System.out.println("waiting for the slave on port " + listenPort);
+			report("master over socket", run(new RomImage[]{ master }, new int[][]{ buttons[0] }, new End[]{ listen(listenPort, maxSkew) }, cycles));
+			return;
+		}
+		if(connectTo != null){
+			int colon = connectTo.lastIndexOf(':');
+			End end = connect(connectTo.substring(0, colon), Integer.parseInt(connectTo.substring(colon + 1)), maxSkew);
+			report("slave over socket", run(new RomImage[]{ slave }, new int[][]{ buttons[1] }, new End[]{ end }, cycles));
+			return;
+		}
+		System.out.println("Usage: LinkCable [-seconds S] [-skew C] (-listen port | -connect host:port) [-tetris rom | master slave]");
+		System.exit(2);
+	}
+
+	static class Session {
+		RomImage[] roms;
+		GameBoy[] gameBoys;
+		End[] ends;
+		long cycles;
+		long nanos;
+	}
+
+	/*
+	 * Button presses of a Tetris 2-player start, per side: pairs of a frame and the
+	 * BUTTON_* mask held from that frame on. The master picks 2PLAYER on the title
+	 * screen, the music is confirmed on the master, and both confirm their handicap.
+	 */
+	private final static int[][] TETRIS_2P_BUTTONS = {
+		{ 250, InputHandler.BUTTON_RIGHT, 255, 0, 270, InputHandler.BUTTON_START, 275, 0, 600, InputHandler.BUTTON_START, 605, 0,
+			700, InputHandler.BUTTON_START, 705, 0, 800, InputHandler.BUTTON_START, 805, 0 },
+		{ 700, InputHandler.BUTTON_START, 705, 0, 800, InputHandler.BUTTON_START, 805, 0 }
+	};
+
+	//runs each ROM on its own thread until it reaches the cycle count, plugged into its end if given
+	static Session run(RomImage[] roms, int[][] buttons, End[] ends, final long cycles) throws InterruptedException {
+
+		final Session session = new Session();
+		session.roms = roms;
+		session.gameBoys = new GameBoy[roms.length];
+		session.ends = ends;
+		session.cycles = cycles;
+		Thread[] threads = new Thread[roms.length];
+
+		for(int i = 0; i < roms.length; i++){
+			final GameBoy gameBoy = new GameBoy(roms[i]);
+			final End end = (ends != null) ? ends[i] : null;
+			if(end != null)
+				end.plugInto(gameBoy);
+			final int[] presses = buttons[i];
+			session.gameBoys[i] = gameBoy;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					gameBoy.powerOn();
+					int frame = 0;
+					int next = 0;
+					while(gameBoy.getClockCycles() < cycles){
+						if(presses != null && next < presses.length && presses[next] == frame){
+							gameBoy.inputHandler.setButtons(presses[next + 1]);
+							next += 2;
+						}
+						gameBoy.runFrame();
+						frame++;
+					}
+					try{
+						if(end != null)
+							end.close();
+					}catch(IOException e){
+						e.printStackTrace();
+					}
+				}
+			}, "link-" + i);
+		}
+
+		long startTime = System.nanoTime();
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		session.nanos = System.nanoTime() - startTime;
+		return session;
+	}
+
+	private static void report(String name, Session session){
+		double emulated = session.cycles / (double)CPU.PROCESSOR_FREQUENCY_HZ;
+		StringBuilder line = new StringBuilder(String.format("%-16s %.0f s emulated in %.2f s, %.1fx real time",
+				name, emulated, session.nanos / 1e9, emulated * 1e9 / session.nanos));
+		if(session.ends != null){
+			End end = session.ends[0];
+			line.append(String.format(", %d transfers (%.0f/s), %d messages, waiting %.0f%%",
+					end.getTransfers(), end.getTransfers() / emulated, end.getMessages(), 100.0 * end.getWaitNanos() / session.nanos));
+			if(session.roms[0].getPath().equals("link-master"))
+				line.append(String.format(", %d wrong echoes", (int)session.gameBoys[0].memory.readByte(ERRORS_ADDR)));
+		}
+		System.out.println(line);
+	}
+
+	private final static int PROGRAM_ADDR = 0x0150;
+	final static int ERRORS_ADDR = 0xC000;
+
+	/*
+	 * The built-in test pair, 32 KB ROM-only cartridges polling SC. The master sends
+	 * 1, 2, 3... and expects each byte back one transfer later, counting mismatches
+	 * at ERRORS_ADDR (up to 255); the slave echoes what it received.
+	 */
+	static byte[] buildProgram(boolean master){
+
+		int[] program;
+		if(master){
+			program = new int[]{
+				0x06, 0x01,						//LD B,1
+				0xAF,							//XOR A
+				0xEA, 0x00, 0xC0,				//LD ($C000),A
+				0x78,							//loop: LD A,B
+				0xE0, 0x01,						//LDH ($01),A
+				0x3E, 0x81,						//LD A,$81
+				0xE0, 0x02,						//LDH ($02),A: start, internal clock
+				0xF0, 0x02,						//wait: LDH A,($02)
+				0xCB, 0x7F,						//BIT 7,A
+				0x20, 0xFA,						//JR NZ,wait
+				0xF0, 0x01,						//LDH A,($01)
+				0x3C,							//INC A
+				0xB8,							//CP B
+				0x28, 0x04,						//JR Z,next
+				0x21, 0x00, 0xC0,				//LD HL,$C000
+				0x34,							//INC (HL)
+				0x04,							//next: INC B
+				0xC3, (PROGRAM_ADDR + 6) & 0xFF, (PROGRAM_ADDR + 6) >> 8	//JP loop
+			};
+		}else{
+			program = new int[]{
+				0xAF,							//XOR A
+				0xE0, 0x01,						//LDH ($01),A
+				0x3E, 0x80,						//loop: LD A,$80
+				0xE0, 0x02,						//LDH ($02),A: start, external clock
+				0xF0, 0x02,						//wait: LDH A,($02)
+				0xCB, 0x7F,						//BIT 7,A
+				0x20, 0xFA,						//JR NZ,wait
+				0xF0, 0x01,						//LDH A,($01)
+				0xE0, 0x01,						//LDH ($01),A
+				0xC3, (PROGRAM_ADDR + 3) & 0xFF, (PROGRAM_ADDR + 3) >> 8	//JP loop
+			};
+		}
+
+		byte[] rom = new byte[2 * RomImage.ROM_BANK_SIZE];
+		rom[0x0100] = (byte)0xC3;	//JP program
+		rom[0x0101] = (byte)(PROGRAM_ADDR & 0xFF);
+		rom[0x0102] = (byte)(PROGRAM_ADDR >> 8);
+		rom[RomImage.CARTRIDGE_TYPE_ADDR] = 0x00;
+		for(int i = 0; i < program.length; i++)
+			rom[PROGRAM_ADDR + i] = (byte)program[i];
+		return rom;
+	}
+
+}
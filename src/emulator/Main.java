@@ -1,13 +1,20 @@
 package emulator;
 
+import java.io.IOException;
+
+import javax.management.JMException;
+
 public class Main{
 	
+	//the ROM the window starts, and the headless tools run when given none
+	final static String DEFAULT_ROM = "./TestROMs/TCFOS.GB";
+	
 	private GameBoy gameBoy;
 	private RomLoader romLoader;
 	
 	//private ScreenFrame screenFrame;
 	
-	public Main() {
+	public Main(String[] args) {
 		gameBoy = new GameBoy();
 		
 		romLoader = new RomLoader(gameBoy);
@@ -15,10 +22,11 @@ public class Main{
 //		romLoader.loadROM("./TestROMs/cpu_instrs.gb");
 //		romLoader.loadROM("./TestROMs/GBTICTAC.GB");
 //		romLoader.loadROM("./TestROMs/GuessTheNumber_1.gb");
-		romLoader.loadROM("./TestROMs/TCFOS.GB");
+		romLoader.loadROM(DEFAULT_ROM);
 //		romLoader.loadROM("./TestROMs/pong.GB");
 //		romLoader.loadROM("./TestROMs/Tetris.gb");
 //		romLoader.loadROM("./TestROMs/BOOTSTRAP.bin");
+		openSaveFile();
 		
 		//Groups of instuctions testing
 //		romLoader.loadROM("./TestROMs/individual/01-special.gb");// <-- PASSED
@@ -33,12 +41,146 @@ public class Main{
 //		romLoader.loadROM("./TestROMs/individual/10-bit ops.gb");
 //		romLoader.loadROM("./TestROMs/individual/11-op a,(hl).gb"); //err
 		
+		//-record <file>: record the keyboard input from power-on, saved when the emulator exits
+		//-metrics: publish EmulationMetrics over JMX (and JFR, when recording)
+		//-overlay: -metrics, and draw them over the screen
+		//-sound: play audio through the default sound output
+		//-pacing <drc|audio|wall|cpu>: how emulation keeps time with -sound (see FramePacer); cpu paces
+		//	every instruction as without sound; drc by default
+		//-wav <file>: write the audio to a .wav file, finished when the emulator exits
+		//-link <port|host:port>: link cable to another emulator, waiting for it on the port or connecting to it
+		//-video <file>: record the screen from power-on losslessly (see VideoRecorder), finished when the emulator exits
+		boolean metrics = false;
+		boolean overlay = false;
+		boolean sound = false;
+		String pacing = FramePacer.Mode.DYNAMIC_RATE.flag;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-record"))			recordInput(args[++i]);
+			else if(args[i].equals("-metrics"))		metrics = true;
+			else if(args[i].equals("-overlay"))		metrics = overlay = true;
+			else if(args[i].equals("-sound"))		sound = true;
+			else if(args[i].equals("-pacing"))		pacing = args[++i];
+			else if(args[i].equals("-wav"))			playAudio(new WavFileSink(args[++i]), true);
+			else if(args[i].equals("-link"))		connectLink(args[++i]);
+			else if(args[i].equals("-video"))		recordVideo(args[++i]);
+		}
+		if(sound){
+			AudioOutput output = playAudio(new SoundLineSink(50), false);
+			if(output != null && !pacing.equals("cpu"))
+				new FramePacer(output, FramePacer.Mode.forFlag(pacing), 40, FramePacer.SYSTEM_CLOCK).attach(gameBoy);
+		}
+		if(metrics)
+			collectMetrics(overlay);
+		
 		gameBoy.start();
 		
 	}
 	
+	//battery-backed cartridge RAM lives in a .sav file next to the ROM
+	private void openSaveFile(){
+		try{
+			if(!gameBoy.memory.mapSaveFile())
+				return;
+		}catch(IOException e){
+			System.err.println("Saves disabled: " + e.getMessage());
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				gameBoy.memory.closeSaveFile();
+			}
+		});
+	}
+	
+	private void recordInput(final String path){
+		final InputMovie movie = new InputMovie.Recorder(gameBoy).start(true);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try{
+					movie.save(path);
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	private void recordVideo(String path){
+		final VideoRecorder recorder;
+		try{
+			recorder = new VideoRecorder(path, 8);
+		}catch(IOException e){
+			System.err.println("Video recording disabled: " + e.getMessage());
+			return;
+		}
+		recorder.attach(gameBoy);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try{
+					recorder.close();
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	//returns the output, or null when the sink couldn't be opened
+	private AudioOutput playAudio(AudioSink sink, boolean lossless){
+		final AudioOutput output;
+		try{
+			output = new AudioOutput(sink, AudioOutput.DEFAULT_SAMPLE_RATE, 100, lossless);
+		}catch(IOException e){
+			System.err.println("Audio disabled: " + e.getMessage());
+			return null;
+		}
+		gameBoy.apu.setOutput(output);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try{
+					output.close();
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+			}
+		});
+		return output;
+	}
+	
+	private void connectLink(String address){
+		try{
+			int colon = address.lastIndexOf(':');
+			LinkCable.End end;
+			if(colon < 0){
+				System.out.println("Waiting for the other emulator on port " + address);
+				end = LinkCable.listen(Integer.parseInt(address), LinkCable.DEFAULT_MAX_SKEW);
+			}else{
+				end = LinkCable.connect(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), LinkCable.DEFAULT_MAX_SKEW);
+			}
+			end.plugInto(gameBoy);
+		}catch(IOException e){
+			System.err.println("Link cable disabled: " + e.getMessage());
+		}
+	}
+	
+	private void collectMetrics(boolean overlay){
+		EmulationMetrics metrics = new EmulationMetrics();
+		try{
+			metrics.registerMBean();
+		}catch(JMException e){
+			e.printStackTrace();
+		}
+		metrics.attach(gameBoy);
+		if(overlay)
+			gameBoy.setMetricsOverlay(metrics);
+	}
+	
 	public static void main(String[] args) {
-		new Main();
+		new Main(args);
 	}
 
 }
@@ -1,6 +1,8 @@
 package emulator;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import emulator.LCDController;
 
@@ -10,7 +12,8 @@ enum HardwareType {
 	Joypad,
 	ROMLoader,
 	Memory,
-	Interrupt
+	Interrupt,
+	Serial
 }
 //TODO: control read access based on type...
 
@@ -22,18 +25,43 @@ enum MBC1MaxMemMode {
 
 public class Memory {
 	
+	private final static MBC1MaxMemMode[] MBC1_MODES = MBC1MaxMemMode.values();
+	
 	private int memoryBankingMode;	//TODO: make this cleaner with enum & stuff
 	
+	//cartridge ROM, shared read-only with every other Memory running the same image
+	private RomImage rom;
+	
 	//mbc1 - improve this...
 	private MBC1MaxMemMode 	mbc1Mode;
 	private boolean 		mbcRAM1enabled;
-	private char[][] 		mbc1Banks;
 	private char 			currentRomBankAddr;
-	private final char		mbc1Offset = 0x4000;
 	
-	private volatile char[] memory;
+	//external RAM at A000-BFFF; null when the cartridge has none (the pages are used as before)
+	private CartridgeRam	cartridgeRam;
+	private int				currentRamBank;	//-1 while the MBC3 clock registers are selected (not emulated)
+	
+	/*
+	 * 8000-FFFF as a table of 256 byte pages; ROM is read from the RomImage and has no
+	 * pages. Pages may be shared with forked instances (see fork()): a shared page is
+	 * copied on the first write to it, so forking only costs the pages touched later.
+	 */
+	private byte[][] pages;
+	private boolean[] sharedPages;
+	//pages reserved for loadState() to replace shared ones with, so a restore doesn't allocate
+	private final byte[][] sparePages = new byte[PAGE_COUNT][];
+	private int spareCount;
+	
+	//set only while the debugger has a watchpoint; a null check is all an unwatched access pays
+	private Debugger watcher;
 	private GameBoy gameBoy;
 	
+	final static int PAGE_SHIFT 							= 8;
+	final static int PAGE_SIZE 								= 1 << PAGE_SHIFT;
+	final static int PAGE_MASK 								= PAGE_SIZE - 1;
+	final static int PAGE_COUNT 							= 0x10000 >> PAGE_SHIFT;
+	final static int FIRST_RAM_PAGE 						= 0x8000 >> PAGE_SHIFT;
+	
 	final static int SIXTEEN_KB_ROM_BANK_0_ADDR 			= 0x0000;
 	final static int SIXTEEN_KB_SWITCHABLE_ROM_BANK_ADDR 	= 0x4000;
 	final static int EIGHT_KB_VIDEO_RAM_ADDR 				= 0x8000;
@@ -47,61 +75,195 @@ public class Memory {
 	
 
 	public Memory(GameBoy gameBoy){
-		this.memory = new char[65536];
+		this.pages = new byte[PAGE_COUNT][];
+		this.sharedPages = new boolean[PAGE_COUNT];
+		for(int i = FIRST_RAM_PAGE; i < PAGE_COUNT; i++)
+			pages[i] = new byte[PAGE_SIZE];
 		this.gameBoy = gameBoy;
 		
 		//set all lines of the joypad register high initially
-		memory[InputHandler.JOYPAD_ADDR] = (char)0x3F;
+		poke(InputHandler.JOYPAD_ADDR, (char)0x3F);
 		
 		//default
 		memoryBankingMode = 0;
 
 		//mbc1
-		mbc1Banks = new char[32][0x4000];
 		currentRomBankAddr = 1; //sketchy
 		mbc1Mode = MBC1MaxMemMode.SixteenEightMode; //default
 		mbcRAM1enabled = false; //default
 	}
 	
+	//a fork of parent for the given (child) GameBoy, sharing all RAM pages copy-on-write
+	private Memory(GameBoy gameBoy, Memory parent){
+		this.gameBoy = gameBoy;
+		this.pages = parent.pages.clone();
+		this.sharedPages = new boolean[PAGE_COUNT];
+		Arrays.fill(this.sharedPages, FIRST_RAM_PAGE, PAGE_COUNT, true);
+		Arrays.fill(parent.sharedPages, FIRST_RAM_PAGE, PAGE_COUNT, true);
+		
+		this.rom = parent.rom;
+		this.memoryBankingMode = parent.memoryBankingMode;
+		this.mbc1Mode = parent.mbc1Mode;
+		this.mbcRAM1enabled = parent.mbcRAM1enabled;
+		this.currentRomBankAddr = parent.currentRomBankAddr;
+		this.cartridgeRam = (parent.cartridgeRam != null) ? parent.cartridgeRam.fork() : null;
+		this.currentRamBank = parent.currentRamBank;
+	}
+	
+	/*
+	 * Both this Memory and the fork treat every page as shared afterwards; whichever
+	 * writes a page first gets its own copy. (A page that has since been copied by
+	 * one side is still copied once more by the other - harmless, just conservative.)
+	 */
+	Memory fork(GameBoy child){
+		return new Memory(child, this);
+	}
+	
+	private char peek(int address){
+		return (char)(pages[address >> PAGE_SHIFT][address & PAGE_MASK] & 0xFF);
+	}
+	
+	private void poke(int address, char data){
+		int page = address >> PAGE_SHIFT;
+		if(sharedPages[page]){
+			pages[page] = pages[page].clone();
+			sharedPages[page] = false;
+		}
+		pages[page][address & PAGE_MASK] = (byte)data;
+	}
+	
 	public void setMemoryBankingMode(int mode){
 		this.memoryBankingMode = mode;
 	}
 	
-	public void writeROMByte(int address, char data){
-		switch(this.memoryBankingMode){
-			case 0:	this.memory[address] = data; break;
-			case 1: {
-				if(address < 0x4000){
-					this.memory[address] = data;
+	public void loadROM(RomImage rom){
+		this.rom = rom;
+		setMemoryBankingMode(rom.getCartridgeType());
+		cartridgeRam = CartridgeRam.forCartridge(rom);
+		//without an MBC, RAM is always enabled
+		mbcRAM1enabled = (memoryBankingMode == 0x08 || memoryBankingMode == 0x09);
+	}
+	
+	/*
+	 * Maps battery-backed cartridge RAM onto the ROM's .sav file (see CartridgeRam).
+	 * Returns false, leaving RAM in memory, when the cartridge has no battery.
+	 */
+	public boolean mapSaveFile() throws IOException {
+		if(cartridgeRam == null || !CartridgeRam.hasBattery(rom))
+			return false;
+		cartridgeRam = CartridgeRam.map(rom, CartridgeRam.saveFileFor(rom.getPath()));
+		return true;
+	}
+	
+	//forces the save file to disk; emulation may go on using it
+	public void closeSaveFile(){
+		if(cartridgeRam != null)
+			cartridgeRam.close();
+	}
+	
+	//called by GameBoy at VBlank
+	void frameCompleted(){
+		if(cartridgeRam != null)
+			cartridgeRam.frameCompleted();
+	}
+	
+	private void setRamEnabled(char data){
+		boolean enabled = (data & 0x0F) == 0x0A;
+		if(mbcRAM1enabled && !enabled && cartridgeRam != null)
+			cartridgeRam.disabled();
+		mbcRAM1enabled = enabled;
+	}
+	
+	public RomImage getROM(){
+		return rom;
+	}
+	
+	//the bank currently mapped at 4000-7FFF
+	int getCurrentRomBank(){
+		return currentRomBankAddr;
+	}
+	
+	//see SaveState; the ROM itself is not part of the state
+	void saveState(ByteBuffer buffer){
+		buffer.putInt(memoryBankingMode);
+		buffer.put((byte)mbc1Mode.ordinal());
+		buffer.put((byte)(mbcRAM1enabled ? 1 : 0));
+		buffer.putChar(currentRomBankAddr);
+		buffer.putInt(currentRamBank);
+		for(int i = FIRST_RAM_PAGE; i < PAGE_COUNT; i++){
+			if(isStatePage(i))
+				buffer.put(pages[i]);
+		}
+		if(cartridgeRam != null)
+			cartridgeRam.saveState(buffer);
+	}
+	
+	void loadState(ByteBuffer buffer){
+		memoryBankingMode = buffer.getInt();
+		mbc1Mode = MBC1_MODES[buffer.get()];
+		mbcRAM1enabled = buffer.get() != 0;
+		currentRomBankAddr = buffer.getChar();
+		currentRamBank = buffer.getInt();
+		for(int i = FIRST_RAM_PAGE; i < PAGE_COUNT; i++){
+			if(!isStatePage(i))
+				continue;
+			if(sharedPages[i]){
+				//every byte is about to be overwritten, so no need to copy the shared contents
+				if(spareCount > 0){
+					pages[i] = sparePages[--spareCount];
+					sparePages[spareCount] = null;
 				}else{
-					int bankIndex = (address / 0x4000) - 1;
-					mbc1Banks[bankIndex][address - (bankIndex + 1) * 0x4000] = data;
+					pages[i] = new byte[PAGE_SIZE];
 				}
-				break;
-			}				
+				sharedPages[i] = false;
+			}
+			buffer.get(pages[i]);
 		}
+		if(cartridgeRam != null)
+			cartridgeRam.loadState(buffer);
+	}
+	
+	//the pages in a state; A000-BFFF is left out when cartridge RAM is seen there instead
+	private boolean isStatePage(int page){
+		return cartridgeRam == null
+				|| page < (EIGHT_KB_SWITCHABLE_RAM_BANK_ADDR >> PAGE_SHIFT)
+				|| page >= (EIGHT_KB_INTERNAL_RAM_ADDR >> PAGE_SHIFT);
+	}
+	
+	//allocates a spare for every page (and cartridge RAM bank) loadState() would have to unshare; see GameBoy.reserveRestoreBuffers()
+	void reserveRestorePages(){
+		int shared = 0;
+		for(int i = FIRST_RAM_PAGE; i < PAGE_COUNT; i++){
+			if(sharedPages[i] && isStatePage(i))
+				shared++;
+		}
+		while(spareCount < shared)
+			sparePages[spareCount++] = new byte[PAGE_SIZE];
+		if(cartridgeRam != null)
+			cartridgeRam.reserveRestoreBanks();
+	}
+	
+	void setWatcher(Debugger watcher){
+		this.watcher = watcher;
 	}
 	
 	public void writeByte(int address, char data, HardwareType type){
+		
+		if(watcher != null && type == HardwareType.CPU)
+			watcher.memoryWritten(address, data, type);
 				 
 		//This is where we can select the rom bank mode for MBC1
 		switch(this.memoryBankingMode){
 		case 0: break;
-		case 1:{
+		case 1: case 2: case 3:{
 			if(address >= 0x0000 && address <= 0x7FFF){
 				if(address >= 0x0000 && address <= 0x1FFF){
 					
-					if(this.mbc1Mode == MBC1MaxMemMode.FourThirtyTwoMode){
-						switch(data & 0xF){	//TODO: figure out ram in mbc1
-						case 0b1010:	this.mbcRAM1enabled = true;		break;
-						default: 		this.mbcRAM1enabled = false;	break;
-						}
-					}
+					setRamEnabled(data);
 					return;
 
 				}else if(address >= 0x2000 && address <= 0x3FFF){
 					
-					System.out.println("Selecting rom bank address:" + (data & 0x1F));
 					// will select an appropriate ROM bank at 4000-7FFF
 					char bankAddr = (char) (data & 0x1F);
 					if(bankAddr == 0x00)	bankAddr = 0x01;
@@ -114,8 +276,7 @@ public class Memory {
 					
 					// will select an appropriate RAM bank at A000-C000
 					if(this.mbc1Mode == MBC1MaxMemMode.FourThirtyTwoMode){
-						System.out.println("Current rom bank addr: " + (data & 0b11));
-						this.currentRomBankAddr = (char)(data & 0b11);
+						this.currentRamBank = data & 0b11;
 					}
 					
 					// set the two most significant ROM address lines
@@ -123,56 +284,111 @@ public class Memory {
 						char twoBits = (char)(data & 0b11);
 						this.currentRomBankAddr &= ~0b110000;		//double check this
 						this.currentRomBankAddr |= (twoBits << 4);
-						System.out.println("Current rom bank addr: " + currentRomBankAddr);
 					}
 					
 				}else if(address >= 0x6000 && address <= 0x7FFF){
-					System.out.println("Selecting mode: " + (data & 0x1));
 					switch(data & 0x1){
-					case 0: this.mbc1Mode = MBC1MaxMemMode.SixteenEightMode;System.out.println("16-8 mode");	break;
-					case 1: this.mbc1Mode = MBC1MaxMemMode.FourThirtyTwoMode;System.out.println("4-32 mode");	break;
+					case 0: this.mbc1Mode = MBC1MaxMemMode.SixteenEightMode;	break;
+					case 1: this.mbc1Mode = MBC1MaxMemMode.FourThirtyTwoMode;	break;
 					}
 				}
 				return;
 			}
-	
+			break;
+		}
+		case 5: case 6:{	//MBC2: address bit 8 tells the RAM enable and ROM bank registers apart
+			if(address <= 0x3FFF){
+				if((address & 0x100) == 0){
+					setRamEnabled(data);
+				}else{
+					char bankAddr = (char)(data & 0x0F);
+					this.currentRomBankAddr = (bankAddr == 0) ? 1 : bankAddr;
+				}
+				return;
+			}
+			if(address <= 0x7FFF)
+				return;
+			break;
+		}
+		case 0x0F: case 0x10: case 0x11: case 0x12: case 0x13:{	//MBC3
+			if(address <= 0x1FFF){
+				setRamEnabled(data);
+				return;
+			}
+			if(address <= 0x3FFF){
+				char bankAddr = (char)(data & 0x7F);
+				this.currentRomBankAddr = (bankAddr == 0) ? 1 : bankAddr;
+				return;
+			}
+			if(address <= 0x5FFF){
+				this.currentRamBank = (data <= 0x07) ? data & 0x03 : -1;
+				return;
+			}
+			if(address <= 0x7FFF)
+				return;	//clock latch
+			break;
+		}
+		case 0x19: case 0x1A: case 0x1B: case 0x1C: case 0x1D: case 0x1E:{	//MBC5
+			if(address <= 0x1FFF){
+				setRamEnabled(data);
+				return;
+			}
+			if(address <= 0x2FFF){
+				this.currentRomBankAddr = (char)((currentRomBankAddr & 0x100) | data);
+				return;
+			}
+			if(address <= 0x3FFF){
+				this.currentRomBankAddr = (char)((currentRomBankAddr & 0xFF) | ((data & 1) << 8));
+				return;
+			}
+			if(address <= 0x5FFF){
+				this.currentRamBank = data & 0x0F;
+				return;
+			}
+			if(address <= 0x7FFF)
+				return;
+			break;
 		}
 		default: break;//add the rest of the mem. banks at some point
 		}
 		
-		//restrict which bits can be written to by diff. hardware for the joypad register
+		if(cartridgeRam != null && address >= EIGHT_KB_SWITCHABLE_RAM_BANK_ADDR && address < EIGHT_KB_INTERNAL_RAM_ADDR){
+			if(mbcRAM1enabled && currentRamBank >= 0)
+				cartridgeRam.write(currentRamBank, address, data);
+			return;
+		}
+		
+		//the ROM itself is read-only
+		if(address < EIGHT_KB_VIDEO_RAM_ADDR)
+			return;
+		
+		//only the select lines of the joypad register are stored; the button lines are
+		//derived from the InputHandler when the register is read
 		if(address == InputHandler.JOYPAD_ADDR){
-			switch(type){
-			
-			case CPU:
-				memory[address] &= ~0x30;
-				memory[address] |= (char)(data & 0x30);
-				gameBoy.inputHandler.updateJoypadRegForInputLineChange();
+			if(type == HardwareType.CPU){
+				poke(address, (char)(peek(address) & ~0x30));
+				poke(address, (char)(peek(address) | (data & 0x30)));
 				//System.out.println("CPU just wrote " + Integer.toHexString(data) + " to FF00, it was masked with " + Integer.toBinaryString(0x30));
-				break;
-			case Joypad:
-				memory[address] &= ~0x0F;
-				memory[address] |= (char)(data & 0x0F);
-				//System.out.println("Joypad just wrote " + Integer.toHexString(data) + " to FF00, it was masked with " + Integer.toBinaryString(0x0F));
-				break;
-			default:	break;
 			}
 			return;
 		}
 		
 		if(address == LCDController.LCD_REGISTER_ADDR){
 			if(type != HardwareType.LCDController){
-				memory[address] &= ~0xFC;
-				memory[address] |= (char) (data & 0xFC);
+				poke(address, (char)(peek(address) & ~0xFC));
+				poke(address, (char)(peek(address) | (data & 0xFC)));
 				return;
 			}
 
 		}
 		
-		memory[address] = data;		
+		if(address >= APU.FIRST_REGISTER_ADDR && address <= APU.LAST_REGISTER_ADDR && type == HardwareType.CPU)
+			gameBoy.apu.registerWritten(address, data);
+		
+		poke(address, data);
 
-		//echo the 8kb internal RAM
-		if(address >= 0xC000 && address <  0xE000){
+		//echo the 8kb internal RAM; the echo ends at FDFF, so DE00-DFFF has none
+		if(address >= 0xC000 && address <  0xDE00){
 			int echoAddress = (address + 0x2000);
 //			memory[echoAddress] = data; 
 			writeByte(echoAddress, data, HardwareType.Memory);
@@ -184,109 +400,18 @@ public class Memory {
 			DMATransfer();
 		}
 		
-		//set background palette
-		if(address == LCDController.BGP_REGISTER_ADDR){
-			char color1val = (char)(memory[address] & 0b11);
-			char color2val = (char)((memory[address] >> 2) & 0b11);
-			char color3val = (char)((memory[address] >> 4) & 0b11);
-			char color4val = (char)((memory[address] >> 6) & 0b11);
-			char[] colorValsArray = {color1val, color2val, color3val, color4val};
-			Color[] colorsArray = new Color[4];
-			
-			for(int i = 0; i < 4; i++){
-				char colorVal = colorValsArray[i];
-				Color color = null;
-				switch(colorVal){
-				case 0b00:
-					color = Color.white;
-					break;
-				case 0b01:
-					color = Color.lightGray;
-					break;
-				case 0b10:
-					color = Color.darkGray;
-					break;
-				case 0b11:
-					color = Color.black;
-					break;
-					default:
-						break;
-				
-				}
-				colorsArray[i] = color;
-			}
-			gameBoy.setColorPalette(PaletteType.PaletteTypeBackground, colorsArray);
-			
+		if(address == SerialPort.SC_REGISTER_ADDR && type == HardwareType.CPU){
+			gameBoy.serialPort.controlRegisterWritten(data);
 		}
 		
-		//object palette 0; values of 0 transparent
-		if(address == LCDController.OBJ0P_REGISTER_ADDR){
-			
-			char color1val = (char) (memory[address] & 0b11);
-			char color2val = (char) ((char)(memory[address] >> 2) & 0b11);
-			char color3val = (char) ((char)(memory[address] >> 4) & 0b11);
-			char color4val = (char) ((char)(memory[address] >> 6) & 0b11);
-			char[] colorValsArray = {color1val, color2val, color3val, color4val};
-			Color[] colorsArray = new Color[4];
-			
-			for(int i = 0; i < 4; i++){
-				char colorVal = colorValsArray[i];
-				Color color = null;
-				switch(colorVal){
-				case 0b00:
-					color = Color.white;
-					break;
-				case 0b01:
-					color = Color.lightGray;
-					break;
-				case 0b10:
-					color = Color.darkGray;
-					break;
-				case 0b11:
-					color = Color.black;
-					break;
-					default:
-						break;
-				
-				}
-				colorsArray[i] = color;
-			}
-			gameBoy.setColorPalette(PaletteType.PaletteTypeObject0, colorsArray);
-		}
-		
-		//object palette 1; valeus of 0 transparent
-		if(address == LCDController.OBJ1P_REGISTER_ADDR){
-			
-			char color1val = (char) (memory[address] & 0b11);
-			char color2val = (char) ((char)(memory[address] >> 2) & 0b11);
-			char color3val = (char) ((char)(memory[address] >> 4) & 0b11);
-			char color4val = (char) ((char)(memory[address] >> 6) & 0b11);
-			char[] colorValsArray = {color1val, color2val, color3val, color4val};
-			Color[] colorsArray = new Color[4];
-			
-			for(int i = 0; i < 4; i++){
-				char colorVal = colorValsArray[i];
-				Color color = null;
-				switch(colorVal){
-				case 0b00:
-					color = Color.white;
-					break;
-				case 0b01:
-					color = Color.lightGray;
-					break;
-				case 0b10:
-					color = Color.darkGray;
-					break;
-				case 0b11:
-					color = Color.black;
-					break;
-					default:
-						break;
-				
-				}
-				colorsArray[i] = color;
-			}
-			gameBoy.setColorPalette(PaletteType.PaletteTypeObject1, colorsArray);
+		//palettes (headless instances have no screen and read the registers directly)
+		if(!gameBoy.isHeadless()){
+			if(address == LCDController.BGP_REGISTER_ADDR)
+				paletteWritten(PaletteType.PaletteTypeBackground, address);
+			else if(address == LCDController.OBJ0P_REGISTER_ADDR)	//values of 0 transparent
+				paletteWritten(PaletteType.PaletteTypeObject0, address);
+			else if(address == LCDController.OBJ1P_REGISTER_ADDR)
+				paletteWritten(PaletteType.PaletteTypeObject1, address);
 		}
 		
 		//LCD control register
@@ -299,40 +424,125 @@ public class Memory {
 		}
 	}
 	
+	private void paletteWritten(PaletteType type, int address){
+		Color[] colorsArray = new Color[4];
+		for(int i = 0; i < 4; i++)
+			colorsArray[i] = Shades.SHADES[(peek(address) >> (2 * i)) & 0b11];
+		gameBoy.setColorPalette(type, colorsArray);
+	}
+	
+	//a holder, so that headless instances never initialize AWT's Color
+	private final static class Shades {
+		final static Color[] SHADES = { Color.white, Color.lightGray, Color.darkGray, Color.black };
+	}
+	
+	//hands the current palettes to a screen that was just created
+	void refreshPalettes(){
+		paletteWritten(PaletteType.PaletteTypeBackground, LCDController.BGP_REGISTER_ADDR);
+		paletteWritten(PaletteType.PaletteTypeObject0, LCDController.OBJ0P_REGISTER_ADDR);
+		paletteWritten(PaletteType.PaletteTypeObject1, LCDController.OBJ1P_REGISTER_ADDR);
+	}
+	
+	/*
+	 * The I/O registers as the boot ROM leaves them, over a fresh Memory's page
+	 * (joypad lines high). Copied in one go by CPU.init() instead of being written
+	 * one by one through writeByte(); see loadPowerOnState().
+	 */
+	private final static byte[] POWER_ON_IO_PAGE = new byte[PAGE_SIZE];
+	
+	static {
+		byte[] page = POWER_ON_IO_PAGE;
+		page[InputHandler.JOYPAD_ADDR & PAGE_MASK] = 0x3F;
+		page[0x10] = (byte)0x80;	page[0x11] = (byte)0xBF;	page[0x12] = (byte)0xF3;	page[0x14] = (byte)0xBF;	//NR10-NR14
+		page[0x16] = 0x3F;	page[0x17] = 0x00;	page[0x19] = (byte)0xBF;					//NR21-NR24
+		page[0x1A] = 0x7F;	page[0x1B] = (byte)0xFF;	page[0x1C] = (byte)0x9F;	page[0x1E] = (byte)0xBF;	//NR30-NR34
+		page[0x20] = (byte)0xFF;	page[0x21] = 0x00;	page[0x22] = 0x00;	page[0x23] = (byte)0xBF;	//NR41-NR44
+		page[0x24] = 0x77;	page[0x25] = (byte)0xF3;	page[0x26] = (byte)0xF1;					//NR50-NR52, $F0 for super gameboy
+		page[0x40] = (byte)0x91;	//LCDC
+		page[0x47] = (byte)0xFC;	page[0x48] = (byte)0xFF;	page[0x49] = (byte)0xFF;	//BGP, OBP0, OBP1
+	}
+	
+	//the sound registers the APU is told about, in the order the boot ROM leaves them
+	private final static int[] POWER_ON_SOUND_REGISTERS = {
+		0xFF10, 0xFF11, 0xFF12, 0xFF14, 0xFF16, 0xFF17, 0xFF19, 0xFF1A, 0xFF1B, 0xFF1C,
+		0xFF1E, 0xFF20, 0xFF21, 0xFF22, 0xFF23, 0xFF24, 0xFF25, 0xFF26
+	};
+	
+	/*
+	 * Sets the I/O registers to their values after the boot ROM with a single copy,
+	 * then tells the components that act on them: the APU gets its registers directly,
+	 * the LCD is enabled, and a screen (if there already is one) gets the palettes.
+	 * Leaves the machine as writing each register through writeByte() would.
+	 */
+	void loadPowerOnState(){
+		int page = IO_PORTS_ADDR >> PAGE_SHIFT;
+		if(sharedPages[page]){
+			pages[page] = new byte[PAGE_SIZE];
+			sharedPages[page] = false;
+		}
+		System.arraycopy(POWER_ON_IO_PAGE, 0, pages[page], 0, PAGE_SIZE);
+		for(int address : POWER_ON_SOUND_REGISTERS)
+			gameBoy.apu.registerWritten(address, peek(address));
+		gameBoy.enableLCD();
+		if(!gameBoy.isHeadless())
+			refreshPalettes();
+	}
+	
 	public void setMask(int address,char mask, boolean bit, HardwareType type){
 
 		if(bit == true){
-			memory[address] |= (mask & 0xFF);
+			poke(address, (char)(peek(address) | (mask & 0xFF)));
 		}else{
-			memory[address] &= ~(mask & 0xFF);
+			poke(address, (char)(peek(address) & ~(mask & 0xFF)));
 		}
 	}
 	
 	public char[] readContiguousBlock(int startAddress, int endAddress){
-		return Arrays.copyOfRange(memory, startAddress, endAddress);
+		char[] block = new char[endAddress - startAddress];
+		for(int i = 0; i < block.length; i++)
+			block[i] = readByte(startAddress + i);
+		return block;
 	}
 
+	//a read by anything but the CPU (the LCD controller, DMA, tools), which never triggers a watchpoint
 	public char readByte(int address){
+		return read(address);
+	}
+	
+	//a read by the given hardware; only the CPU's reads are seen by a watching Debugger
+	public char readByte(int address, HardwareType type){
+		if(watcher != null && type == HardwareType.CPU)
+			watcher.memoryRead(address);
+		return read(address);
+	}
+	
+	private char read(int address){
 
-		switch(this.memoryBankingMode){
-			case 0: break;	
-			case 1: {
-				if((address >= 0x4000 && address < 0x8000) && currentRomBankAddr > 0){
-					return (mbc1Banks[currentRomBankAddr - 1][address % mbc1Offset]);
-				}
-				break;
-			}
+		if(address < SIXTEEN_KB_SWITCHABLE_ROM_BANK_ADDR){
+			return (rom != null) ? rom.readByte(address) : 0xFF;
+		}
+		if(address < EIGHT_KB_VIDEO_RAM_ADDR){
+			return (rom != null) ? rom.readBankedByte(currentRomBankAddr, address) : 0xFF;
+		}
+		if(cartridgeRam != null && address >= EIGHT_KB_SWITCHABLE_RAM_BANK_ADDR && address < EIGHT_KB_INTERNAL_RAM_ADDR){
+			return (mbcRAM1enabled && currentRamBank >= 0) ? cartridgeRam.read(currentRamBank, address) : 0xFF;
+		}
+		if(address == InputHandler.JOYPAD_ADDR){
+			return gameBoy.inputHandler.readJoypadRegister(peek(address));
+		}
+		if(address == APU.NR52_ADDR){
+			return gameBoy.apu.readStatus();
 		}
 			
-		return memory[address];
+		return peek(address);
 	}
 	
 	//TODO: All of the memory space, except high RAM ($FF80-$FFFE), is not accessible during DMA
 	public void DMATransfer() {
-		char sourceAddress = (char)(((memory[LCDController.DMA_REGISTER_ADDR]) << 8) | 0x0);
+		char sourceAddress = (char)(((peek(LCDController.DMA_REGISTER_ADDR)) << 8) | 0x0);
 		char destinationAddress = SPRITE_ATTRIB_MEMORY_ADDR;
 		for(int i = 0; i <= 0x8C; i++){
-			this.writeByte(destinationAddress + i, memory[sourceAddress + i], HardwareType.Memory);
+			this.writeByte(destinationAddress + i, readByte(sourceAddress + i), HardwareType.Memory);
 //			memory[destinationAddress + i] = memory[sourceAddress + i];
 		}
 	}
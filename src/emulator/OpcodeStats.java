@@ -0,0 +1,302 @@
+package emulator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Execution counts and clock cycles per opcode, for the base and the CB table, and
+ * a check of every execution's M/T accounting against the reference timings.
+ *
+ * The CPU updates plain long[] counters owned by this instance (see
+ * CPU.decodeAndExecuteInstrumented()), so counting costs no atomics or fences. Once
+ * a second of emulated time, at a frame boundary, the counters are copied into a
+ * published snapshot, which is what JMX and dump() read from other threads.
+ *
+ * Indices: 0x00-0xFF base opcodes, 0x100-0x1FF CB opcodes.
+ */
+public class OpcodeStats implements OpcodeStatsMBean, FrameListener {
+
+	private final static int OPCODES = 0x200;
+	private final static int PUBLISH_INTERVAL_FRAMES = 60;
+
+	private final static AtomicInteger instanceIds = new AtomicInteger();
+
+	//reference timings in machine cycles; conditional branches list the untaken time
+	private final static int[] BASE_MACHINE_CYCLES = {
+		1,3,2,2,1,1,2,1,5,2,2,2,1,1,2,1,
+		1,3,2,2,1,1,2,1,3,2,2,2,1,1,2,1,
+		2,3,2,2,1,1,2,1,2,2,2,2,1,1,2,1,
+		2,3,2,2,3,3,3,1,2,2,2,2,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		2,2,2,2,2,2,1,2,1,1,1,1,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		1,1,1,1,1,1,2,1,1,1,1,1,1,1,2,1,
+		2,3,3,4,3,4,2,4,2,4,3,0,3,6,2,4,
+		2,3,3,0,3,4,2,4,2,4,3,0,3,0,2,4,
+		3,3,2,0,0,4,2,4,4,1,4,0,0,0,2,4,
+		3,3,2,1,0,4,2,4,3,2,4,1,0,0,2,4
+	};
+
+	//reference clock cycles per opcode: untaken and taken (equal for unconditional opcodes)
+	private final static int[] REFERENCE_MIN = new int[OPCODES];
+	private final static int[] REFERENCE_MAX = new int[OPCODES];
+
+	static {
+		for(int op = 0; op < 0x100; op++){
+			REFERENCE_MIN[op] = REFERENCE_MAX[op] = BASE_MACHINE_CYCLES[op] * 4;
+
+			int cb = 0x100 | op;
+			if((op & 7) == 6)
+				REFERENCE_MIN[cb] = REFERENCE_MAX[cb] = (op >= 0x40 && op < 0x80) ? 12 : 16;	//BIT b,(HL) only reads
+			else
+				REFERENCE_MIN[cb] = REFERENCE_MAX[cb] = 8;
+		}
+		setTaken(new int[]{ 0x20, 0x28, 0x30, 0x38 }, 12);	//JR cc
+		setTaken(new int[]{ 0xC0, 0xC8, 0xD0, 0xD8 }, 20);	//RET cc
+		setTaken(new int[]{ 0xC2, 0xCA, 0xD2, 0xDA }, 16);	//JP cc
+		setTaken(new int[]{ 0xC4, 0xCC, 0xD4, 0xDC }, 24);	//CALL cc
+	}
+
+	private static void setTaken(int[] opcodes, int clockCycles){
+		for(int op : opcodes)
+			REFERENCE_MAX[op] = clockCycles;
+	}
+
+	//written by the emulation thread only
+	private final long[] executions = new long[OPCODES];
+	private final long[] clockCycles = new long[OPCODES];
+	private final long[] mismatches = new long[OPCODES];
+	//clock cycles of the last mismatching execution, for the report
+	private final int[] mismatchSample = new int[OPCODES];
+
+	//snapshot for other threads, guarded by itself
+	private final long[][] published = new long[4][OPCODES];
+	private int framesSincePublish = 0;
+	//set by reset() on another thread, carried out by the next publish()
+	private volatile boolean resetRequested = false;
+
+	private final String name;
+
+	public OpcodeStats(){
+		this.name = "OpcodeStats-" + instanceIds.incrementAndGet();
+	}
+
+	public void attach(GameBoy gameBoy){
+		gameBoy.getCPU().setOpcodeStats(this);
+		gameBoy.addFrameListener(this);
+	}
+
+	public void detach(GameBoy gameBoy){
+		gameBoy.getCPU().setOpcodeStats(null);
+		gameBoy.removeFrameListener(this);
+		publish();
+	}
+
+	//registers this instance with the platform MBean server as emulator:type=OpcodeStats,name=...
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("emulator:type=OpcodeStats,name=" + name));
+	}
+
+	//called by the CPU after each instruction
+	void instructionExecuted(int opcode, int machineCycles, int clockCycles){
+		executions[opcode]++;
+		this.clockCycles[opcode] += clockCycles;
+		if((clockCycles != REFERENCE_MIN[opcode] && clockCycles != REFERENCE_MAX[opcode]) || clockCycles != machineCycles * 4){
+			mismatches[opcode]++;
+			mismatchSample[opcode] = (machineCycles << 16) | clockCycles;
+		}
+	}
+
+	@Override
+	public void frameCompleted(GameBoy gameBoy) {
+		if(++framesSincePublish >= PUBLISH_INTERVAL_FRAMES){
+			framesSincePublish = 0;
+			publish();
+		}
+	}
+
+	//copies the live counters into the snapshot; emulation thread only
+	public void publish(){
+		if(resetRequested){
+			resetRequested = false;
+			Arrays.fill(executions, 0);
+			Arrays.fill(clockCycles, 0);
+			Arrays.fill(mismatches, 0);
+		}
+		synchronized(published){
+			System.arraycopy(executions, 0, published[0], 0, OPCODES);
+			System.arraycopy(clockCycles, 0, published[1], 0, OPCODES);
+			System.arraycopy(mismatches, 0, published[2], 0, OPCODES);
+			for(int i = 0; i < OPCODES; i++)
+				published[3][i] = mismatchSample[i];
+		}
+	}
+
+	private long[] snapshot(int index){
+		synchronized(published){
+			return published[index].clone();
+		}
+	}
+
+	private static long sum(long[] values){
+		long total = 0;
+		for(long value : values)
+			total += value;
+		return total;
+	}
+
+	@Override
+	public long getInstructionCount() {
+		return sum(snapshot(0));
+	}
+
+	@Override
+	public long getClockCycles() {
+		return sum(snapshot(1));
+	}
+
+	@Override
+	public long[] getExecutionCounts() {
+		return snapshot(0);
+	}
+
+	@Override
+	public long[] getClockCycleCounts() {
+		return snapshot(1);
+	}
+
+	@Override
+	public int getTimingMismatchCount() {
+		int count = 0;
+		for(long value : snapshot(2)){
+			if(value > 0)
+				count++;
+		}
+		return count;
+	}
+
+	//takes effect for the next publication; the live counters belong to the emulation thread
+	@Override
+	public void reset() {
+		synchronized(published){
+			for(long[] values : published)
+				Arrays.fill(values, 0);
+		}
+		resetRequested = true;
+	}
+
+	private static String opcodeName(int index){
+		return (index < 0x100) ? String.format("%02X", index) : String.format("CB %02X", index & 0xFF);
+	}
+
+	/*
+	 * Text report: every executed opcode by descending execution count, with its share
+	 * of instructions and cycles, average clock cycles and the reference timing, then
+	 * the opcodes whose accounting disagreed with the reference.
+	 */
+	@Override
+	public String dump() {
+
+		long[] counts;
+		long[] cycles;
+		long[] mismatchCounts;
+		long[] samples;
+		synchronized(published){
+			counts = published[0].clone();
+			cycles = published[1].clone();
+			mismatchCounts = published[2].clone();
+			samples = published[3].clone();
+		}
+		long totalCount = Math.max(sum(counts), 1);
+		long totalCycles = Math.max(sum(cycles), 1);
+
+		Integer[] order = new Integer[OPCODES];
+		for(int i = 0; i < OPCODES; i++)
+			order[i] = i;
+		final long[] sortCounts = counts;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(sortCounts[b], sortCounts[a]);
+			}
+		});
+
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("%-6s %14s %7s %7s %8s %9s%n", "OPCODE", "COUNT", "COUNT%", "CYCLE%", "AVG T", "REF T"));
+		for(int index : order){
+			if(counts[index] == 0)
+				break;
+			String reference = (REFERENCE_MIN[index] == REFERENCE_MAX[index])
+					? Integer.toString(REFERENCE_MIN[index])
+					: REFERENCE_MIN[index] + "/" + REFERENCE_MAX[index];
+			text.append(String.format("%-6s %14d %6.2f%% %6.2f%% %8.2f %9s%n", opcodeName(index), counts[index],
+					100.0 * counts[index] / totalCount, 100.0 * cycles[index] / totalCycles,
+					cycles[index] / (double)counts[index], reference));
+		}
+
+		int mismatching = 0;
+		for(int index = 0; index < OPCODES; index++){
+			if(mismatchCounts[index] == 0)
+				continue;
+			if(mismatching++ == 0)
+				text.append(String.format("%nopcodes whose M/T accounting differs from the reference:%n"));
+			text.append(String.format("%-6s %d of %d executions, e.g. M=%d T=%d (reference T=%s)%n", opcodeName(index),
+					mismatchCounts[index], counts[index], samples[index] >> 16, samples[index] & 0xFFFF,
+					(REFERENCE_MIN[index] == REFERENCE_MAX[index]) ? Integer.toString(REFERENCE_MIN[index])
+							: REFERENCE_MIN[index] + "/" + REFERENCE_MAX[index]));
+		}
+		if(mismatching == 0)
+			text.append(String.format("%nall executed opcodes match the reference timings%n"));
+		return text.toString();
+	}
+
+	/*
+	 * Usage: OpcodeStats [-frames F] [-movie movie] [-jmx] rom
+	 * Counts F frames (or an input movie replay) and prints dump(). With -jmx the MBean
+	 * is registered and the process keeps running until interrupted, for jconsole.
+	 */
+	public static void main(String[] args) throws IOException, JMException {
+
+		int frames = 1200;
+		String moviePath = null;
+		boolean jmx = false;
+		String romPath = Main.DEFAULT_ROM;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-frames"))		frames = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-movie"))	moviePath = args[++i];
+			else if(args[i].equals("-jmx"))		jmx = true;
+			else								romPath = args[i];
+		}
+
+		GameBoy gameBoy = new GameBoy(RomImage.load(romPath));
+
+		OpcodeStats stats = new OpcodeStats();
+		if(jmx)
+			stats.registerMBean();
+		stats.attach(gameBoy);
+
+		if(moviePath != null){
+			InputMovie.play(InputMovie.load(moviePath), gameBoy);
+		}else{
+			gameBoy.powerOn();
+			for(int i = 0; (i < frames) || jmx; i++)
+				gameBoy.runFrame();
+		}
+		stats.detach(gameBoy);
+
+		System.out.print(stats.dump());
+	}
+
+}
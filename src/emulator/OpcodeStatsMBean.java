@@ -0,0 +1,23 @@
+package emulator;
+
+/*
+ * JMX view of OpcodeStats. Arrays are indexed by opcode: 0x00-0xFF for the base
+ * table, 0x100-0x1FF for the CB table. Values are as of the last publication.
+ */
+public interface OpcodeStatsMBean {
+
+	long getInstructionCount();
+
+	long getClockCycles();
+
+	long[] getExecutionCounts();
+
+	long[] getClockCycleCounts();
+
+	//opcodes whose cycle accounting disagrees with the reference timings
+	int getTimingMismatchCount();
+
+	String dump();
+
+	void reset();
+}
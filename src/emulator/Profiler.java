@@ -0,0 +1,273 @@
+package emulator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/*
+ * Counting profiler: every executed instruction adds its clock cycles to a flat
+ * histogram indexed by (ROM bank, PC) and to the node of a call tree for the current
+ * call stack. Both live in primitive arrays, so profiling allocates nothing while it
+ * runs. When no profiler is attached the CPU only tests a null field.
+ *
+ * The call stack is a shadow stack maintained from the instruction stream: CALL and
+ * RST (and entering an interrupt vector) push the target, RET and RETI pop. Code
+ * that manipulates the stack directly can leave the shadow stack out of step; on
+ * every return it is re-synchronised by popping all frames whose stack pointer lies
+ * below the new SP.
+ *
+ * Cycles spent in interrupt service and STOP are counted towards the next
+ * instruction.
+ */
+public class Profiler {
+
+	private final static int NON_BANKED_SIZE = 0x10000;
+	private final static int BANK_SIZE = RomImage.ROM_BANK_SIZE;
+
+	private final static int MAX_NODES = 1 << 16;
+	private final static int MAX_DEPTH = 256;
+	private final static int ROOT = 0;
+
+	private final Memory memory;
+
+	//cycles per PC outside the switchable bank, and per (bank, offset) inside it
+	private final long[] cycles = new long[NON_BANKED_SIZE];
+	private final long[] bankedCycles;
+
+	//call tree: node 0 is the root; keys are (bank << 16) | PC of the call target
+	private final int[] nodeParent = new int[MAX_NODES];
+	private final int[] nodeKey = new int[MAX_NODES];
+	private final long[] nodeCycles = new long[MAX_NODES];
+	private int nodeCount = 1;
+
+	//open addressing map from (parent, key) to child node
+	private final long[] childKeys = new long[MAX_NODES * 2];
+	private final int[] childNodes = new int[MAX_NODES * 2];
+
+	//shadow call stack: the node and the SP right after the call
+	private final int[] stackNodes = new int[MAX_DEPTH];
+	private final int[] stackSPs = new int[MAX_DEPTH];
+	private int depth = 0;
+	private int currentNode = ROOT;
+
+	private long lastCycles = -1;
+	private int lastSP = -1;
+	private long totalCycles;
+
+	public Profiler(GameBoy gameBoy){
+		this.memory = gameBoy.memory;
+		RomImage rom = memory.getROM();
+		this.bankedCycles = new long[((rom != null) ? rom.getBankCount() : 2) * BANK_SIZE];
+		Arrays.fill(childKeys, -1);
+	}
+
+	public void attach(GameBoy gameBoy){
+		lastCycles = -1;
+		gameBoy.getCPU().setProfiler(this);
+	}
+
+	public void detach(GameBoy gameBoy){
+		gameBoy.getCPU().setProfiler(null);
+	}
+
+	/*
+	 * Called by the CPU after each instruction with the PC, opcode and SP it was
+	 * fetched with, and the SP and cycle counter after it executed.
+	 */
+	void instructionExecuted(int pc, int opcode, int fetchSP, int sp, long clockCycles){
+
+		int delta = (lastCycles < 0) ? 0 : (int)(clockCycles - lastCycles);
+		lastCycles = clockCycles;
+		totalCycles += delta;
+
+		int bank = 0;
+		if(pc >= BANK_SIZE && pc < 2 * BANK_SIZE){
+			bank = memory.getCurrentRomBank() % (bankedCycles.length / BANK_SIZE);
+			bankedCycles[bank * BANK_SIZE + pc - BANK_SIZE] += delta;
+		}else{
+			cycles[pc] += delta;
+		}
+
+		//an interrupt was serviced just before this instruction was fetched
+		if(pc >= 0x40 && pc <= 0x60 && (pc & 7) == 0 && fetchSP == ((lastSP - 2) & 0xFFFF))
+			push(pc, fetchSP);
+
+		nodeCycles[currentNode] += delta;
+
+		if(sp == ((fetchSP - 2) & 0xFFFF) && isCall(opcode)){
+			push(callTarget(opcode, pc), sp);
+		}else if(sp == ((fetchSP + 2) & 0xFFFF) && isReturn(opcode)){
+			while(depth > 0 && stackSPs[depth - 1] < sp)
+				pop();
+		}
+		lastSP = sp;
+	}
+
+	private static boolean isCall(int opcode){
+		switch(opcode){
+		case 0xCD: case 0xC4: case 0xCC: case 0xD4: case 0xDC:
+		case 0xC7: case 0xCF: case 0xD7: case 0xDF: case 0xE7: case 0xEF: case 0xF7: case 0xFF:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isReturn(int opcode){
+		switch(opcode){
+		case 0xC9: case 0xD9: case 0xC0: case 0xC8: case 0xD0: case 0xD8:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	//the operand of a CALL, or the fixed vector of an RST
+	private int callTarget(int opcode, int pc){
+		if((opcode & 0xC7) == 0xC7)
+			return opcode & 0x38;
+		return memory.readByte(pc + 1) | (memory.readByte(pc + 2) << 8);
+	}
+
+	private void push(int target, int sp){
+		int bank = (target >= BANK_SIZE && target < 2 * BANK_SIZE) ? memory.getCurrentRomBank() : 0;
+		int node = child(currentNode, (bank << 16) | target);
+		if(depth < MAX_DEPTH){
+			stackNodes[depth] = currentNode;
+			stackSPs[depth] = sp;
+			depth++;
+		}
+		currentNode = node;
+	}
+
+	private void pop(){
+		depth--;
+		currentNode = stackNodes[depth];
+	}
+
+	private int child(int parent, int key){
+
+		long mapKey = ((long)parent << 32) | (key & 0xFFFFFFFFL);
+		int slot = (int)((mapKey * 0x9E3779B97F4A7C15L) >>> 47) & (childKeys.length - 1);
+
+		while(childKeys[slot] != -1){
+			if(childKeys[slot] == mapKey)
+				return childNodes[slot];
+			slot = (slot + 1) & (childKeys.length - 1);
+		}
+		if(nodeCount == MAX_NODES)
+			return parent;	//tree full: charge the parent
+
+		int node = nodeCount++;
+		nodeParent[node] = parent;
+		nodeKey[node] = key;
+		childKeys[slot] = mapKey;
+		childNodes[slot] = node;
+		return node;
+	}
+
+	public long getTotalCycles(){
+		return totalCycles;
+	}
+
+	private static String frameName(int key){
+		int bank = key >>> 16;
+		int address = key & 0xFFFF;
+		return String.format("%02X:%04X", bank, address);
+	}
+
+	/*
+	 * Writes the call tree in the collapsed stack format of flamegraph.pl and
+	 * speedscope: one line per call path, frames separated by ';', followed by the
+	 * cycles spent in the last frame itself.
+	 */
+	public void writeCollapsedStacks(String path) throws IOException {
+
+		try(PrintWriter out = new PrintWriter(new FileWriter(path))){
+			StringBuilder line = new StringBuilder();
+			int[] chain = new int[MAX_NODES];
+
+			for(int node = 0; node < nodeCount; node++){
+				if(nodeCycles[node] == 0)
+					continue;
+
+				int length = 0;
+				for(int n = node; n != ROOT; n = nodeParent[n])
+					chain[length++] = n;
+
+				line.setLength(0);
+				line.append("root");
+				for(int i = length - 1; i >= 0; i--)
+					line.append(';').append(frameName(nodeKey[chain[i]]));
+				line.append(' ').append(nodeCycles[node]);
+				out.println(line);
+			}
+		}
+	}
+
+	//the count hottest (bank, PC) pairs by cycles
+	public void printHotSpots(int count){
+
+		int entries = cycles.length + bankedCycles.length;
+		long[] sortKeys = new long[entries];
+		int used = 0;
+		for(int i = 0; i < entries; i++){
+			long value = (i < cycles.length) ? cycles[i] : bankedCycles[i - cycles.length];
+			if(value > 0)
+				sortKeys[used++] = (value << 24) | i;	//cycles stay well below 2^39 per location
+		}
+		Arrays.sort(sortKeys, 0, used);
+
+		System.out.println(String.format("%-8s %14s %7s", "BANK:PC", "CYCLES", "%"));
+		for(int i = used - 1; i >= Math.max(used - count, 0); i--){
+			int index = (int)(sortKeys[i] & 0xFFFFFF);
+			long value = sortKeys[i] >>> 24;
+			String location = (index < cycles.length)
+					? String.format("%02X:%04X", 0, index)
+					: String.format("%02X:%04X", (index - cycles.length) / BANK_SIZE, BANK_SIZE + (index - cycles.length) % BANK_SIZE);
+			System.out.println(String.format("%-8s %14d %6.2f%%", location, value, 100.0 * value / totalCycles));
+		}
+	}
+
+	/*
+	 * Usage: Profiler [-frames F] [-movie movie] [-top N] [-out stacks.txt] rom
+	 * Profiles F frames (or an input movie replay), prints the hottest locations and
+	 * writes collapsed stacks for flamegraph.pl.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int frames = 1200;
+		int top = 20;
+		String moviePath = null;
+		String outPath = "profile.collapsed";
+		String romPath = Main.DEFAULT_ROM;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-frames"))		frames = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-movie"))	moviePath = args[++i];
+			else if(args[i].equals("-top"))		top = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-out"))		outPath = args[++i];
+			else								romPath = args[i];
+		}
+
+		GameBoy gameBoy = new GameBoy(RomImage.load(romPath));
+
+		Profiler profiler = new Profiler(gameBoy);
+		profiler.attach(gameBoy);
+		if(moviePath != null){
+			InputMovie.play(InputMovie.load(moviePath), gameBoy);
+		}else{
+			gameBoy.powerOn();
+			for(int i = 0; i < frames; i++)
+				gameBoy.runFrame();
+		}
+		profiler.detach(gameBoy);
+
+		profiler.printHotSpots(top);
+		profiler.writeCollapsedStacks(outPath);
+		System.out.println(String.format("%d cycles, %d call tree nodes, collapsed stacks written to %s",
+				profiler.getTotalCycles(), profiler.nodeCount, outPath));
+	}
+
+}
@@ -0,0 +1,302 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * Keeps the last few seconds of machine state, one SaveState per frame, in a ring
+ * of fixed size. Every KEYFRAME_INTERVAL frames a keyframe is stored; the frames in
+ * between are stored as the XOR against their keyframe, run-length encoded, which
+ * for a typical frame is a few KB instead of the ~60 KB of a full state. When the
+ * ring is full the oldest entries are dropped.
+ *
+ * All buffers are allocated up front, so neither recording nor rewinding allocates
+ * once the JIT has warmed up. That includes the memory a rewind must stop sharing
+ * with a fork: record() reserves it every frame (see GameBoy.reserveRestoreBuffers()).
+ * Both happen on the emulation thread (record() runs as a FrameListener).
+ *
+ * Encoding: a control byte 0LLLLLLL is a run of L+1 unchanged bytes, with L=127
+ * meaning the run length follows as an unsigned little endian short; 1LLLLLLL is
+ * followed by L+1 literal (XORed) bytes. Keyframes use the same encoding against
+ * all zeros.
+ */
+public class RewindBuffer implements FrameListener {
+
+	public final static int KEYFRAME_INTERVAL = 60;
+
+	private final static int FRAMES_PER_SECOND = 60;
+	private final static int MAX_SHORT_RUN = 127;
+	private final static int MAX_LITERAL_RUN = 128;
+
+	private final GameBoy gameBoy;
+
+	//ring of encoded entries; positions are virtual (monotonic), physical = position % ring.length
+	private final byte[] ring;
+	private long ringHead;
+
+	//per entry metadata, indexed by sequence % maxEntries
+	private final int maxEntries;
+	private final long[] entryPosition;
+	private final int[] entryLength;
+	private final int[] entryStateLength;
+	private final long[] entryKeyframe;
+
+	private long oldestEntry;	//sequence number of the oldest entry still stored
+	private long nextEntry;		//sequence number the next entry will get
+
+	//the raw state of the most recent keyframe, which new deltas are taken against
+	private final byte[] keyframe;
+	private long keyframeEntry = -1;
+
+	private final ByteBuffer captureBuffer;
+	private final byte[] restoreState;
+	private final ByteBuffer restoreBuffer;
+	private final byte[] restoreKeyframe;
+
+	private long encodeNanos;
+	private long encodedFrames;
+
+	public RewindBuffer(GameBoy gameBoy, int seconds, int capacityBytes){
+		this.gameBoy = gameBoy;
+		this.ring = new byte[capacityBytes];
+
+		this.maxEntries = seconds * FRAMES_PER_SECOND;
+		this.entryPosition = new long[maxEntries];
+		this.entryLength = new int[maxEntries];
+		this.entryStateLength = new int[maxEntries];
+		this.entryKeyframe = new long[maxEntries];
+
+		this.captureBuffer = SaveState.allocateBuffer();
+		this.keyframe = new byte[SaveState.MAX_SIZE];
+		this.restoreState = new byte[SaveState.MAX_SIZE];
+		this.restoreBuffer = ByteBuffer.wrap(restoreState).order(ByteOrder.LITTLE_ENDIAN);
+		this.restoreKeyframe = new byte[SaveState.MAX_SIZE];
+
+		if(capacityBytes < 2 * maxEncodedLength(SaveState.MAX_SIZE))
+			throw new IllegalArgumentException("Rewind buffer too small: " + capacityBytes + " bytes");
+	}
+
+	public void attach(){
+		gameBoy.reserveRestoreBuffers();
+		gameBoy.addFrameListener(this);
+	}
+
+	public void detach(){
+		gameBoy.removeFrameListener(this);
+	}
+
+	@Override
+	public void frameCompleted(GameBoy gameBoy) {
+		record();
+	}
+
+	//captures the current state as the newest entry
+	public void record(){
+
+		long startTime = System.nanoTime();
+
+		gameBoy.reserveRestoreBuffers();	//a fork since the last frame shares memory again
+		captureBuffer.clear();
+		int stateLength = SaveState.capture(gameBoy, captureBuffer);
+		byte[] state = captureBuffer.array();
+
+		boolean isKeyframe = keyframeEntry < oldestEntry
+				|| nextEntry - keyframeEntry >= KEYFRAME_INTERVAL
+				|| entryStateLength[(int)(keyframeEntry % maxEntries)] != stateLength;
+
+		long position = reserve(maxEncodedLength(stateLength));
+		int offset = (int)(position % ring.length);
+		int length = encode(state, isKeyframe ? null : keyframe, stateLength, ring, offset);
+
+		int slot = (int)(nextEntry % maxEntries);
+		entryPosition[slot] = position;
+		entryLength[slot] = length;
+		entryStateLength[slot] = stateLength;
+		if(isKeyframe){
+			System.arraycopy(state, 0, keyframe, 0, stateLength);
+			keyframeEntry = nextEntry;
+		}
+		entryKeyframe[slot] = keyframeEntry;
+
+		ringHead = position + length;
+		nextEntry++;
+
+		encodeNanos += System.nanoTime() - startTime;
+		encodedFrames++;
+	}
+
+	/*
+	 * Makes room for an entry of at most maxLength bytes that does not cross the end of
+	 * the ring, dropping the oldest entries as needed. Returns its virtual position.
+	 */
+	private long reserve(int maxLength){
+
+		long position = ringHead;
+		if(position % ring.length + maxLength > ring.length)
+			position += ring.length - position % ring.length;	//skip the tail
+
+		while(oldestEntry < nextEntry
+				&& (position + maxLength - entryPosition[(int)(oldestEntry % maxEntries)] > ring.length
+					|| nextEntry - oldestEntry >= maxEntries)){
+			oldestEntry++;
+		}
+		return position;
+	}
+
+	/*
+	 * Restores the state from the given number of frames ago (0 = the newest entry) and
+	 * drops everything newer, so recording continues from there. Clamps to the oldest
+	 * frame that can still be reconstructed. Returns how many frames it went back, or
+	 * -1 if nothing is stored.
+	 */
+	public int rewind(int frames){
+
+		long oldest = getOldestReachableEntry();
+		if(oldest < 0)
+			return -1;
+
+		long target = Math.max(nextEntry - 1 - frames, oldest);
+		int slot = (int)(target % maxEntries);
+		long keyframeIndex = entryKeyframe[slot];
+		int keyframeSlot = (int)(keyframeIndex % maxEntries);
+
+		if(keyframeIndex == target){
+			decode(ring, (int)(entryPosition[slot] % ring.length), entryLength[slot], null, restoreState);
+		}else{
+			decode(ring, (int)(entryPosition[keyframeSlot] % ring.length), entryLength[keyframeSlot], null, restoreKeyframe);
+			decode(ring, (int)(entryPosition[slot] % ring.length), entryLength[slot], restoreKeyframe, restoreState);
+		}
+
+		restoreBuffer.clear();
+		SaveState.restore(gameBoy, restoreBuffer);
+
+		int wentBack = (int)(nextEntry - 1 - target);
+		nextEntry = target + 1;
+		ringHead = entryPosition[slot] + entryLength[slot];
+		//the raw keyframe must match the entry new deltas will refer to
+		if(keyframeEntry != keyframeIndex){
+			if(keyframeIndex == target)
+				System.arraycopy(restoreState, 0, keyframe, 0, entryStateLength[slot]);
+			else
+				System.arraycopy(restoreKeyframe, 0, keyframe, 0, entryStateLength[keyframeSlot]);
+			keyframeEntry = keyframeIndex;
+		}
+		return wentBack;
+	}
+
+	//the oldest entry whose keyframe is still stored, or -1
+	private long getOldestReachableEntry(){
+		for(long entry = oldestEntry; entry < nextEntry; entry++){
+			if(entryKeyframe[(int)(entry % maxEntries)] >= oldestEntry)
+				return entry;
+		}
+		return -1;
+	}
+
+	//number of frames that can currently be rewound
+	public int getAvailableFrames(){
+		long oldest = getOldestReachableEntry();
+		return (oldest < 0) ? 0 : (int)(nextEntry - 1 - oldest);
+	}
+
+	public long getBytesUsed(){
+		if(oldestEntry == nextEntry)
+			return 0;
+		return ringHead - entryPosition[(int)(oldestEntry % maxEntries)];
+	}
+
+	public int getCapacity(){
+		return ring.length;
+	}
+
+	public double getAverageEncodeNanos(){
+		return (encodedFrames > 0) ? encodeNanos / (double)encodedFrames : 0;
+	}
+
+	public void resetStatistics(){
+		encodeNanos = 0;
+		encodedFrames = 0;
+	}
+
+	static int maxEncodedLength(int length){
+		return length + (length + MAX_LITERAL_RUN - 1) / MAX_LITERAL_RUN + 3;
+	}
+
+	//encodes source XOR reference (or source alone if reference is null); returns the encoded length
+	static int encode(byte[] source, byte[] reference, int length, byte[] target, int offset){
+
+		int out = offset;
+		int i = 0;
+
+		while(i < length){
+
+			int run = 0;
+			while(i + run < length && run < 0xFFFF && xor(source, reference, i + run) == 0)
+				run++;
+
+			if(run > 0){
+				if(run <= MAX_SHORT_RUN){
+					target[out++] = (byte)(run - 1);
+				}else{
+					target[out++] = (byte)MAX_SHORT_RUN;
+					target[out++] = (byte)run;
+					target[out++] = (byte)(run >> 8);
+				}
+				i += run;
+				continue;
+			}
+
+			//literal run, ended by a pair of unchanged bytes (a lone one is cheaper as a literal)
+			int literalStart = i;
+			int literals = 0;
+			while(i + literals < length && literals < MAX_LITERAL_RUN){
+				if(xor(source, reference, i + literals) == 0
+						&& (i + literals + 1 >= length || xor(source, reference, i + literals + 1) == 0))
+					break;
+				literals++;
+			}
+			target[out++] = (byte)(0x80 | (literals - 1));
+			for(int j = 0; j < literals; j++)
+				target[out++] = xor(source, reference, literalStart + j);
+			i += literals;
+		}
+
+		return out - offset;
+	}
+
+	//decodes into target, XORing with reference (or as is if reference is null); returns the decoded length
+	static int decode(byte[] source, int offset, int length, byte[] reference, byte[] target){
+
+		int in = offset;
+		int end = offset + length;
+		int out = 0;
+
+		while(in < end){
+			int control = source[in++] & 0xFF;
+			if((control & 0x80) == 0){
+				int run = control + 1;
+				if(control == MAX_SHORT_RUN){
+					run = (source[in] & 0xFF) | ((source[in + 1] & 0xFF) << 8);
+					in += 2;
+				}
+				if(reference != null)
+					System.arraycopy(reference, out, target, out, run);
+				else
+					Arrays.fill(target, out, out + run, (byte)0);
+				out += run;
+			}else{
+				int literals = (control & 0x7F) + 1;
+				for(int j = 0; j < literals; j++, out++)
+					target[out] = (byte)(source[in++] ^ ((reference != null) ? reference[out] : 0));
+			}
+		}
+
+		return out;
+	}
+
+	private static byte xor(byte[] source, byte[] reference, int index){
+		return (reference != null) ? (byte)(source[index] ^ reference[index]) : source[index];
+	}
+
+}
@@ -0,0 +1,145 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Least recently used ROM images by file, up to a total size, shared by everything
+ * in the JVM that loads ROMs through RomImage.load(). Images are immutable and can
+ * be attached to any number of machines, so a farm that starts 500 instances of one
+ * compressed ROM inflates it once.
+ *
+ * An entry is only used while the file's size and modification time are what they
+ * were when it was read; a changed file is read again. Threads loading the same
+ * file at the same time wait for one read rather than each doing their own.
+ */
+final class RomCache {
+
+	final static long DEFAULT_CAPACITY = 64L << 20;
+
+	static final RomCache SHARED = new RomCache(DEFAULT_CAPACITY);
+
+	private static final class Entry {
+		final long size;
+		final long modified;
+		final FutureTask<RomImage> image;
+		long bytes;	//0 until the image is read
+
+		Entry(long size, long modified, FutureTask<RomImage> image){
+			this.size = size;
+			this.modified = modified;
+			this.image = image;
+		}
+	}
+
+	private final long capacity;
+
+	//in access order, eldest first
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long misses;
+
+	RomCache(long capacity){
+		this.capacity = capacity;
+	}
+
+	RomImage get(final File file) throws IOException {
+
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		String key = file.toPath().toAbsolutePath().normalize().toString();
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+
+		Entry entry;
+		boolean reader = false;
+		synchronized(this){
+			entry = entries.get(key);
+			if(entry != null && (entry.size != size || entry.modified != modified)){
+				remove(key, entry);
+				entry = null;
+			}
+			if(entry == null){
+				entry = new Entry(size, modified, new FutureTask<RomImage>(new Callable<RomImage>() {
+					@Override
+					public RomImage call() throws IOException {
+						return RomImage.read(file);
+					}
+				}));
+				entries.put(key, entry);
+				reader = true;
+				misses++;
+			}else{
+				hits++;
+			}
+		}
+
+		if(reader)
+			entry.image.run();
+		try{
+			RomImage image = entry.image.get();
+			if(reader)
+				loaded(key, entry, image.size());
+			return image;
+		}catch(ExecutionException e){
+			synchronized(this){
+				remove(key, entry);	//the next load tries again
+			}
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("Could not load " + file, e.getCause());
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + file, e);
+		}
+	}
+
+	//counts the image in and evicts the least recently used images beyond the capacity
+	private synchronized void loaded(String key, Entry entry, long imageBytes){
+		if(entries.get(key) != entry)
+			return;	//replaced or cleared meanwhile
+		entry.bytes = imageBytes;
+		bytes += imageBytes;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while(bytes > capacity && eldest.hasNext()){
+			Entry candidate = eldest.next().getValue();
+			if(candidate == entry || candidate.bytes == 0)
+				continue;	//the image just read, or one still being read
+			bytes -= candidate.bytes;
+			eldest.remove();
+		}
+	}
+
+	private void remove(String key, Entry entry){
+		if(entries.get(key) == entry){
+			entries.remove(key);
+			bytes -= entry.bytes;
+		}
+	}
+
+	synchronized void clear(){
+		entries.clear();
+		bytes = 0;
+	}
+
+	synchronized long getBytes(){
+		return bytes;
+	}
+
+	synchronized long getHits(){
+		return hits;
+	}
+
+	synchronized long getMisses(){
+		return misses;
+	}
+
+}
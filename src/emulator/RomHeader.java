@@ -0,0 +1,146 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The cartridge header at 0100-014F: entry point, logo, title, licensee, cartridge
+ * type, sizes and the two checksums. Parsed from the header's bytes alone, so it can
+ * be read without loading (or even reading) the rest of the ROM.
+ */
+public final class RomHeader {
+
+	public final static int START = 0x100;
+	public final static int END = 0x150;
+	public final static int SIZE = END - START;
+
+	private final static int TITLE_ADDR = 0x134;
+	private final static int TITLE_END = 0x144;	//0x143 is the CGB flag on newer cartridges
+	private final static int NEW_LICENSEE_ADDR = 0x144;
+	private final static int SGB_FLAG_ADDR = 0x146;
+	private final static int ROM_SIZE_ADDR = 0x148;
+	private final static int DESTINATION_ADDR = 0x14A;
+	private final static int OLD_LICENSEE_ADDR = 0x14B;
+	private final static int VERSION_ADDR = 0x14C;
+	private final static int HEADER_CHECKSUM_ADDR = 0x14D;
+	private final static int GLOBAL_CHECKSUM_ADDR = 0x14E;
+
+	private final byte[] bytes;
+
+	private RomHeader(byte[] bytes){
+		this.bytes = bytes;
+	}
+
+	/*
+	 * The header from a buffer holding the ROM from its start (or at least up to 0150),
+	 * read with absolute gets; short buffers read as 0xFF past their end, like a short ROM.
+	 */
+	public static RomHeader parse(ByteBuffer rom){
+		byte[] bytes = new byte[SIZE];
+		for(int i = 0; i < SIZE; i++)
+			bytes[i] = (START + i < rom.limit()) ? rom.get(START + i) : (byte)0xFF;
+		return new RomHeader(bytes);
+	}
+
+	//the header from its SIZE bytes, as returned by getBytes()
+	public static RomHeader fromBytes(byte[] bytes){
+		if(bytes.length != SIZE)
+			throw new IllegalArgumentException("A header is " + SIZE + " bytes");
+		return new RomHeader(bytes.clone());
+	}
+
+	public byte[] getBytes(){
+		return bytes.clone();
+	}
+
+	private int get(int address){
+		return bytes[address - START] & 0xFF;
+	}
+
+	//up to the first NUL, printable ASCII only
+	public String getTitle(){
+		StringBuilder title = new StringBuilder();
+		for(int address = TITLE_ADDR; address < TITLE_END; address++){
+			int c = get(address);
+			if(c == 0)
+				break;
+			title.append((c >= 0x20 && c < 0x7F) ? (char)c : '?');
+		}
+		return title.toString().trim();
+	}
+
+	//two ASCII characters, used when the old licensee code is 0x33
+	public String getNewLicensee(){
+		return new String(bytes, NEW_LICENSEE_ADDR - START, 2, StandardCharsets.US_ASCII);
+	}
+
+	public int getOldLicensee(){
+		return get(OLD_LICENSEE_ADDR);
+	}
+
+	public boolean isSuperGameBoy(){
+		return get(SGB_FLAG_ADDR) == 0x03;
+	}
+
+	public int getCartridgeType(){
+		return get(RomImage.CARTRIDGE_TYPE_ADDR);
+	}
+
+	public int getRomSize(){
+		int code = get(ROM_SIZE_ADDR);
+		return (code <= 8) ? 0x8000 << code : -1;
+	}
+
+	public int getRamSizeCode(){
+		return get(CartridgeRam.RAM_SIZE_ADDR);
+	}
+
+	public boolean isJapanese(){
+		return get(DESTINATION_ADDR) == 0;
+	}
+
+	public int getVersion(){
+		return get(VERSION_ADDR);
+	}
+
+	public int getHeaderChecksum(){
+		return get(HEADER_CHECKSUM_ADDR);
+	}
+
+	//the checksum the boot ROM verifies (a cartridge that fails it doesn't start)
+	public int computeHeaderChecksum(){
+		int x = 0;
+		for(int address = TITLE_ADDR; address < HEADER_CHECKSUM_ADDR; address++)
+			x = x - get(address) - 1;
+		return x & 0xFF;
+	}
+
+	public boolean isHeaderChecksumValid(){
+		return computeHeaderChecksum() == getHeaderChecksum();
+	}
+
+	//big endian; nothing checks it on hardware
+	public int getGlobalChecksum(){
+		return (get(GLOBAL_CHECKSUM_ADDR) << 8) | get(GLOBAL_CHECKSUM_ADDR + 1);
+	}
+
+	//the sum of every byte of the ROM but the global checksum's own two, modulo 2^16
+	public static int computeGlobalChecksum(ByteBuffer rom){
+		//bulk copies out of the buffer (a memcpy even from a mapping), summed from an array
+		ByteBuffer source = rom.duplicate();
+		source.position(0);
+		byte[] chunk = new byte[Math.min(source.remaining(), 0x4000)];
+		int sum = 0;
+		while(source.hasRemaining()){
+			int length = Math.min(source.remaining(), chunk.length);
+			source.get(chunk, 0, length);
+			for(int i = 0; i < length; i++)
+				sum += chunk[i] & 0xFF;
+		}
+		int limit = rom.limit();
+		if(limit > GLOBAL_CHECKSUM_ADDR + 1)
+			sum -= (rom.get(GLOBAL_CHECKSUM_ADDR) & 0xFF) + (rom.get(GLOBAL_CHECKSUM_ADDR + 1) & 0xFF);
+		return sum & 0xFFFF;
+	}
+
+}
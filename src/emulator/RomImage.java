@@ -0,0 +1,177 @@
+package emulator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * An immutable cartridge ROM. A single image can be attached to any number of
+ * Memory instances at once; nothing ever writes to it after loading. The bytes
+ * themselves are the RomRegistry's: images of the same ROM share one off-heap copy.
+ */
+public final class RomImage {
+
+	public final static int ROM_BANK_SIZE = 0x4000;
+
+	public final static int CARTRIDGE_TYPE_ADDR = 0x147;
+
+	private final static int INFLATE_BUFFER_SIZE = 0x10000;
+
+	private final String path;
+	private final RomRegistry.Contents contents;	//keeps the registered contents alive
+	private final ByteBuffer data;
+	private final int size;
+	private final int bankCount;
+
+	//the bytes are copied into the registry (unless it has them already) and not kept
+	public RomImage(String path, byte[] data){
+		this(path, RomRegistry.SHARED.intern(data));
+	}
+
+	private RomImage(String path, RomRegistry.Contents contents){
+		this.path = path;
+		this.contents = contents;
+		this.data = contents.data;
+		this.size = data.capacity();
+		this.bankCount = Math.max((size + ROM_BANK_SIZE - 1) / ROM_BANK_SIZE, 1);
+	}
+
+	/*
+	 * The image of a ROM file, plain, gzipped (.gz) or the first ROM in a .zip, from
+	 * the shared RomCache: loading the same unchanged file again returns the same
+	 * image without reading or inflating it again.
+	 */
+	public static RomImage load(String filepath) throws IOException {
+		return RomCache.SHARED.get(new File(filepath));
+	}
+
+	//reads the file, bypassing the cache
+	static RomImage read(File file) throws IOException {
+		return new RomImage(file.getPath(), readBytes(file));
+	}
+
+	//the ROM in a file, plain or compressed
+	static byte[] readBytes(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if(name.endsWith(".gz")){
+			try(InputStream in = new GZIPInputStream(new FileInputStream(file), INFLATE_BUFFER_SIZE)){
+				return inflate(in, file.getPath());
+			}
+		}
+		if(name.endsWith(".zip")){
+			try(ZipFile zip = new ZipFile(file)){
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while(entries.hasMoreElements()){
+					ZipEntry entry = entries.nextElement();
+					if(!entry.isDirectory() && isPlainRomName(entry.getName())){
+						try(InputStream in = zip.getInputStream(entry)){
+							return inflate(in, file.getPath() + "!" + entry.getName());
+						}
+					}
+				}
+			}
+			throw new IOException("No ROM in " + file);
+		}
+		return Files.readAllBytes(file.toPath());
+	}
+
+	static boolean isPlainRomName(String name){
+		String lower = name.toLowerCase();
+		return lower.endsWith(".gb") || lower.endsWith(".gbc") || lower.endsWith(".sgb");
+	}
+
+	static boolean isRomName(String name){
+		String lower = name.toLowerCase();
+		return isPlainRomName(lower) || lower.endsWith(".gz") || lower.endsWith(".zip");
+	}
+
+	/*
+	 * Inflates a compressed ROM in one pass straight into an array of the size its
+	 * header declares (byte 0x148), read from the first bytes of the stream: no
+	 * temporary file, no growing buffer and no copy. A stream that ends early or
+	 * goes on past that size is rejected as truncated or corrupt.
+	 */
+	private static byte[] inflate(InputStream in, String name) throws IOException {
+		byte[] header = new byte[RomHeader.END];
+		if(readFully(in, header, 0, header.length) < header.length)
+			throw new IOException("Too short to be a ROM: " + name);
+		int size = RomHeader.parse(ByteBuffer.wrap(header)).getRomSize();
+		if(size < 0)
+			throw new IOException("Invalid ROM size code in the header: " + name);
+
+		byte[] data = new byte[size];
+		System.arraycopy(header, 0, data, 0, header.length);
+		int length = header.length + readFully(in, data, header.length, size - header.length);
+		if(length < size)
+			throw new IOException("Truncated ROM: the header declares " + size + " bytes but there are " + length + ": " + name);
+		if(in.read() >= 0)
+			throw new IOException("ROM larger than the " + size + " bytes its header declares: " + name);
+		return data;
+	}
+
+	//returns the bytes read, fewer than length only at the end of the stream
+	private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while(total < length){
+			int count = in.read(buffer, offset + total, length - total);
+			if(count < 0)
+				break;
+			total += count;
+		}
+		return total;
+	}
+
+	public char readByte(int address){
+		if(address >= size)
+			return 0xFF;
+		return (char)(data.get(address) & 0xFF);
+	}
+
+	//reads an address within 4000-7FFF as seen through the given bank
+	public char readBankedByte(int bank, int address){
+		return readByte((bank % bankCount) * ROM_BANK_SIZE + (address - ROM_BANK_SIZE));
+	}
+
+	public int getCartridgeType(){
+		return readByte(CARTRIDGE_TYPE_ADDR);
+	}
+
+	public RomHeader getHeader(){
+		return RomHeader.parse(asBuffer());
+	}
+
+	//the contents, read-only
+	ByteBuffer asBuffer(){
+		return data.duplicate();
+	}
+
+	public int getBankCount(){
+		return bankCount;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	//SHA-1 of the whole image; identifies the cartridge in input movies and the registry
+	public byte[] getHash(){
+		return contents.hash.clone();
+	}
+
+	//whether the two images share their contents (they are the same ROM)
+	public boolean sharesContents(RomImage other){
+		return contents == other.contents;
+	}
+
+	public String getPath(){
+		return path;
+	}
+
+}
@@ -0,0 +1,350 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * An index of a ROM library: the header of every ROM under a set of directories,
+ * with both checksums verified, kept in an index file so that a rescan only reads
+ * what changed.
+ *
+ * A scan walks the directories in parallel, one fork/join task per directory, and
+ * stats every ROM file. A file whose path, size and modification time match its
+ * entry keeps it; any other file is mapped read-only and indexed: the header comes
+ * from the first page alone, and the global checksum from summing the whole mapping.
+ * Compressed ROMs (.gz, .zip) are inflated instead.
+ * Entries of files the scan no longer finds are dropped, so the index holds exactly
+ * what the last scan found.
+ *
+ * Index layout, little endian: MAGIC, VERSION, entry count, then per entry the
+ * absolute path (length and UTF-8 bytes), size, modification time in milliseconds,
+ * the computed global checksum and the RomHeader.SIZE bytes of the header.
+ */
+public final class RomLibrary {
+
+	public final static int MAGIC = 0x58444247;	//"GBDX"
+	public final static int VERSION = 1;
+
+	//the largest ROM size a header can declare (8 MB); anything bigger is not a ROM
+	private final static long MAX_ROM_SIZE = 0x8000L << 8;
+
+	//stats and page faults block on the disk, so more threads than cores pay off
+	private final static int DEFAULT_THREADS = 8;
+
+	public static final class Entry {
+
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final int globalChecksum;	//as computed from the contents
+		private final RomHeader header;
+
+		Entry(String path, long size, long modified, int globalChecksum, RomHeader header){
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.globalChecksum = globalChecksum;
+			this.header = header;
+		}
+
+		public String getPath(){
+			return path;
+		}
+
+		public long getSize(){
+			return size;
+		}
+
+		public RomHeader getHeader(){
+			return header;
+		}
+
+		public boolean isHeaderChecksumValid(){
+			return header.isHeaderChecksumValid();
+		}
+
+		public boolean isGlobalChecksumValid(){
+			return globalChecksum == header.getGlobalChecksum();
+		}
+
+		private boolean isCurrent(long size, long modified){
+			return this.size == size && this.modified == modified;
+		}
+	}
+
+	//what a scan did
+	public static final class Scan {
+		public int unchanged;
+		public int indexed;
+		public int failed;	//unreadable, or too small or too big to be a ROM
+		public int removed;
+		public long nanos;
+
+		//whether the index needs saving
+		public boolean changed(){
+			return indexed > 0 || removed > 0;
+		}
+	}
+
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	//an empty library if the index doesn't exist yet
+	public static RomLibrary load(File index) throws IOException {
+
+		RomLibrary library = new RomLibrary();
+		if(!index.exists())
+			return library;
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(index.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		try{
+			if(buffer.getInt() != MAGIC)
+				throw new IOException("Not a ROM library index: " + index);
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported ROM library index version " + version + ": " + index);
+
+			int count = buffer.getInt();
+			byte[] header = new byte[RomHeader.SIZE];
+			for(int i = 0; i < count; i++){
+				byte[] path = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(path);
+				long size = buffer.getLong();
+				long modified = buffer.getLong();
+				int globalChecksum = buffer.getShort() & 0xFFFF;
+				buffer.get(header);
+				Entry entry = new Entry(new String(path, StandardCharsets.UTF_8), size, modified, globalChecksum, RomHeader.fromBytes(header));
+				library.entries.put(entry.path, entry);
+			}
+		}catch(RuntimeException e){	//BufferUnderflowException, NegativeArraySizeException
+			throw new IOException("Truncated or corrupt ROM library index: " + index, e);
+		}
+		return library;
+	}
+
+	//written to a temporary file first, so an interrupted save leaves the old index intact
+	public void save(File index) throws IOException {
+
+		List<Entry> sorted = getEntries();
+		List<byte[]> paths = new ArrayList<byte[]>();
+		int length = 4 + 4 + 4;
+		for(Entry entry : sorted){
+			byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+			paths.add(path);
+			length += 2 + path.length + 8 + 8 + 2 + RomHeader.SIZE;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(paths.size());
+		int i = 0;
+		for(Entry entry : sorted){
+			byte[] path = paths.get(i++);
+			buffer.putShort((short)path.length);
+			buffer.put(path);
+			buffer.putLong(entry.size);
+			buffer.putLong(entry.modified);
+			buffer.putShort((short)entry.globalChecksum);
+			buffer.put(entry.header.getBytes());
+		}
+
+		Path target = index.getAbsoluteFile().toPath();
+		Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.write(temporary, buffer.array());
+		Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//sorted by path
+	public List<Entry> getEntries(){
+		List<Entry> sorted = new ArrayList<Entry>(entries.values());
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.path.compareTo(b.path);
+			}
+		});
+		return sorted;
+	}
+
+	/*
+	 * Brings the index up to date with the ROMs under the roots (directories or
+	 * single files), on the given number of threads.
+	 */
+	public Scan scan(List<File> roots, int threads){
+
+		final Scan scan = new Scan();
+		final Map<String, Entry> previous = entries;
+		final Map<String, Entry> found = new ConcurrentHashMap<String, Entry>();
+		final AtomicInteger unchanged = new AtomicInteger();
+		final AtomicInteger indexed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		long startTime = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<ScanTask> tasks = new ArrayList<ScanTask>();
+		for(File root : roots)
+			tasks.add(new ScanTask(root.getAbsoluteFile().toPath().normalize(), previous, found, unchanged, indexed, failed));
+		for(ScanTask task : tasks)
+			pool.execute(task);
+		for(ScanTask task : tasks)
+			task.join();
+		pool.shutdown();
+
+		entries = new HashMap<String, Entry>(found);
+		scan.unchanged = unchanged.get();
+		scan.indexed = indexed.get();
+		scan.failed = failed.get();
+		for(String path : previous.keySet())
+			if(!found.containsKey(path))
+				scan.removed++;
+		scan.nanos = System.nanoTime() - startTime;
+		return scan;
+	}
+
+	//one directory, or one file given as a root
+	private static final class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+		private final Map<String, Entry> previous;
+		private final Map<String, Entry> found;
+		private final AtomicInteger unchanged;
+		private final AtomicInteger indexed;
+		private final AtomicInteger failed;
+
+		ScanTask(Path path, Map<String, Entry> previous, Map<String, Entry> found,
+				AtomicInteger unchanged, AtomicInteger indexed, AtomicInteger failed){
+			this.path = path;
+			this.previous = previous;
+			this.found = found;
+			this.unchanged = unchanged;
+			this.indexed = indexed;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			if(!Files.isDirectory(path)){
+				file(path);
+				return;
+			}
+			List<ScanTask> subdirectories = new ArrayList<ScanTask>();
+			try(DirectoryStream<Path> children = Files.newDirectoryStream(path)){
+				for(Path child : children){
+					if(Files.isDirectory(child))
+						subdirectories.add(new ScanTask(child, previous, found, unchanged, indexed, failed));
+					else if(RomImage.isRomName(child.getFileName().toString()))
+						file(child);
+				}
+			}catch(IOException e){
+				failed.incrementAndGet();
+			}
+			invokeAll(subdirectories);
+		}
+
+		private void file(Path file){
+			String key = file.toString();
+			try{
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				long size = attributes.size();
+				long modified = attributes.lastModifiedTime().toMillis();
+				Entry entry = previous.get(key);
+				if(entry != null && entry.isCurrent(size, modified)){
+					found.put(key, entry);
+					unchanged.incrementAndGet();
+					return;
+				}
+				if((size < RomHeader.END && RomImage.isPlainRomName(key)) || size > MAX_ROM_SIZE){
+					failed.incrementAndGet();
+					return;
+				}
+				found.put(key, index(file, key, size, modified));
+				indexed.incrementAndGet();
+			}catch(IOException e){
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	private static Entry index(Path file, String key, long size, long modified) throws IOException {
+		if(!RomImage.isPlainRomName(file.getFileName().toString())){
+			//compressed: inflated in one pass, bypassing the cache and the registry (a scan shouldn't evict what's running)
+			ByteBuffer rom = ByteBuffer.wrap(RomImage.readBytes(file.toFile()));
+			return new Entry(key, size, modified, RomHeader.computeGlobalChecksum(rom), RomHeader.parse(rom));
+		}
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			MappedByteBuffer rom = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			RomHeader header = RomHeader.parse(rom);	//touches the first page only
+			return new Entry(key, size, modified, RomHeader.computeGlobalChecksum(rom), header);
+		}
+	}
+
+	/*
+	 * Usage: RomLibrary [-index FILE] [-threads N] [-list] [dir or rom ...]
+	 * Scans the directories (./TestROMs by default) against the index (romlibrary.idx),
+	 * saves it and prints what the scan did and how long it took. -list prints every
+	 * entry: title, cartridge type, ROM size and whether each checksum matches.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		File index = new File("romlibrary.idx");
+		int threads = DEFAULT_THREADS;
+		boolean list = false;
+		List<File> roots = new ArrayList<File>();
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-index"))			index = new File(args[++i]);
+			else if(args[i].equals("-threads"))		threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-list"))		list = true;
+			else									roots.add(new File(args[i]));
+		}
+		if(roots.isEmpty())
+			roots.add(new File("./TestROMs"));
+
+		long startTime = System.nanoTime();
+		RomLibrary library = load(index);
+		long loadNanos = System.nanoTime() - startTime;
+
+		Scan scan = library.scan(roots, threads);
+
+		startTime = System.nanoTime();
+		if(scan.changed() || !index.exists())
+			library.save(index);
+		long saveNanos = System.nanoTime() - startTime;
+
+		if(list){
+			System.out.println(String.format("%-50s %-16s %4s %8s %6s %6s", "ROM", "TITLE", "TYPE", "SIZE", "HEADER", "GLOBAL"));
+			for(Entry entry : library.getEntries()){
+				RomHeader header = entry.getHeader();
+				System.out.println(String.format("%-50s %-16s %4X %8d %6s %6s", new File(entry.getPath()).getName(), header.getTitle(),
+						header.getCartridgeType(), header.getRomSize(), entry.isHeaderChecksumValid() ? "ok" : "BAD", entry.isGlobalChecksumValid() ? "ok" : "BAD"));
+			}
+		}
+		System.out.println(String.format("%d ROMs: %d unchanged, %d indexed, %d failed, %d removed; scan %.1f ms on %d threads, index load %.1f ms, save %.1f ms",
+				library.entries.size(), scan.unchanged, scan.indexed, scan.failed, scan.removed,
+				scan.nanos / 1e6, threads, loadNanos / 1e6, saveNanos / 1e6));
+	}
+
+}
@@ -0,0 +1,106 @@
+package emulator;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/*
+ * One copy of each distinct ROM in the JVM, found by its SHA-1. Every RomImage of the
+ * same cartridge, whatever file, archive or program it came from, shares the same
+ * contents: one read-only buffer outside the Java heap, so a farm running a ROM many
+ * times over (or loading it from several copies) holds it once and its heap doesn't
+ * grow with the ROM's size. Contents no image refers to any more are dropped from the
+ * registry, and their memory freed, by the garbage collector.
+ */
+final class RomRegistry {
+
+	static final RomRegistry SHARED = new RomRegistry();
+
+	static final class Contents {
+		final ByteBuffer data;	//direct and read-only; shared, so only ever read with absolute gets
+		final byte[] hash;
+
+		private Contents(ByteBuffer data, byte[] hash){
+			this.data = data;
+			this.hash = hash;
+		}
+	}
+
+	//removes itself from the map once its contents are collected
+	private static final class Registration extends WeakReference<Contents> {
+		final ByteBuffer key;
+
+		Registration(Contents contents, ByteBuffer key, ReferenceQueue<Contents> queue){
+			super(contents, queue);
+			this.key = key;
+		}
+	}
+
+	//keyed by the hash, wrapped so that it compares by content
+	private final HashMap<ByteBuffer, Registration> registrations = new HashMap<ByteBuffer, Registration>();
+	private final ReferenceQueue<Contents> collected = new ReferenceQueue<Contents>();
+	private long hits;
+	private long misses;
+
+	/*
+	 * The registered contents equal to the given bytes, registering a copy of them if
+	 * there are none. The bytes aren't kept.
+	 */
+	Contents intern(byte[] bytes){
+
+		byte[] hash = sha1(bytes);	//outside the lock: loads of different ROMs don't wait for each other
+		ByteBuffer key = ByteBuffer.wrap(hash);
+
+		synchronized(this){
+			expunge();
+			Registration registration = registrations.get(key);
+			Contents contents = (registration != null) ? registration.get() : null;
+			if(contents != null && contents.data.equals(ByteBuffer.wrap(bytes))){
+				hits++;
+				return contents;
+			}
+
+			ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+			data.put(bytes);
+			data.clear();
+			contents = new Contents(data.asReadOnlyBuffer(), hash);
+			registrations.put(key, new Registration(contents, key, collected));
+			misses++;
+			return contents;
+		}
+	}
+
+	private void expunge(){
+		Registration registration;
+		while((registration = (Registration)collected.poll()) != null){
+			if(registrations.get(registration.key) == registration)
+				registrations.remove(registration.key);
+		}
+	}
+
+	static byte[] sha1(byte[] bytes){
+		try{
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);	//every JVM must provide SHA-1
+		}
+	}
+
+	//distinct ROMs currently registered
+	synchronized int size(){
+		expunge();
+		return registrations.size();
+	}
+
+	synchronized long getHits(){
+		return hits;
+	}
+
+	synchronized long getMisses(){
+		return misses;
+	}
+
+}
@@ -0,0 +1,159 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * Snapshots of the complete machine state as one flat byte buffer. Every component
+ * writes its fields in a fixed order and its arrays with bulk copies: the RAM pages,
+ * cartridge RAM and framebuffer are byte arrays copied with one put()/get() each, and
+ * the LCD caches (bytes held in chars) go through a small scratch array. So a capture
+ * or restore is a few memcpys rather than object serialization, and neither allocates.
+ *
+ * Layout: MAGIC, VERSION, payload length, then the ROM identity (size and header
+ * checksums) followed by the GameBoy, CPU, Memory, LCD and APU state. The ROM contents
+ * are never stored; a state can only be restored into a machine running the same
+ * cartridge. Bump VERSION whenever a component changes what it writes.
+ *
+ * Not thread-safe: capture and restore must run on the thread driving emulation
+ * (or while it is paused).
+ */
+public class SaveState {
+
+	public final static int MAGIC = 0x47425353;	//"GBSS"
+	public final static int VERSION = 8;
+
+	//upper bound of a state's size; buffers of this size can hold any state
+	public final static int MAX_SIZE = 320 * 1024;
+
+	private final static int LENGTH_POSITION = 8;
+
+	private final static int HEADER_CHECKSUM_ADDR = 0x14D;
+	private final static int GLOBAL_CHECKSUM_ADDR = 0x14E;
+
+	public static ByteBuffer allocateBuffer(){
+		return ByteBuffer.allocate(MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/*
+	 * Writes the state at the buffer's position and returns its length in bytes.
+	 * The buffer should be little endian (see allocateBuffer()), the order the
+	 * multi-byte fields are read back in by restore(GameBoy, byte[]).
+	 */
+	public static int capture(GameBoy gameBoy, ByteBuffer buffer){
+
+		int start = buffer.position();
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(0);	//patched below
+		putROMIdentity(gameBoy, buffer);
+
+		gameBoy.saveState(buffer);
+
+		int length = buffer.position() - start;
+		buffer.putInt(start + LENGTH_POSITION, length);
+		return length;
+	}
+
+	public static byte[] capture(GameBoy gameBoy){
+		ByteBuffer buffer = allocateBuffer();
+		int length = capture(gameBoy, buffer);
+		return Arrays.copyOf(buffer.array(), length);
+	}
+
+	/*
+	 * Restores a state from the buffer's position. Throws IllegalArgumentException if
+	 * the buffer does not hold a state of this version for the loaded cartridge, in
+	 * which case the machine is left untouched.
+	 */
+	public static void restore(GameBoy gameBoy, ByteBuffer buffer){
+
+		int start = buffer.position();
+
+		if(buffer.getInt() != MAGIC)
+			throw new IllegalArgumentException("Not a save state");
+		int version = buffer.getInt();
+		if(version != VERSION)
+			throw new IllegalArgumentException("Unsupported save state version: " + version);
+		int length = buffer.getInt();
+		if(!matchesROMIdentity(gameBoy, buffer))
+			throw new IllegalArgumentException("Save state was taken with a different cartridge");
+
+		gameBoy.loadState(buffer);
+
+		if(buffer.position() - start != length)
+			throw new IllegalStateException("Save state length mismatch: " + (buffer.position() - start) + " != " + length);
+	}
+
+	public static void restore(GameBoy gameBoy, byte[] state){
+		restore(gameBoy, ByteBuffer.wrap(state).order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	/*
+	 * RAM and the LCD caches keep byte values in chars. They are stored as bytes:
+	 * narrowed into a scratch array the component keeps, which is then copied in bulk
+	 * (and the reverse on restore), so neither direction allocates. The arrays must
+	 * fit the scratch; the char[][] versions fill it with as many arrays as fit per copy.
+	 */
+	static void putBytes(ByteBuffer buffer, char[] chars, byte[] scratch){
+		for(int i = 0; i < chars.length; i++)
+			scratch[i] = (byte)chars[i];
+		buffer.put(scratch, 0, chars.length);
+	}
+
+	static void getBytes(ByteBuffer buffer, char[] chars, byte[] scratch){
+		buffer.get(scratch, 0, chars.length);
+		for(int i = 0; i < chars.length; i++)
+			chars[i] = (char)(scratch[i] & 0xFF);
+	}
+
+	static void putBytes(ByteBuffer buffer, char[][] arrays, byte[] scratch){
+		int length = 0;
+		for(char[] chars : arrays){
+			if(length + chars.length > scratch.length){
+				buffer.put(scratch, 0, length);
+				length = 0;
+			}
+			for(int i = 0; i < chars.length; i++)
+				scratch[length++] = (byte)chars[i];
+		}
+		buffer.put(scratch, 0, length);
+	}
+
+	static void getBytes(ByteBuffer buffer, char[][] arrays, byte[] scratch){
+		int next = 0;
+		while(next < arrays.length){
+			int end = next;
+			int length = 0;
+			while(end < arrays.length && length + arrays[end].length <= scratch.length)
+				length += arrays[end++].length;
+			buffer.get(scratch, 0, length);
+			int offset = 0;
+			for(; next < end; next++){
+				char[] chars = arrays[next];
+				for(int i = 0; i < chars.length; i++)
+					chars[i] = (char)(scratch[offset++] & 0xFF);
+			}
+		}
+	}
+
+	private static void putROMIdentity(GameBoy gameBoy, ByteBuffer buffer){
+		RomImage rom = gameBoy.memory.getROM();
+		buffer.putInt((rom != null) ? rom.size() : 0);
+		buffer.put((byte)gameBoy.memory.readByte(HEADER_CHECKSUM_ADDR));
+		buffer.put((byte)gameBoy.memory.readByte(GLOBAL_CHECKSUM_ADDR));
+	}
+
+	private static boolean matchesROMIdentity(GameBoy gameBoy, ByteBuffer buffer){
+		RomImage rom = gameBoy.memory.getROM();
+		int size = buffer.getInt();
+		byte headerChecksum = buffer.get();
+		byte globalChecksum = buffer.get();
+		return size == ((rom != null) ? rom.size() : 0)
+				&& headerChecksum == (byte)gameBoy.memory.readByte(HEADER_CHECKSUM_ADDR)
+				&& globalChecksum == (byte)gameBoy.memory.readByte(GLOBAL_CHECKSUM_ADDR);
+	}
+
+}
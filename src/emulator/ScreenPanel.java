@@ -2,6 +2,7 @@ package emulator;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Graphics;
 import emulator.PixelData;
 
@@ -25,6 +26,11 @@ public class ScreenPanel extends JPanel{
 	private final static int SCREEN_HEIGHT = Y_PIXELS * PIXEL_SCALE_FACTOR;
 	
 	private Dimension screenDimension;
+	
+	//when set, its summary is drawn over the top of the screen after each frame
+	private volatile EmulationMetrics overlay;
+	private final static Font OVERLAY_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+	private final static Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
 
 	public ScreenPanel() {
 		super();
@@ -91,6 +97,33 @@ public class ScreenPanel extends JPanel{
 		this.pixelsArray = pixelsArray;
 		
 		this.paintImmediately(0, row*PIXEL_SCALE_FACTOR, SCREEN_WIDTH, PIXEL_SCALE_FACTOR);
+		
+		if(row == Y_PIXELS - 1 && overlay != null)
+			paintOverlay();
+	}
+	
+	void setOverlay(EmulationMetrics metrics){
+		this.overlay = metrics;
+		repaint();
+	}
+	
+	//drawn straight over the rows, which repaint it away as the next frame comes in
+	private void paintOverlay(){
+		
+		EmulationMetrics metrics = overlay;
+		Graphics g = getGraphics();
+		if(metrics == null || g == null)
+			return;
+		
+		String[] lines = metrics.getSummary().describe();
+		g.setFont(OVERLAY_FONT);
+		int lineHeight = g.getFontMetrics().getHeight();
+		g.setColor(OVERLAY_BACKGROUND);
+		g.fillRect(0, 0, SCREEN_WIDTH, lineHeight * lines.length + 4);
+		g.setColor(Color.WHITE);
+		for(int i = 0; i < lines.length; i++)
+			g.drawString(lines[i], 4, lineHeight * (i + 1));
+		g.dispose();
 	}
 	
 	public void setBackgroundAndWindowColors(Color c1, Color c2, Color c3, Color c4){
@@ -0,0 +1,137 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The other end of the link port. Receives the byte shifted out of SB and
+ * returns the byte shifted in; 0xFF when nothing is connected.
+ */
+interface SerialDevice {
+	char transferByte(char data);
+}
+
+/*
+ * The link port. A transfer started with the internal clock takes 8 bits at
+ * 8192 Hz; when it completes, SB holds the byte shifted in, the start bit in SC is
+ * cleared and the serial interrupt is requested. The byte comes from the SerialDevice
+ * if there is one, or from the other GameBoy when a LinkCable is plugged in, which
+ * also completes the transfers of this port when it waits on the peer's clock.
+ */
+public class SerialPort {
+
+	public final static char SB_REGISTER_ADDR				= 0xFF01;//Serial transfer data
+	public final static char SC_REGISTER_ADDR				= 0xFF02;//Serial I/O control
+
+	public final static char SC_TRANSFER_START_BIT			= 0x80;	//1=Transfer requested or in progress
+	public final static char SC_INTERNAL_CLOCK_BIT			= 0x01;	//0=External clock, 1=Internal clock
+
+	//8 bits at 8192 Hz
+	public final static int TRANSFER_CYCLES					= 8 * (CPU.PROCESSOR_FREQUENCY_HZ / 8192);
+
+	final static char DISCONNECTED_BYTE						= 0xFF;
+
+	private GameBoy gameBoy;
+	private SerialDevice device;
+	private LinkCable.End link;
+
+	//the clock cycle the transfer in flight completes at; -1 when there is none
+	private long transferEnd = -1;
+
+	//set while a transfer is in flight or a link cable is plugged in; the CPU then calls clock() after every instruction
+	boolean active;
+
+	public SerialPort(GameBoy gameBoy){
+		this.gameBoy = gameBoy;
+	}
+
+	public void setDevice(SerialDevice device){
+		this.device = device;
+	}
+
+	//see LinkCable.End.plugInto()
+	void setLink(LinkCable.End link){
+		this.link = link;
+		updateActive();
+	}
+
+	LinkCable.End getLink(){
+		return link;
+	}
+
+	private void updateActive(){
+		active = transferEnd >= 0 || link != null;
+	}
+
+	//called by Memory after the CPU wrote to SC
+	public void controlRegisterWritten(char data){
+
+		//only the internal clock drives a transfer; with an external clock we wait for the peer
+		if((data & SC_TRANSFER_START_BIT) == 0 || (data & SC_INTERNAL_CLOCK_BIT) == 0)
+			return;
+
+		transferEnd = gameBoy.getClockCycles() + TRANSFER_CYCLES;
+		updateActive();
+		if(link != null)
+			link.transferStarted(transferEnd, gameBoy.memory.readByte(SB_REGISTER_ADDR));
+	}
+
+	//called by the CPU after every instruction while active
+	void clock(long now){
+		if(link != null)
+			link.clock(now);
+		if(transferEnd >= 0 && now >= transferEnd)
+			completeTransfer(now);
+	}
+
+	private void completeTransfer(long now){
+
+		char incoming;
+		if(link != null)
+			incoming = link.awaitReply(now);
+		else if(device != null)
+			incoming = device.transferByte(gameBoy.memory.readByte(SB_REGISTER_ADDR));
+		else
+			incoming = DISCONNECTED_BYTE;
+
+		transferEnd = -1;
+		updateActive();
+		shiftIn(incoming);
+	}
+
+	/*
+	 * A transfer clocked by the peer completes: returns the byte shifted out and takes
+	 * the incoming one, or returns -1 and changes nothing when this port isn't
+	 * waiting on an external clock.
+	 */
+	int externalTransfer(char incoming){
+		char control = gameBoy.memory.readByte(SC_REGISTER_ADDR);
+		if((control & SC_TRANSFER_START_BIT) == 0 || (control & SC_INTERNAL_CLOCK_BIT) != 0)
+			return -1;
+		char outgoing = gameBoy.memory.readByte(SB_REGISTER_ADDR);
+		shiftIn(incoming);
+		return outgoing;
+	}
+
+	private void shiftIn(char incoming){
+		gameBoy.memory.writeByte(SB_REGISTER_ADDR, (char)(incoming & 0xFF), HardwareType.Serial);
+		gameBoy.memory.setMask(SC_REGISTER_ADDR, SC_TRANSFER_START_BIT, false, HardwareType.Serial);
+		gameBoy.requestInterrupt(Interrupt.InterruptSerialIOTransferComplete);
+	}
+
+	//see SaveState; the device and link are not part of the state
+	void saveState(ByteBuffer buffer){
+		buffer.putLong(transferEnd);
+	}
+
+	void loadState(ByteBuffer buffer){
+		transferEnd = buffer.getLong();
+		updateActive();
+	}
+
+	//see GameBoy.fork()
+	void copyStateFrom(SerialPort other){
+		transferEnd = other.transferEnd;
+		updateActive();
+	}
+
+}
@@ -0,0 +1,56 @@
+package emulator;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/*
+ * Plays through the default javax.sound output line. write() blocks while the
+ * line's own buffer is full, which keeps the drain thread in step with the sound
+ * card.
+ */
+public class SoundLineSink implements AudioSink {
+
+	private final int lineBufferMillis;
+
+	private SourceDataLine line;
+	private byte[] bytes = new byte[0];
+
+	public SoundLineSink(int lineBufferMillis){
+		this.lineBufferMillis = lineBufferMillis;
+	}
+
+	@Override
+	public void open(int sampleRate) throws IOException {
+		AudioFormat format = new AudioFormat(sampleRate, 16, 2, true, false);
+		try{
+			line = AudioSystem.getSourceDataLine(format);
+			line.open(format, 4 * (sampleRate * lineBufferMillis / 1000));
+		}catch(LineUnavailableException | IllegalArgumentException e){
+			throw new IOException("No audio output line: " + e.getMessage(), e);
+		}
+		line.start();
+	}
+
+	@Override
+	public void write(short[] samples, int offset, int length) {
+		if(bytes.length < 2 * length)
+			bytes = new byte[2 * length];
+		for(int i = 0; i < length; i++){
+			short sample = samples[offset + i];
+			bytes[2 * i] = (byte)sample;
+			bytes[2 * i + 1] = (byte)(sample >> 8);
+		}
+		line.write(bytes, 0, 2 * length);
+	}
+
+	@Override
+	public void close() {
+		line.drain();
+		line.close();
+	}
+
+}
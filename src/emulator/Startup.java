@@ -0,0 +1,202 @@
+package emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Time to first frame of a freshly launched JVM, and the AppCDS archive that cuts it.
+ *
+ * Running the first frame itself takes a few milliseconds; nearly all of a cold start
+ * goes into finding, parsing and verifying classes and into the interpreter. An AppCDS
+ * archive (JDK 13 or later) holds the emulator's classes, and the JDK classes they
+ * use, already parsed and verified, and the JVM maps it in at launch. It is dumped at
+ * the end of a training run with -XX:ArchiveClassesAtExit and used with
+ * -XX:SharedArchiveFile; it is only valid for the JDK and class path it was made with.
+ *
+ * A native image (see the native profile in core/pom.xml) needs neither: it starts
+ * with everything compiled ahead of time, at the price of lower peak throughput.
+ *
+ * Usage:
+ *   Startup [-runs N] [-frames F] [-archive FILE] [-regenerate] [-native BINARY] [-throughput T] rom
+ *     Generates the archive (emulator.jsa) with a training run of F frames (600)
+ *     unless it already exists, then launches N (10) JVMs each with class data
+ *     sharing off, with the JDK's default archive and with the emulator's, and the
+ *     native image of Startup if given (gbstartup), and prints the median and best
+ *     time from launch to the first instruction, the first frame and exit. With -throughput, each
+ *     is then run once for T frames, and the emulated clock rate over the whole run
+ *     (what a short job sees) and over its second half (after warmup) is printed.
+ *   Startup -run [-frames F] rom
+ *     What the launched processes run: powers on headless, prints the time from main
+ *     to the first instruction and to the first frame, runs the remaining frames,
+ *     prints the clock rate and exits.
+ */
+public final class Startup {
+
+	private final static String FIRST_INSTRUCTION = "first-instruction ";
+	private final static String FIRST_FRAME = "first-frame ";
+	private final static String THROUGHPUT = "throughput ";
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		long mainTime = System.nanoTime();
+
+		boolean run = false;
+		boolean regenerate = false;
+		int runs = 10;
+		int frames = -1;
+		int throughputFrames = 0;
+		String nativeImage = null;
+		File archive = new File("emulator.jsa");
+		String romPath = Main.DEFAULT_ROM;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-run"))				run = true;
+			else if(args[i].equals("-runs"))		runs = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-frames"))		frames = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-archive"))		archive = new File(args[++i]);
+			else if(args[i].equals("-regenerate"))	regenerate = true;
+			else if(args[i].equals("-native"))		nativeImage = args[++i];
+			else if(args[i].equals("-throughput"))	throughputFrames = Integer.parseInt(args[++i]);
+			else									romPath = args[i];
+		}
+
+		if(run){
+			run(romPath, (frames < 0) ? 1 : frames, mainTime);
+			return;
+		}
+
+		for(String entry : System.getProperty("java.class.path").split(File.pathSeparator)){
+			if(new File(entry).isDirectory())
+				throw new IOException("AppCDS only archives classes from JARs: run from the jar mvn package builds, not from " + entry);
+		}
+		if(regenerate || !archive.exists()){
+			System.out.println("Training run for " + archive + "...");
+			launch(java(Arrays.asList("-XX:ArchiveClassesAtExit=" + archive.getPath())), romPath, (frames < 0) ? 600 : frames);
+			if(!archive.exists())
+				throw new IOException("The JVM did not write " + archive + " (AppCDS needs JDK 13 or later)");
+		}
+
+		List<String> names = new ArrayList<String>();
+		List<List<String>> commands = new ArrayList<List<String>>();
+		names.add("no CDS");	commands.add(java(Arrays.asList("-Xshare:off")));
+		names.add("JDK CDS");	commands.add(java(new ArrayList<String>()));
+		names.add("AppCDS");	commands.add(java(Arrays.asList("-XX:SharedArchiveFile=" + archive.getPath())));
+		if(nativeImage != null){
+			names.add("native");	commands.add(Arrays.asList(nativeImage));
+		}
+
+		System.out.println(String.format("%s, %d launches each, %s", romPath, runs, archive));
+		for(int i = 0; i < commands.size(); i++)
+			compare(names.get(i), commands.get(i), romPath, runs);
+		if(throughputFrames > 0){
+			System.out.println(String.format("%d frames (%.1f s emulated)", throughputFrames, throughputFrames * LCDController.TOTAL_REFRESH_CYCLES / (double)CPU.PROCESSOR_FREQUENCY_HZ));
+			for(int i = 0; i < commands.size(); i++){
+				String[] rates = launch(commands.get(i), romPath, throughputFrames).throughput.split(" ");
+				System.out.println(String.format("%-8s %6.1f MHz over the whole run, %6.1f MHz over the second half",
+						names.get(i), Double.parseDouble(rates[0]), Double.parseDouble(rates[1])));
+			}
+		}
+	}
+
+	//the command that runs Startup on this JVM, with the given options
+	private static List<String> java(List<String> options){
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(options);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Startup.class.getName());
+		return command;
+	}
+
+	private static void run(String romPath, int frames, long mainTime) throws IOException {
+		GameBoy gameBoy = new GameBoy(RomImage.load(romPath));
+		gameBoy.powerOn();
+		long startTime = System.nanoTime();
+		System.out.println(FIRST_INSTRUCTION + (startTime - mainTime));
+		System.out.flush();
+		gameBoy.runFrame();
+		System.out.println(FIRST_FRAME + (System.nanoTime() - mainTime));
+		System.out.flush();
+		long halfTime = startTime;
+		long halfCycles = 0;
+		for(int i = 1; i < frames; i++){
+			if(i == frames / 2){
+				halfTime = System.nanoTime();
+				halfCycles = gameBoy.getClockCycles();
+			}
+			gameBoy.runFrame();
+		}
+		long endTime = System.nanoTime();
+		System.out.println(THROUGHPUT + gameBoy.getClockCycles() * 1e3 / (endTime - startTime)
+				+ " " + (gameBoy.getClockCycles() - halfCycles) * 1e3 / (endTime - halfTime));
+	}
+
+	private static void compare(String name, List<String> command, String romPath, int runs) throws IOException, InterruptedException {
+		long[] firstInstruction = new long[runs];
+		long[] firstFrame = new long[runs];
+		long[] exit = new long[runs];
+		long[] inMain = new long[runs];
+		for(int i = 0; i < runs; i++){
+			Launch launch = launch(command, romPath, 1);
+			firstInstruction[i] = launch.firstInstruction;
+			firstFrame[i] = launch.firstFrame;
+			exit[i] = launch.exit;
+			inMain[i] = launch.inMain;
+		}
+		Arrays.sort(firstInstruction);
+		Arrays.sort(firstFrame);
+		Arrays.sort(exit);
+		Arrays.sort(inMain);
+		System.out.println(String.format("%-8s first instruction %6.1f ms median; first frame %6.1f ms median, %6.1f ms best (%5.1f ms of it in main); exit %6.1f ms median",
+				name, firstInstruction[runs / 2] / 1e6, firstFrame[runs / 2] / 1e6, firstFrame[0] / 1e6, inMain[runs / 2] / 1e6, exit[runs / 2] / 1e6));
+	}
+
+	//nanoseconds from launch, as seen by the launching process
+	private static final class Launch {
+		long firstInstruction = -1;
+		long firstFrame = -1;
+		long exit;
+		long inMain;	//from main to the first frame, as seen by the launched process
+		String throughput;
+	}
+
+	//launches Startup -run with the given command
+	private static Launch launch(List<String> base, String romPath, int frames) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>(base);
+		command.add("-run");
+		command.add("-frames");
+		command.add(Integer.toString(frames));
+		command.add(romPath);
+
+		Launch launch = new Launch();
+		long startTime = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		StringBuilder output = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while((line = reader.readLine()) != null){
+			if(line.startsWith(FIRST_INSTRUCTION)){
+				launch.firstInstruction = System.nanoTime() - startTime;
+			}else if(line.startsWith(FIRST_FRAME)){
+				launch.firstFrame = System.nanoTime() - startTime;
+				launch.inMain = Long.parseLong(line.substring(FIRST_FRAME.length()));
+			}else if(line.startsWith(THROUGHPUT)){
+				launch.throughput = line.substring(THROUGHPUT.length());
+			}else{
+				output.append(line).append('\n');
+			}
+		}
+		int status = process.waitFor();
+		launch.exit = System.nanoTime() - startTime;
+		if(status != 0 || launch.firstFrame < 0)
+			throw new IOException("Launch failed with status " + status + ": " + command + "\n" + output);
+		return launch;
+	}
+
+}
@@ -0,0 +1,238 @@
+package emulator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+enum TestRomResult {
+	PASSED,
+	FAILED,
+	TIMEOUT,	//wall clock limit reached before the ROM reported a result
+	BUDGET,		//cycle budget exhausted before the ROM reported a result
+	ERROR		//the emulator itself gave up (e.g. unsupported opcode)
+}
+
+/*
+ * Headless regression gate for the blargg test ROMs. Every ROM runs on its own
+ * GameBoy, in parallel across all cores, with the text it prints through the
+ * serial port captured until it reports "Passed" or "Failed".
+ *
+ * Usage: TestRomHarness [-budget <cycles>] [-timeout <seconds>] [rom or directory ...]
+ * Exits with status 1 if any ROM did not pass.
+ */
+public class TestRomHarness {
+
+	private final static String[] DEFAULT_ROMS = {
+		"./TestROMs/cpu_instrs.gb",
+		"./TestROMs/individual"
+	};
+
+	//roughly a minute of emulated time
+	private final static long DEFAULT_CYCLE_BUDGET = 60L * CPU.PROCESSOR_FREQUENCY_HZ;
+	private final static long DEFAULT_TIMEOUT_SECONDS = 60;
+
+	//how many cycles to run between checks of the output, the budget and the timeout
+	private final static int CYCLES_PER_QUANTUM = LCDController.TOTAL_REFRESH_CYCLES;
+
+	private long cycleBudget;
+	private long timeoutNanos;
+
+	public TestRomHarness(long cycleBudget, long timeoutSeconds){
+		this.cycleBudget = cycleBudget;
+		this.timeoutNanos = TimeUnit.NANOSECONDS.convert(timeoutSeconds, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * Captures everything the ROM sends over the link port. Written by the emulation
+	 * thread only; read by the same thread between quanta.
+	 */
+	static class SerialCapture implements SerialDevice {
+
+		private final StringBuilder output = new StringBuilder();
+
+		@Override
+		public char transferByte(char data) {
+			output.append(data);
+			return 0xFF;
+		}
+
+		public String getOutput(){
+			return output.toString();
+		}
+
+		public boolean contains(String text){
+			return output.indexOf(text) >= 0;
+		}
+	}
+
+	static class Report {
+		String rom;
+		TestRomResult result;
+		long cycles;
+		long nanos;
+		String output;
+	}
+
+	public Report run(File rom){
+
+		Report report = new Report();
+		report.rom = rom.getPath();
+
+		SerialCapture capture = new SerialCapture();
+		GameBoy gameBoy = new GameBoy(true);
+		gameBoy.serialPort.setDevice(capture);
+		new RomLoader(gameBoy).loadROM(rom.getPath());
+
+		long startTime = System.nanoTime();
+		report.result = TestRomResult.BUDGET;
+
+		try{
+			gameBoy.powerOn();
+
+			while(report.cycles < cycleBudget){
+				report.cycles += gameBoy.runCycles(Math.min(CYCLES_PER_QUANTUM, cycleBudget - report.cycles));
+
+				if(capture.contains("Passed")){
+					//cpu_instrs.gb prints "Passed all tests"; failed sub-tests are listed before that
+					report.result = TestRomResult.PASSED;
+					break;
+				}
+				if(capture.contains("Failed")){
+					report.result = TestRomResult.FAILED;
+					break;
+				}
+				if(System.nanoTime() - startTime > timeoutNanos){
+					report.result = TestRomResult.TIMEOUT;
+					break;
+				}
+				if(Thread.currentThread().isInterrupted()){
+					report.result = TestRomResult.TIMEOUT;
+					break;
+				}
+			}
+		}catch(IllegalStateException e){
+			report.result = TestRomResult.ERROR;
+			capture.transferByte('\n');
+			for(char c : e.getMessage().toCharArray())
+				capture.transferByte(c);
+		}
+
+		report.nanos = System.nanoTime() - startTime;
+		report.output = capture.getOutput();
+		return report;
+	}
+
+	public List<Report> runAll(List<File> roms) throws InterruptedException {
+
+		int threads = Math.min(roms.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+
+		List<Future<Report>> futures = new ArrayList<Future<Report>>();
+		for(final File rom : roms){
+			futures.add(executor.submit(new Callable<Report>() {
+				@Override
+				public Report call() {
+					return run(rom);
+				}
+			}));
+		}
+
+		List<Report> reports = new ArrayList<Report>();
+		for(int i = 0; i < futures.size(); i++){
+			try{
+				reports.add(futures.get(i).get());
+			}catch(ExecutionException e){
+				Report report = new Report();
+				report.rom = roms.get(i).getPath();
+				report.result = TestRomResult.ERROR;
+				report.output = String.valueOf(e.getCause());
+				reports.add(report);
+			}
+		}
+
+		executor.shutdown();
+		return reports;
+	}
+
+	public static void printTable(List<Report> reports, long wallNanos){
+
+		System.out.println(String.format("%-40s %-8s %14s %10s %10s", "ROM", "RESULT", "CYCLES", "TIME(ms)", "MHz"));
+
+		long totalCycles = 0;
+		int passed = 0;
+		for(Report report : reports){
+			double millis = report.nanos / 1e6;
+			double mhz = (report.nanos > 0) ? (report.cycles * 1e3 / report.nanos) : 0;
+			System.out.println(String.format("%-40s %-8s %14d %10.1f %10.2f",
+					new File(report.rom).getName(), report.result, report.cycles, millis, mhz));
+			totalCycles += report.cycles;
+			if(report.result == TestRomResult.PASSED)
+				passed++;
+		}
+
+		double wallSeconds = wallNanos / 1e9;
+		System.out.println(String.format("%d/%d passed in %.2f s, aggregate %.2f MHz (%.1fx real time)",
+				passed, reports.size(), wallSeconds, totalCycles / wallSeconds / 1e6,
+				totalCycles / wallSeconds / CPU.PROCESSOR_FREQUENCY_HZ));
+
+		for(Report report : reports){
+			if(report.result != TestRomResult.PASSED){
+				System.out.println();
+				System.out.println("--- " + report.rom + " (" + report.result + ") ---");
+				System.out.println(report.output);
+			}
+		}
+	}
+
+	private static void collectROMs(File file, List<File> roms){
+		if(file.isDirectory()){
+			File[] children = file.listFiles();
+			if(children == null)
+				return;
+			Arrays.sort(children);
+			for(File child : children)
+				collectROMs(child, roms);
+		}else if(RomImage.isRomName(file.getName())){
+			roms.add(file);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		long budget = DEFAULT_CYCLE_BUDGET;
+		long timeout = DEFAULT_TIMEOUT_SECONDS;
+		List<File> roms = new ArrayList<File>();
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-budget")){
+				budget = Long.parseLong(args[++i]);
+			}else if(args[i].equals("-timeout")){
+				timeout = Long.parseLong(args[++i]);
+			}else{
+				collectROMs(new File(args[i]), roms);
+			}
+		}
+		if(roms.isEmpty()){
+			for(String path : DEFAULT_ROMS)
+				collectROMs(new File(path), roms);
+		}
+
+		long startTime = System.nanoTime();
+		List<Report> reports = new TestRomHarness(budget, timeout).runAll(roms);
+		printTable(reports, System.nanoTime() - startTime);
+
+		for(Report report : reports){
+			if(report.result != TestRomResult.PASSED)
+				System.exit(1);
+		}
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,106 @@
+package emulator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Compares two traces written by TraceRecorder and reports the first record where
+ * they differ, with the records leading up to it. Both files are streamed, so traces
+ * of any length can be compared.
+ *
+ * Usage: TraceDiff [-context N] a.trace b.trace
+ * Exits with status 0 if the traces are identical, 1 if they diverge.
+ */
+public class TraceDiff {
+
+	private final static int RECORD_SIZE = TraceRecorder.RECORD_SIZE;
+
+	private static DataInputStream open(String path) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(path), 1 << 16), 1 << 16));
+
+		byte[] header = new byte[12];
+		in.readFully(header);
+		ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		if(buffer.getInt() != TraceRecorder.MAGIC)
+			throw new IOException("Not a trace: " + path);
+		int version = buffer.getInt();
+		if(version != TraceRecorder.VERSION || buffer.getInt() != RECORD_SIZE)
+			throw new IOException("Unsupported trace version " + version + ": " + path);
+		return in;
+	}
+
+	//false at the end of the trace
+	private static boolean read(DataInputStream in, byte[] record) throws IOException {
+		try{
+			in.readFully(record);
+			return true;
+		}catch(EOFException e){
+			return false;
+		}
+	}
+
+	static String describe(byte[] record){
+		ByteBuffer r = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+		return String.format("cycles=%-12d PC=%04X op=%02X A=%02X F=%02X B=%02X C=%02X D=%02X E=%02X H=%02X L=%02X SP=%04X IME=%d",
+				r.getLong(0), r.getShort(8) & 0xFFFF, r.get(20) & 0xFF,
+				r.get(12) & 0xFF, r.get(19) & 0xFF, r.get(13) & 0xFF, r.get(14) & 0xFF,
+				r.get(15) & 0xFF, r.get(16) & 0xFF, r.get(17) & 0xFF, r.get(18) & 0xFF,
+				r.getShort(10) & 0xFFFF, r.get(21));
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		int context = 8;
+		String first = null;
+		String second = null;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-context"))	context = Integer.parseInt(args[++i]);
+			else if(first == null)			first = args[i];
+			else							second = args[i];
+		}
+		if(second == null){
+			System.out.println("Usage: TraceDiff [-context N] <a.trace> <b.trace>");
+			System.exit(2);
+		}
+
+		//ring of the last records both traces agreed on
+		byte[][] history = new byte[Math.max(context, 1)][RECORD_SIZE];
+		byte[] a = new byte[RECORD_SIZE];
+		byte[] b = new byte[RECORD_SIZE];
+		long index = 0;
+
+		try(DataInputStream inA = open(first); DataInputStream inB = open(second)){
+			while(true){
+				boolean hasA = read(inA, a);
+				boolean hasB = read(inB, b);
+
+				if(!hasA && !hasB){
+					System.out.println(String.format("traces are identical (%d records)", index));
+					System.exit(0);
+				}
+
+				if(hasA != hasB || !Arrays.equals(a, b)){
+					System.out.println(String.format("first divergence at record %d", index));
+					for(long i = Math.max(index - context, 0); i < index; i++)
+						System.out.println(String.format("  %12d  %s", i, describe(history[(int)(i % history.length)])));
+					System.out.println(String.format("a %12d  %s", index, hasA ? describe(a) : "<end of trace>"));
+					System.out.println(String.format("b %12d  %s", index, hasB ? describe(b) : "<end of trace>"));
+					System.exit(1);
+				}
+
+				System.arraycopy(a, 0, history[(int)(index % history.length)], 0, RECORD_SIZE);
+				index++;
+			}
+		}
+	}
+
+}
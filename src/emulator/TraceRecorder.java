@@ -0,0 +1,230 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Records every executed instruction (PC, opcode, registers, cycle count) as a
+ * fixed-width record into a preallocated off-heap ring. A background thread drains
+ * the ring into a gzip file through a FileChannel, so the emulation thread only
+ * ever does a handful of absolute puts per instruction. When the writer falls
+ * behind the emulation thread waits for it rather than dropping records: a trace
+ * with holes is useless for finding divergences (see TraceDiff).
+ *
+ * File layout: MAGIC, VERSION and RECORD_SIZE as little endian ints, then the
+ * records, all gzip compressed. Record layout, little endian:
+ *   0  cycles (long)    8  PC (short)     10 SP (short)
+ *   12 A B C D E H L F  20 opcode         21 IME      22-23 unused
+ */
+public class TraceRecorder {
+
+	public final static int MAGIC = 0x52544247;	//"GBTR"
+	public final static int VERSION = 1;
+	public final static int RECORD_SIZE = 24;
+
+	private final static int HEADER_SIZE = 12;
+
+	//records between publications of the write position to the writer thread
+	private final static int PUBLISH_INTERVAL = 256;
+	//records the writer moves per gzip write
+	private final static int WRITE_CHUNK_RECORDS = 4096;
+
+	private final ByteBuffer ring;
+	private final int capacity;	//in records, a power of two
+	private final int mask;
+
+	//producer side, emulation thread only
+	private long position;
+	private long knownConsumed;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+	private volatile boolean closing = false;
+	private volatile Thread producerThread;
+
+	private final FileChannel channel;
+	private final Thread writer;
+	private volatile IOException writeError;
+
+	private long waits;
+
+	public TraceRecorder(String path, int ringRecords) throws IOException {
+
+		capacity = Integer.highestOneBit(Math.max(ringRecords, PUBLISH_INTERVAL * 2));
+		mask = capacity - 1;
+		ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		channel = FileChannel.open(new File(path).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writerLoop();
+			}
+		}, "trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//starts tracing the GameBoy's CPU; see CPU.step()
+	public void attach(GameBoy gameBoy){
+		producerThread = Thread.currentThread();
+		gameBoy.getCPU().setTracer(this);
+	}
+
+	public void detach(GameBoy gameBoy){
+		gameBoy.getCPU().setTracer(null);
+	}
+
+	//called by the CPU before executing each instruction
+	void record(int pc, int opcode, char[] registers, int sp, long cycles, boolean ime){
+
+		if(position - knownConsumed >= capacity)
+			waitForSpace();
+
+		int offset = (int)(position & mask) * RECORD_SIZE;
+		ring.putLong(offset, cycles);
+		ring.putShort(offset + 8, (short)pc);
+		ring.putShort(offset + 10, (short)sp);
+		for(int i = 0; i < 8; i++)
+			ring.put(offset + 12 + i, (byte)registers[i]);
+		ring.put(offset + 20, (byte)opcode);
+		ring.put(offset + 21, (byte)(ime ? 1 : 0));
+
+		if((++position & (PUBLISH_INTERVAL - 1)) == 0){
+			published.lazySet(position);
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private void waitForSpace(){
+		published.set(position);
+		LockSupport.unpark(writer);
+		waits++;
+		while(position - (knownConsumed = consumed.get()) >= capacity){
+			if(writeError != null)
+				throw new IllegalStateException("Trace writer failed", writeError);
+			LockSupport.parkNanos(this, 100000);
+		}
+	}
+
+	private void writerLoop(){
+
+		byte[] chunk = new byte[WRITE_CHUNK_RECORDS * RECORD_SIZE];
+		ByteBuffer source = ring.duplicate();
+
+		//fastest level: consecutive records differ in a few bytes, so it still compresses ~6:1
+		try(OutputStream out = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16){{ def.setLevel(Deflater.BEST_SPEED); }}){
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE);
+			out.write(header.array());
+
+			long read = 0;
+			while(true){
+				boolean finished = closing;
+				long available = published.get();
+				if(available == read){
+					if(finished)
+						break;
+					LockSupport.parkNanos(this, 1000000);
+					continue;
+				}
+				while(read < available){
+					int first = (int)(read & mask);
+					int count = (int)Math.min(Math.min(available - read, capacity - first), WRITE_CHUNK_RECORDS);
+					source.limit((first + count) * RECORD_SIZE).position(first * RECORD_SIZE);
+					source.get(chunk, 0, count * RECORD_SIZE);
+					out.write(chunk, 0, count * RECORD_SIZE);
+					read += count;
+					consumed.set(read);
+					Thread producer = producerThread;
+					if(producer != null)
+						LockSupport.unpark(producer);
+				}
+			}
+		}catch(IOException e){
+			writeError = e;
+			consumed.set(Long.MAX_VALUE / 2);	//don't leave the producer waiting
+		}
+	}
+
+	/*
+	 * Writes out everything recorded so far and closes the file. Must be called on the
+	 * emulation thread after detach().
+	 */
+	public void close() throws IOException {
+		published.set(position);
+		closing = true;
+		LockSupport.unpark(writer);
+		try{
+			writer.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		if(writeError != null)
+			throw writeError;
+	}
+
+	public long getRecordCount(){
+		return position;
+	}
+
+	//how often the emulation thread had to wait for the writer
+	public long getWaitCount(){
+		return waits;
+	}
+
+	/*
+	 * Usage: TraceRecorder [-frames F] [-movie movie] trace [rom]
+	 * Runs F frames (600), or replays the input movie, with tracing, and reports the
+	 * size of the trace. The cost of tracing is measured by ProbeBenchmark.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int frames = 600;
+		String moviePath = null;
+		String tracePath = null;
+		String romPath = Main.DEFAULT_ROM;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-frames"))		frames = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-movie"))	moviePath = args[++i];
+			else if(tracePath == null)			tracePath = args[i];
+			else								romPath = args[i];
+		}
+		if(tracePath == null){
+			System.out.println("Usage: TraceRecorder [-frames F] [-movie movie] <trace> [rom]");
+			System.exit(2);
+		}
+
+		GameBoy gameBoy = new GameBoy(RomImage.load(romPath));
+		TraceRecorder recorder = new TraceRecorder(tracePath, 1 << 16);
+		recorder.attach(gameBoy);
+		if(moviePath != null){
+			InputMovie.play(InputMovie.load(moviePath), gameBoy);
+		}else{
+			gameBoy.powerOn();
+			for(int i = 0; i < frames; i++)
+				gameBoy.runFrame();
+		}
+		recorder.detach(gameBoy);
+		recorder.close();
+
+		long size = new File(tracePath).length();
+		System.out.println(String.format("%d instructions traced, %d bytes (%.2f bytes per record), writer stalls: %d",
+				recorder.getRecordCount(), size, size / (double)recorder.getRecordCount(), recorder.getWaitCount()));
+	}
+
+}
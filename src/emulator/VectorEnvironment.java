@@ -0,0 +1,122 @@
+package emulator;
+
+enum ObservationType {
+	FRAMEBUFFER,		//160x144 shades, 0=white..3=black
+	GRAYSCALE_HALF		//80x72 gray levels, 0=black..255=white, each the mean of a 2x2 block
+}
+
+/*
+ * Batched stepping for reinforcement learning: step() advances K instances by one
+ * frame each, in parallel on the farm's workers, with the given joypad masks.
+ *
+ * All results land in one contiguous byte[]; environment i owns the slice starting
+ * at i * getStride(): first its observation, then the selected RAM bytes in the order
+ * they were given. The buffer is reused, so a step performs no allocation.
+ */
+public class VectorEnvironment extends EmulatorFarm {
+
+	private final ObservationType observationType;
+	private final int[] ramAddresses;
+	private final int observationSize;
+	private final int stride;
+	private final byte[] buffer;
+
+	//the joypad masks of the step in progress
+	private int[] actions;
+
+	private long steps;
+	private long stepNanos;
+
+	public VectorEnvironment(RomImage image, int count, ObservationType observationType, int[] ramAddresses, int threadCount){
+		super(threadCount);
+
+		this.observationType = observationType;
+		this.ramAddresses = ramAddresses.clone();
+
+		switch(observationType){
+		case GRAYSCALE_HALF:	observationSize = (GameBoy.SCREEN_WIDTH / 2) * (GameBoy.SCREEN_HEIGHT / 2);	break;
+		default:				observationSize = GameBoy.SCREEN_WIDTH * GameBoy.SCREEN_HEIGHT;			break;
+		}
+		this.stride = observationSize + this.ramAddresses.length;
+		this.buffer = new byte[count * stride];
+
+		for(int i = 0; i < count; i++)
+			addInstance(image);
+	}
+
+	/*
+	 * Advances every environment by one frame; actions[i] is the BUTTON_* mask held by
+	 * environment i during that frame. Returns the shared result buffer.
+	 */
+	public byte[] step(int[] actions){
+		long startTime = System.nanoTime();
+
+		this.actions = actions;
+		long stepped = runFrames(1);
+
+		stepNanos += System.nanoTime() - startTime;
+		steps += stepped;
+		return buffer;
+	}
+
+	@Override
+	protected void runQuantum(int index, GameBoy gameBoy){
+		gameBoy.inputHandler.setButtons(actions[index]);
+		gameBoy.runFrame();
+		writeObservation(index, gameBoy);
+	}
+
+	private void writeObservation(int index, GameBoy gameBoy){
+
+		byte[] frame = gameBoy.getFrameBuffer();
+		int offset = index * stride;
+
+		switch(observationType){
+		case GRAYSCALE_HALF:{
+			final int width = GameBoy.SCREEN_WIDTH;
+			for(int y = 0; y < GameBoy.SCREEN_HEIGHT; y += 2){
+				for(int x = 0; x < width; x += 2){
+					int p = y * width + x;
+					int shadeSum = frame[p] + frame[p + 1] + frame[p + width] + frame[p + width + 1];
+					//shade sum 0..12 maps to 255..0
+					buffer[offset++] = (byte)(255 - (shadeSum * 255) / 12);
+				}
+			}
+			break;
+		}
+		default:
+			System.arraycopy(frame, 0, buffer, offset, observationSize);
+			offset += observationSize;
+			break;
+		}
+
+		for(int i = 0; i < ramAddresses.length; i++)
+			buffer[offset + i] = (byte)gameBoy.memory.readByte(ramAddresses[i]);
+	}
+
+	public byte[] getBuffer(){
+		return buffer;
+	}
+
+	public int getStride(){
+		return stride;
+	}
+
+	public int getObservationSize(){
+		return observationSize;
+	}
+
+	//offset of environment i's observation within the buffer; its RAM bytes follow directly
+	public int getObservationOffset(int index){
+		return index * stride;
+	}
+
+	public int getRamOffset(int index){
+		return index * stride + observationSize;
+	}
+
+	public double getStepsPerSecond(){
+		return (stepNanos > 0) ? steps * 1e9 / stepNanos : 0;
+	}
+
+}
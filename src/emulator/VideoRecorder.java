@@ -0,0 +1,595 @@
+package emulator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Records gameplay losslessly: for every frame the LCD draws, each pixel's 2-bit
+ * color index and the palette it went through, and the palettes (BGP, OBP0, OBP1)
+ * row by row, so fades and mid-frame palette writes are kept exactly. The emulation
+ * thread only copies each row as it is projected (see GameBoy.projectRow()) and, at
+ * VBlank, copies the frame into a free buffer and queues it. An encoder thread codes
+ * it against the previous frame and writes it out. The queue is bounded; when the
+ * encoder falls behind the emulation thread waits for it rather than dropping frames.
+ *
+ * File layout: MAGIC, VERSION, width and height as little endian ints, then a record
+ * per frame:
+ *   flags (byte): KEYFRAME
+ *   palette changes (varint), each a row and BGP, OBP0 and OBP1 (4 bytes): the
+ *     palettes from that row on, until the next change (carried over between frames)
+ *   pixel data length (varint), then runs, each a varint (length - 1) << 2 | kind:
+ *     SKIP     the pixels are as in the previous frame
+ *     REPEAT   a byte follows, the value of all the pixels
+ *     LITERAL  (length + 1) / 2 bytes follow, two pixels each, the first in the high nibble
+ * A pixel is palette << 2 | color index, with palette 0 for the background and window
+ * and 1 and 2 for OBP0 and OBP1. Keyframes have no SKIP runs and restate the palettes
+ * at row 0, so a player can start from any of them.
+ */
+public class VideoRecorder implements FrameListener {
+
+	public final static int MAGIC = 0x56444247;	//"GBDV"
+	public final static int VERSION = 1;
+
+	final static int KEYFRAME = 0x01;
+
+	private final static int SKIP = 0;
+	private final static int REPEAT = 1;
+	private final static int LITERAL = 2;
+
+	//shorter runs of unchanged pixels cost more as a SKIP than inside a LITERAL
+	private final static int MIN_SKIP = 4;
+	private final static int MIN_REPEAT = 4;
+	//a keyframe every 10 seconds
+	private final static int KEYFRAME_INTERVAL = 600;
+
+	private final static int WIDTH = GameBoy.SCREEN_WIDTH;
+	private final static int HEIGHT = GameBoy.SCREEN_HEIGHT;
+
+	//gray levels of the four shades, as the screen draws them (Color.white, lightGray, darkGray, black)
+	final static int[] SHADE_LEVELS = { 255, 192, 64, 0 };
+
+	private static final class Frame {
+		final byte[] pixels = new byte[WIDTH * HEIGHT];
+		final byte[] palettes = new byte[HEIGHT * 3];	//BGP, OBP0, OBP1 of each row
+	}
+
+	private static final Frame END = new Frame();
+
+	//the screen as last projected, emulation thread only
+	private final byte[] pixels = new byte[WIDTH * HEIGHT];
+	private final byte[] palettes = new byte[HEIGHT * 3];
+
+	private final ArrayBlockingQueue<Frame> free;
+	private final ArrayBlockingQueue<Frame> queued;
+	private volatile boolean closing = false;
+
+	private final OutputStream out;
+	private final Thread encoder;
+	private volatile IOException writeError;
+
+	private long frames;
+	private long waits;
+	private long bytes;	//written by the encoder, read after close()
+	private long encoderNanos;	//CPU time of the encoder thread, -1 if unavailable; read after close()
+
+	public VideoRecorder(String path, int queueFrames) throws IOException {
+
+		free = new ArrayBlockingQueue<Frame>(queueFrames + 1);
+		queued = new ArrayBlockingQueue<Frame>(queueFrames + 2);	//every frame, and END
+		for(int i = 0; i <= queueFrames; i++)
+			free.add(new Frame());
+
+		out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16);
+		ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(WIDTH).putInt(HEIGHT);
+		out.write(header.array());
+
+		encoder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				encoderLoop();
+			}
+		}, "video-encoder");
+		encoder.setDaemon(true);
+		encoder.start();
+	}
+
+	//starts recording the frames the GameBoy draws from now on
+	public void attach(GameBoy gameBoy){
+		gameBoy.setVideoRecorder(this);
+		gameBoy.addFrameListener(this);
+	}
+
+	public void detach(GameBoy gameBoy){
+		gameBoy.removeFrameListener(this);
+		gameBoy.setVideoRecorder(null);
+	}
+
+	//called by GameBoy.projectRow() for every visible row, with the palettes it was drawn with
+	void rowProjected(int row, PixelData[] pixelsArray, char bgp, char obp0, char obp1){
+		int offset = row * WIDTH;
+		for(int i = 0; i < WIDTH; i++){
+			PixelData pixel = pixelsArray[i];
+			pixels[offset + i] = (byte)((pixel.type.ordinal() << 2) | pixel.color);
+		}
+		palettes[row * 3] = (byte)bgp;
+		palettes[row * 3 + 1] = (byte)obp0;
+		palettes[row * 3 + 2] = (byte)obp1;
+	}
+
+	@Override
+	public void frameCompleted(GameBoy gameBoy) {
+		if(closing)
+			return;
+		Frame frame = free.poll();
+		if(frame == null)
+			frame = waitForFrame();
+		if(frame == null){
+			//the encoder failed (disk full, say): stop recording, close() reports why
+			closing = true;
+			detach(gameBoy);
+			return;
+		}
+		System.arraycopy(pixels, 0, frame.pixels, 0, pixels.length);
+		System.arraycopy(palettes, 0, frame.palettes, 0, palettes.length);
+		queued.add(frame);
+		frames++;
+	}
+
+	//a free frame, or null once the encoder has failed; never throws into the emulation thread
+	private Frame waitForFrame(){
+		waits++;
+		try{
+			while(true){
+				if(writeError != null)
+					return null;
+				Frame frame = free.poll(100, TimeUnit.MILLISECONDS);
+				if(frame != null)
+					return frame;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			if(writeError == null)
+				writeError = new IOException("Interrupted while waiting for the video encoder", e);
+			return null;
+		}
+	}
+
+	private void encoderLoop(){
+
+		byte[] previous = new byte[WIDTH * HEIGHT];
+		byte[] current = new byte[WIDTH * HEIGHT];
+		byte[] rowPalettes = new byte[HEIGHT * 3];
+		int[] palette = { -1, -1, -1 };	//as of the end of the previous frame
+		RecordBuffer record = new RecordBuffer();
+		long count = 0;
+
+		try{
+			while(true){
+				Frame frame = queued.take();
+				if(frame == END)
+					break;
+				System.arraycopy(frame.pixels, 0, current, 0, current.length);
+				System.arraycopy(frame.palettes, 0, rowPalettes, 0, rowPalettes.length);
+				free.add(frame);
+
+				boolean keyframe = count++ % KEYFRAME_INTERVAL == 0;
+				record.reset();
+				record.put(keyframe ? KEYFRAME : 0);
+				encodePalettes(rowPalettes, palette, keyframe, record);
+				int lengthAt = record.length;
+				encodePixels(current, keyframe ? null : previous, record);
+				out.write(record.data, 0, lengthAt);
+				RecordBuffer.writeVarint(out, record.length - lengthAt);
+				out.write(record.data, lengthAt, record.length - lengthAt);
+				bytes += record.length + RecordBuffer.varintSize(record.length - lengthAt);
+
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			out.close();
+			bytes += 16;
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			encoderNanos = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+		}catch(IOException e){
+			writeError = e;
+		}catch(InterruptedException e){
+			writeError = new IOException("Video encoder interrupted", e);
+		}
+	}
+
+	//writes the rows where the palettes differ from the row before (the previous frame's last row, for row 0)
+	private static void encodePalettes(byte[] rowPalettes, int[] palette, boolean keyframe, RecordBuffer record){
+		int[] rows = new int[HEIGHT];
+		int changes = 0;
+		for(int row = 0; row < HEIGHT; row++){
+			if(changed(rowPalettes, row, palette) || (keyframe && row == 0)){
+				rows[changes++] = row;
+				for(int i = 0; i < 3; i++)
+					palette[i] = rowPalettes[row * 3 + i] & 0xFF;
+			}
+		}
+		record.putVarint(changes);
+		for(int i = 0; i < changes; i++){
+			record.put(rows[i]);
+			for(int j = 0; j < 3; j++)
+				record.put(rowPalettes[rows[i] * 3 + j]);
+		}
+	}
+
+	private static boolean changed(byte[] rowPalettes, int row, int[] palette){
+		for(int i = 0; i < 3; i++){
+			if((rowPalettes[row * 3 + i] & 0xFF) != palette[i])
+				return true;
+		}
+		return false;
+	}
+
+	//codes the pixels as runs against the previous frame, or on their own when it is null
+	static void encodePixels(byte[] pixels, byte[] previous, RecordBuffer record){
+		int n = pixels.length;
+		int i = 0;
+		while(i < n){
+			if(previous != null && pixels[i] == previous[i]){
+				int start = i;
+				while(i < n && pixels[i] == previous[i])
+					i++;
+				record.putRun(SKIP, i - start);
+				continue;
+			}
+
+			//the changed stretch, up to the next MIN_SKIP unchanged pixels in a row
+			int j = i + 1;
+			int same = 0;
+			while(j < n && (previous == null || same < MIN_SKIP)){
+				same = (previous != null && pixels[j] == previous[j]) ? same + 1 : 0;
+				j++;
+			}
+			int end = j - same;
+
+			int literal = i;
+			int k = i;
+			while(k < end){
+				int r = k + 1;
+				while(r < end && pixels[r] == pixels[k])
+					r++;
+				if(r - k >= MIN_REPEAT){
+					record.putLiteral(pixels, literal, k);
+					record.putRun(REPEAT, r - k);
+					record.put(pixels[k]);
+					literal = r;
+				}
+				k = r;
+			}
+			record.putLiteral(pixels, literal, end);
+			i = end;
+		}
+	}
+
+	//one frame's record, reused from frame to frame by the encoder
+	static final class RecordBuffer {
+		byte[] data = new byte[WIDTH * HEIGHT];
+		int length;
+
+		void reset(){
+			length = 0;
+		}
+
+		void put(int b){
+			if(length == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+			data[length++] = (byte)b;
+		}
+
+		void putVarint(int value){
+			while((value & ~0x7F) != 0){
+				put((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			put(value);
+		}
+
+		void putRun(int kind, int length){
+			putVarint(((length - 1) << 2) | kind);
+		}
+
+		void putLiteral(byte[] pixels, int from, int to){
+			if(to <= from)
+				return;
+			putRun(LITERAL, to - from);
+			for(int i = from; i < to; i += 2)
+				put((pixels[i] << 4) | ((i + 1 < to) ? pixels[i + 1] : 0));
+		}
+
+		static void writeVarint(OutputStream out, int value) throws IOException {
+			while((value & ~0x7F) != 0){
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+
+		static int varintSize(int value){
+			int size = 1;
+			while((value & ~0x7F) != 0){
+				value >>>= 7;
+				size++;
+			}
+			return size;
+		}
+	}
+
+	/*
+	 * Writes out every frame recorded so far and closes the file. Frames completed
+	 * after this are not recorded. If writing failed, recording stopped at that point
+	 * (the recorder detached itself) and the error is thrown here.
+	 */
+	public void close() throws IOException {
+		closing = true;
+		try{
+			queued.put(END);
+			encoder.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		if(writeError != null){
+			try{
+				out.close();
+			}catch(IOException e){
+				writeError.addSuppressed(e);
+			}
+			throw writeError;
+		}
+	}
+
+	public long getFrameCount(){
+		return frames;
+	}
+
+	//how often the emulation thread had to wait for the encoder
+	public long getWaitCount(){
+		return waits;
+	}
+
+	//CPU time the encoder took, once closed (-1 if the JVM can't tell)
+	public long getEncoderNanos(){
+		return encoderNanos;
+	}
+
+	//the size of the file, once closed
+	public long getByteCount(){
+		return bytes;
+	}
+
+	/*
+	 * Decodes a recording frame by frame, into the pixels (palette << 2 | color index)
+	 * and the palettes of each row.
+	 */
+	public static class Player {
+
+		private final DataInputStream in;
+		private final byte[] pixels = new byte[WIDTH * HEIGHT];
+		private final byte[] palettes = new byte[HEIGHT * 3];
+		private final byte[] palette = new byte[3];
+		private byte[] data = new byte[WIDTH * HEIGHT];
+		private long frame = -1;
+
+		public Player(InputStream stream) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+			byte[] bytes = new byte[16];
+			in.readFully(bytes);
+			ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			if(header.getInt() != MAGIC)
+				throw new IOException("Not a video recording");
+			int version = header.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported video recording version " + version);
+			if(header.getInt() != WIDTH || header.getInt() != HEIGHT)
+				throw new IOException("Video recording is not " + WIDTH + "x" + HEIGHT);
+		}
+
+		//false at the end of the recording
+		public boolean next() throws IOException {
+			int flags = in.read();
+			if(flags < 0)
+				return false;
+			frame++;
+			if(frame == 0 && (flags & KEYFRAME) == 0)
+				throw new IOException("Video recording doesn't start with a keyframe");
+
+			int changes = readVarint();
+			int row = 0;
+			for(int i = 0; i < changes; i++){
+				int changeRow = in.readUnsignedByte();
+				for(; row < changeRow; row++)
+					System.arraycopy(palette, 0, palettes, row * 3, 3);
+				in.readFully(palette);
+			}
+			for(; row < HEIGHT; row++)
+				System.arraycopy(palette, 0, palettes, row * 3, 3);
+
+			int length = readVarint();
+			if(data.length < length)
+				data = new byte[length];
+			in.readFully(data, 0, length);
+			decodePixels(data, length);
+			return true;
+		}
+
+		private void decodePixels(byte[] data, int length) throws IOException {
+			int position = 0;
+			int i = 0;
+			while(position < length){
+				int token = 0;
+				for(int shift = 0; ; shift += 7){
+					int b = data[position++];
+					token |= (b & 0x7F) << shift;
+					if((b & 0x80) == 0)
+						break;
+				}
+				int count = (token >>> 2) + 1;
+				if(i + count > pixels.length)
+					throw new IOException("Corrupt video recording at frame " + frame);
+				switch(token & 0b11){
+				case SKIP:
+					break;
+				case REPEAT:
+					Arrays.fill(pixels, i, i + count, data[position++]);
+					break;
+				case LITERAL:
+					for(int k = 0; k < count; k++){
+						int b = data[position + (k >> 1)];
+						pixels[i + k] = (byte)(((k & 1) == 0) ? (b >> 4) & 0x0F : b & 0x0F);
+					}
+					position += (count + 1) / 2;
+					break;
+				default:
+					throw new IOException("Corrupt video recording at frame " + frame);
+				}
+				i += count;
+			}
+		}
+
+		private int readVarint() throws IOException {
+			int value = 0;
+			for(int shift = 0; ; shift += 7){
+				int b = in.readUnsignedByte();
+				value |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+		}
+
+		//the frame's shades (0=white..3=black) after palette mapping, as GameBoy.getFrameBuffer()
+		public void getShades(byte[] shades){
+			for(int row = 0; row < HEIGHT; row++){
+				int offset = row * WIDTH;
+				for(int i = 0; i < WIDTH; i++){
+					int pixel = pixels[offset + i];
+					int palette = palettes[row * 3 + (pixel >> 2)] & 0xFF;
+					shades[offset + i] = (byte)((palette >> (2 * (pixel & 0b11))) & 0b11);
+				}
+			}
+		}
+
+		public byte[] getPixels(){
+			return pixels;
+		}
+
+		public byte[] getPalettes(){
+			return palettes;
+		}
+
+		public long getFrame(){
+			return frame;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	//writes numbered PNGs (frame000000.png, ...) into the directory; returns the frame count
+	public static long exportPNG(Player player, File directory, int scale) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		byte[] shades = new byte[WIDTH * HEIGHT];
+		BufferedImage image = new BufferedImage(WIDTH * scale, HEIGHT * scale, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster raster = image.getRaster();
+		int[] line = new int[WIDTH * scale];
+		while(player.next()){
+			player.getShades(shades);
+			for(int row = 0; row < HEIGHT; row++){
+				for(int i = 0; i < line.length; i++)
+					line[i] = SHADE_LEVELS[shades[row * WIDTH + i / scale]];
+				for(int y = 0; y < scale; y++)
+					raster.setSamples(0, row * scale + y, line.length, 1, 0, line);
+			}
+			ImageIO.write(image, "png", new File(directory, String.format("frame%06d.png", player.getFrame())));
+		}
+		return player.getFrame() + 1;
+	}
+
+	/*
+	 * Writes a YUV4MPEG2 stream (4:2:0, full range) at the GameBoy's frame rate, which
+	 * ffmpeg and most players read directly; returns the frame count.
+	 */
+	public static long exportY4M(Player player, File file, int scale) throws IOException {
+		int width = WIDTH * scale;
+		int height = HEIGHT * scale;
+		byte[] shades = new byte[WIDTH * HEIGHT];
+		byte[] luma = new byte[width * height];
+		byte[] chroma = new byte[2 * (width / 2) * (height / 2)];
+		Arrays.fill(chroma, (byte)128);
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)){
+			out.write(String.format("YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C420jpeg XCOLORRANGE=FULL\n",
+					width, height, CPU.PROCESSOR_FREQUENCY_HZ, LCDController.TOTAL_REFRESH_CYCLES).getBytes(StandardCharsets.US_ASCII));
+			byte[] frameHeader = "FRAME\n".getBytes(StandardCharsets.US_ASCII);
+			while(player.next()){
+				player.getShades(shades);
+				for(int y = 0; y < height; y++){
+					for(int x = 0; x < width; x++)
+						luma[y * width + x] = (byte)SHADE_LEVELS[shades[(y / scale) * WIDTH + x / scale]];
+				}
+				out.write(frameHeader);
+				out.write(luma);
+				out.write(chroma);
+			}
+		}
+		return player.getFrame() + 1;
+	}
+
+	/*
+	 * Usage: VideoRecorder (-png directory | -y4m file) [-scale S] video
+	 * Exports the video as numbered PNGs or as a Y4M stream, each pixel scaled to SxS
+	 * (1). Videos are recorded by Main -video; the cost of recording is measured by
+	 * ProbeBenchmark.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int scale = 1;
+		String pngPath = null;
+		String y4mPath = null;
+		String videoPath = null;
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-png"))			pngPath = args[++i];
+			else if(args[i].equals("-y4m"))		y4mPath = args[++i];
+			else if(args[i].equals("-scale"))	scale = Integer.parseInt(args[++i]);
+			else								videoPath = args[i];
+		}
+		if(videoPath == null || (pngPath == null && y4mPath == null)){
+			System.out.println("Usage: VideoRecorder (-png <directory> | -y4m <file>) [-scale S] <video>");
+			System.exit(2);
+		}
+
+		Player player = new Player(new FileInputStream(videoPath));
+		try{
+			long startTime = System.nanoTime();
+			long count = (pngPath != null) ? exportPNG(player, new File(pngPath), scale) : exportY4M(player, new File(y4mPath), scale);
+			System.out.println(String.format("%d frames exported in %.2f s", count, (System.nanoTime() - startTime) / 1e9));
+		}finally{
+			player.close();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Writes a 16 bit stereo PCM .wav file. The RIFF and data sizes are written as
+ * zero and patched in by close().
+ */
+public class WavFileSink implements AudioSink {
+
+	private final static int HEADER_SIZE = 44;
+
+	private final File file;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(0);
+	private long dataBytes;
+
+	public WavFileSink(String path){
+		this.file = new File(path);
+	}
+
+	@Override
+	public void open(int sampleRate) throws IOException {
+		channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x46464952).putInt(0).putInt(0x45564157);	//"RIFF", size, "WAVE"
+		header.putInt(0x20746D66).putInt(16);						//"fmt ", chunk size
+		header.putShort((short)1).putShort((short)2);				//PCM, stereo
+		header.putInt(sampleRate).putInt(sampleRate * 4);			//sample rate, byte rate
+		header.putShort((short)4).putShort((short)16);				//block align, bits per sample
+		header.putInt(0x61746164).putInt(0);						//"data", size
+		header.flip();
+		channel.write(header);
+	}
+
+	@Override
+	public void write(short[] samples, int offset, int length) throws IOException {
+		if(buffer.capacity() < 2 * length)
+			buffer = ByteBuffer.allocate(2 * length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.clear();
+		buffer.asShortBuffer().put(samples, offset, length);
+		buffer.limit(2 * length);
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		dataBytes += 2 * length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		size.putInt(0, (int)(HEADER_SIZE - 8 + dataBytes));
+		channel.write(size, 4);
+		size.clear();
+		size.putInt(0, (int)dataBytes);
+		channel.write(size, HEADER_SIZE - 4);
+		channel.close();
+	}
+
+}